@@ -0,0 +1,133 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PDF text extraction on a corpus of generated PDFs of 1 to 256 pages, or on the PDF named by the system property benchmark.pdf.
+ * <ul>
+ * <li>stripper: one PDFTextStripper over the whole document, as getPDFText(File) does.</li>
+ * <li>pageRanges: PdfTextExtractor over the document in memory, as getPDFText(FetchedContent) does with the default pdfPagesPerRange and pdfExtractParallelism.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PdfExtractionBenchmark
+{
+	private static final String LINE = "The quarterly report covers revenue, operating costs and the outlook for the next two quarters in %d regions.";
+
+	@Param({"1", "16", "256"})
+	public int pages;
+
+	private File pdf;
+	private FetchedContent content;
+	private ExecutorService pool;
+	private PdfTextExtractor extractor;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		String corpus = System.getProperty("benchmark.pdf");
+		if (corpus == null)
+		{
+			pdf = File.createTempFile("benchmark-" + pages + "-", ".pdf");
+			pdf.deleteOnExit();
+			writePdf(pdf, pages);
+		} else
+			pdf = new File(corpus);
+		try (InputStream in = new FileInputStream(pdf))
+		{
+			content = FetchedContent.read(in, pdf.length(), Long.MAX_VALUE, pdf.getParentFile());
+		}
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		pool = Executors.newFixedThreadPool(Math.max(1, parallelism - 1));
+		extractor = new PdfTextExtractor(pool, 16, parallelism);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		content.close();
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Writes a PDF of pages pages, each with 40 lines of text.
+	 */
+	static void writePdf(File file, int pages) throws IOException
+	{
+		try (PDDocument document = new PDDocument())
+		{
+			PDType1Font font = new PDType1Font(Standard14Fonts.FontName.HELVETICA);
+			for (int p = 0; p < pages; p++)
+			{
+				PDPage page = new PDPage();
+				document.addPage(page);
+				try (PDPageContentStream stream = new PDPageContentStream(document, page))
+				{
+					stream.beginText();
+					stream.setFont(font, 10);
+					stream.setLeading(14);
+					stream.newLineAtOffset(50, 740);
+					for (int l = 0; l < 40; l++)
+					{
+						stream.showText(String.format(LINE, p * 40 + l));
+						stream.newLine();
+					}
+					stream.endText();
+				}
+			}
+			try (OutputStream out = new FileOutputStream(file))
+			{
+				document.save(out);
+			}
+		}
+	}
+
+	@Benchmark
+	public String stripper() throws IOException
+	{
+		try (PDDocument document = Loader.loadPDF(pdf))
+		{
+			return new PDFTextStripper().getText(document);
+		}
+	}
+
+	@Benchmark
+	public String pageRanges() throws IOException
+	{
+		return extractor.extract(content::loadPDF, Integer.MAX_VALUE).getText();
+	}
+}
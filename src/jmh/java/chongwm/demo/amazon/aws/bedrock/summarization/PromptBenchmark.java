@@ -0,0 +1,58 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the request body of BedrockInvokeClaude for texts of 1K to 1M characters, and removeFirstLine on Claude's reply. Loading SummarizeAlfrescoWithBedrock needs the environment variables the jmh profile sets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PromptBenchmark
+{
+	private static final String PROMPT = "Summarize the text above in three paragraphs. Quote figures exactly.";
+
+	@Param({"1000", "100000", "1000000"})
+	public int textLength;
+
+	private String text;
+	private String reply;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		StringBuilder sb = new StringBuilder(textLength + 100);
+		for (int i = 0; sb.length() < textLength; i++)
+			sb.append("Line ").append(i).append(" of the \"extracted\" text, with a tab\tand a backslash \\ to escape.\n");
+		text = sb.substring(0, textLength);
+		reply = "Here is a summary of the document:\n\n\n" + text.substring(0, Math.min(textLength, 4000));
+	}
+
+	@Benchmark
+	public String modelBody()
+	{
+		return SummarizeAlfrescoWithBedrock.claudeModelBody(PROMPT, 2000, 0.5f, text).toString();
+	}
+
+	@Benchmark
+	public String removeFirstLine()
+	{
+		return SummarizeAlfrescoWithBedrock.removeFirstLine(reply, true);
+	}
+}
@@ -0,0 +1,92 @@
+package chongwm.demo.hyland.alfresco.search.pojo.json2kt;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Parsing a page of Alfresco search results of 10 to 1000 entries, each with an existing 2KB summary.
+ * <ul>
+ * <li>reflective: a plain Gson binding every field, as the search was first parsed.</li>
+ * <li>decoder: SearchResultsDecoder as the pipeline uses it, skipping the summary.</li>
+ * <li>decoderWithSummary: SearchResultsDecoder keeping the summary.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchResultsBenchmark
+{
+	@Param({"10", "100", "1000"})
+	public int entries;
+
+	private String page;
+	private Gson gson;
+	private SearchResultsDecoder decoder;
+	private SearchResultsDecoder summaryDecoder;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		StringBuilder summary = new StringBuilder();
+		while (summary.length() < 2048)
+			summary.append("An earlier summary of the document, which the pipeline replaces. ");
+		JSONArray list = new JSONArray();
+		for (int i = 0; i < entries; i++)
+		{
+			JSONObject properties = new JSONObject().put("crestBedrock:generateSummary", true).put("crestBedrock:prompt", "Summarize the document in three paragraphs.")
+					                                .put("crestBedrock:fm", "anthropic.claude-v2:1").put("crestBedrock:responseLength", 2000).put("crestBedrock:temperature", 0.5)
+					                                .put("crestBedrock:summary", summary.toString()).put("cm:versionType", "MAJOR").put("cm:versionLabel", "1.0");
+			JSONObject entry = new JSONObject().put("id", String.format("%08x-0000-4000-8000-%012x", i, i)).put("name", "Quarterly report " + i + ".pdf").put("nodeType", "cm:content")
+					                           .put("isFile", true).put("isFolder", false).put("parentId", "6e1a9ca4-0000-4000-8000-000000000000")
+					                           .put("createdAt", "2024-03-01T09:15:00.000+0000").put("modifiedAt", "2024-03-02T10:30:00.000+0000")
+					                           .put("content", new JSONObject().put("mimeType", "application/pdf").put("mimeTypeName", "Adobe PDF Document").put("sizeInBytes", 1048576 + i).put("encoding", "UTF-8"))
+					                           .put("properties", properties);
+			list.put(new JSONObject().put("entry", entry));
+		}
+		JSONObject pagination = new JSONObject().put("count", entries).put("hasMoreItems", true).put("totalItems", entries * 10).put("skipCount", 0).put("maxItems", entries);
+		page = new JSONObject().put("list", new JSONObject().put("pagination", pagination).put("entries", list)).toString();
+		gson = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").create();
+		decoder = new SearchResultsDecoder(false);
+		summaryDecoder = new SearchResultsDecoder(true);
+	}
+
+	@Benchmark
+	public SearchResults reflective()
+	{
+		return gson.fromJson(page, SearchResults.class);
+	}
+
+	@Benchmark
+	public SearchResults decoder() throws IOException
+	{
+		return decoder.decode(new StringReader(page));
+	}
+
+	@Benchmark
+	public SearchResults decoderWithSummary() throws IOException
+	{
+		return summaryDecoder.decode(new StringReader(page));
+	}
+}
@@ -0,0 +1,63 @@
+package chongwm.demo.toolbox.String;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The word limiting and random string helpers, on texts of 100 to 100000 words cut to half their length.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UtilsBenchmark
+{
+	@Param({"100", "10000", "100000"})
+	public int words;
+
+	private String text;
+	private Random random;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < words; i++)
+			sb.append((i % 12 == 11) ? "word.\n" : "word ");
+		text = sb.toString();
+		random = new Random(42);
+	}
+
+	@Benchmark
+	public String limitWords()
+	{
+		return Utils.limitWords(text, words / 2);
+	}
+
+	@Benchmark
+	public String limitWordsClaudeGenerated()
+	{
+		return Utils.limitWordsClaudeGenerated(text, words / 2);
+	}
+
+	@Benchmark
+	public String seededRandomString()
+	{
+		return Utils.seededRandomString(random, 12); // BatchRecordIdLength
+	}
+}
@@ -0,0 +1,357 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import chongwm.demo.hyland.alfresco.search.pojo.json2kt.Content;
+
+/**
+ * In-process stand-in for the Alfresco REST API calls the summarizer makes: ticket, search, content download and node update. It serves a synthetic corpus of text and PDF documents whose sizes are spread log-uniformly between minBytes and
+ * maxBytes. Text is generated from each node's seed on every download, PDFs are a few templates of 1 to 64 pages built at start.
+ *
+ * Like Alfresco, a node drops out of the search once an update setting crestBedrock:generateSummary to false has been received for it, and each page is cut from the nodes still matching when it is requested. So a client that pages by a fixed
+ * skipCount passes over nodes, and getPending() shows how many.
+ */
+public class AlfrescoStub implements Closeable
+{
+	public static final String TICKET = "TICKET_loadtest";
+	private static final String API = "/alfresco/api/-default-/public";
+	private static final String NODES = API + "/alfresco/versions/1/nodes/";
+	private static final int[] PDF_PAGES = {1, 4, 16, 64};
+	private static final String[] WORDS = {"the", "report", "revenue", "quarter", "customer", "contract", "shall", "agreement", "service", "delivery", "region", "growth", "cost", "risk", "policy", "employee", "market",
+	        "product", "annual", "forecast", "review", "project", "team", "budget", "compliance", "audit", "supplier", "invoice", "payment", "terms", "period", "increase", "decrease", "operating", "margin", "board",
+	        "approved", "pending", "section", "clause", "schedule", "warranty", "liability", "notice", "party", "data", "system", "release", "support", "incident"};
+
+	private static class Node
+	{
+		final String id;
+		final String name;
+		final String mimeType;
+		final int size;
+		final long seed;
+		final byte[] pdf; // null for text
+		volatile boolean summarized = false;
+
+		Node(String id, String name, String mimeType, int size, long seed, byte[] pdf)
+		{
+			this.id = id;
+			this.name = name;
+			this.mimeType = mimeType;
+			this.size = size;
+			this.seed = seed;
+			this.pdf = pdf;
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool(r ->
+	{
+		Thread t = new Thread(r, "alfresco-stub");
+		t.setDaemon(true);
+		return t;
+	});
+	private final List<Node> nodes = new ArrayList<Node>();
+	private final Map<String, Node> nodesById = new HashMap<String, Node>();
+	private final long latencyMillis;
+	private final AtomicLong tickets = new AtomicLong();
+	private final AtomicLong searches = new AtomicLong();
+	private final AtomicLong downloads = new AtomicLong();
+	private final AtomicLong downloadedBytes = new AtomicLong();
+	private final AtomicLong updates = new AtomicLong();
+
+	/**
+	 * @param documents
+	 *            Nodes in the corpus.
+	 * @param minBytes
+	 *            Smallest text document.
+	 * @param maxBytes
+	 *            Largest text document.
+	 * @param pdfShare
+	 *            Share of the nodes that are PDFs, 0 to 1.
+	 * @param latencyMillis
+	 *            Added to every response.
+	 * @param seed
+	 *            Seed of the corpus, the same seed gives the same corpus.
+	 */
+	public AlfrescoStub(int documents, int minBytes, int maxBytes, double pdfShare, long latencyMillis, long seed) throws IOException
+	{
+		this.latencyMillis = latencyMillis;
+		byte[][] pdfs = new byte[PDF_PAGES.length][];
+		if (pdfShare > 0)
+			for (int t = 0; t < PDF_PAGES.length; t++)
+				pdfs[t] = pdfOf(PDF_PAGES[t], seed + t);
+		Random random = new Random(seed);
+		for (int i = 0; i < documents; i++)
+		{
+			String id = String.format("%08x-0000-4000-8000-%012x", seed & 0xFFFFFFFFL, i);
+			double position = random.nextDouble();
+			if (random.nextDouble() < pdfShare)
+			{
+				byte[] pdf = pdfs[Math.min(PDF_PAGES.length - 1, (int) (position * PDF_PAGES.length))];
+				nodes.add(new Node(id, "Load test " + i + ".pdf", Content.MIME_PDFDoc, pdf.length, random.nextLong(), pdf));
+			} else
+			{
+				int size = (int) (minBytes * Math.pow((double) maxBytes / minBytes, position));
+				nodes.add(new Node(id, "Load test " + i + ".txt", Content.MIME_TEXTDoc, size, random.nextLong(), null));
+			}
+		}
+		for (Node node : nodes)
+			nodesById.put(node.id, node);
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 256);
+		server.setExecutor(executor);
+		server.createContext(API, this::handle);
+		server.start();
+	}
+
+	public int getPort()
+	{
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return Nodes still marked for summarization.
+	 */
+	public int getPending()
+	{
+		int pending = 0;
+		for (Node node : nodes)
+			if (!node.summarized)
+				pending++;
+		return pending;
+	}
+
+	/**
+	 * @return Bytes of content in the corpus.
+	 */
+	public long getCorpusBytes()
+	{
+		long bytes = 0;
+		for (Node node : nodes)
+			bytes += node.size;
+		return bytes;
+	}
+
+	/**
+	 * @return Requests served, by kind.
+	 */
+	public Map<String, Object> getStatistics()
+	{
+		Map<String, Object> statistics = new HashMap<String, Object>();
+		statistics.put("documents", nodes.size());
+		statistics.put("corpusBytes", getCorpusBytes());
+		statistics.put("pending", getPending());
+		statistics.put("tickets", tickets.get());
+		statistics.put("searches", searches.get());
+		statistics.put("downloads", downloads.get());
+		statistics.put("downloadedBytes", downloadedBytes.get());
+		statistics.put("updates", updates.get());
+		return statistics;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			if (latencyMillis > 0)
+				Thread.sleep(latencyMillis);
+			String path = exchange.getRequestURI().getPath();
+			String method = exchange.getRequestMethod();
+			if (path.equals(API + "/authentication/versions/1/tickets") && method.equals("POST"))
+			{
+				readBody(exchange);
+				tickets.incrementAndGet();
+				respond(exchange, 201, "application/json", new JSONObject().put("entry", new JSONObject().put("id", TICKET).put("userId", "loadtest")).toString());
+				return;
+			}
+			String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+			if (authorization == null || !authorization.startsWith("Basic "))
+			{
+				respond(exchange, 401, "application/json", "{\"error\":{\"statusCode\":401}}");
+				return;
+			}
+			if (path.equals(API + "/search/versions/1/search") && method.equals("POST"))
+				search(exchange);
+			else if (path.startsWith(NODES) && path.endsWith("/content") && method.equals("GET"))
+				content(exchange, nodesById.get(path.substring(NODES.length(), path.length() - "/content".length())));
+			else if (path.startsWith(NODES) && method.equals("PUT"))
+				update(exchange, nodesById.get(path.substring(NODES.length())));
+			else if (path.startsWith(NODES) && method.equals("GET"))
+			{
+				Node node = nodesById.get(path.substring(NODES.length()));
+				if (node == null)
+					respond(exchange, 404, "application/json", "{\"error\":{\"statusCode\":404}}");
+				else
+					respond(exchange, 200, "application/json", new JSONObject().put("entry", new JSONObject().put("id", node.id).put("properties", new JSONObject())).toString());
+			} else
+				respond(exchange, 404, "application/json", "{\"error\":{\"statusCode\":404}}");
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			respond(exchange, 503, "application/json", "{}");
+		} catch (RuntimeException e)
+		{
+			respond(exchange, 500, "application/json", new JSONObject().put("error", new JSONObject().put("statusCode", 500).put("briefSummary", e.toString())).toString());
+		}
+	}
+
+	private void search(HttpExchange exchange) throws IOException
+	{
+		JSONObject paging = new JSONObject(new String(readBody(exchange), StandardCharsets.UTF_8)).optJSONObject("paging");
+		int skipCount = (paging == null) ? 0 : paging.optInt("skipCount", 0);
+		int maxItems = (paging == null) ? 100 : paging.optInt("maxItems", 100);
+		searches.incrementAndGet();
+		List<Node> matching = new ArrayList<Node>();
+		for (Node node : nodes)
+			if (!node.summarized)
+				matching.add(node);
+		JSONArray entries = new JSONArray();
+		for (int i = skipCount; i < Math.min(matching.size(), skipCount + maxItems); i++)
+		{
+			Node node = matching.get(i);
+			JSONObject properties = new JSONObject().put("crestBedrock:generateSummary", true).put("crestBedrock:prompt", "Summarize the text above in one paragraph.")
+			        .put("crestBedrock:fm", SummarizeAlfrescoWithBedrock.anthropicClaudeModelId).put("crestBedrock:responseLength", 500).put("crestBedrock:temperature", 0.5);
+			JSONObject content = new JSONObject().put("mimeType", node.mimeType).put("mimeTypeName", node.mimeType).put("sizeInBytes", node.size).put("encoding", "UTF-8");
+			entries.put(new JSONObject().put("entry", new JSONObject().put("id", node.id).put("name", node.name).put("nodeType", "cm:content").put("modifiedAt", "2024-01-01T00:00:00.000+0000")
+			        .put("content", content).put("properties", properties)));
+		}
+		JSONObject pagination = new JSONObject().put("count", entries.length()).put("hasMoreItems", skipCount + entries.length() < matching.size()).put("totalItems", matching.size())
+		        .put("skipCount", skipCount).put("maxItems", maxItems);
+		respond(exchange, 200, "application/json", new JSONObject().put("list", new JSONObject().put("pagination", pagination).put("entries", entries)).toString());
+	}
+
+	private void content(HttpExchange exchange, Node node) throws IOException
+	{
+		if (node == null)
+		{
+			respond(exchange, 404, "application/json", "{\"error\":{\"statusCode\":404}}");
+			return;
+		}
+		byte[] body = (node.pdf != null) ? node.pdf : textOf(node.size, node.seed).getBytes(StandardCharsets.UTF_8);
+		downloads.incrementAndGet();
+		downloadedBytes.addAndGet(body.length);
+		exchange.getResponseHeaders().set("Content-Type", (node.pdf != null) ? node.mimeType : node.mimeType + ";charset=UTF-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody())
+		{
+			out.write(body);
+		}
+	}
+
+	private void update(HttpExchange exchange, Node node) throws IOException
+	{
+		JSONObject properties = new JSONObject(new String(readBody(exchange), StandardCharsets.UTF_8)).optJSONObject("properties");
+		if (node == null)
+		{
+			respond(exchange, 404, "application/json", "{\"error\":{\"statusCode\":404}}");
+			return;
+		}
+		if (properties != null && properties.has("crestBedrock:generateSummary") && !properties.getBoolean("crestBedrock:generateSummary"))
+			node.summarized = true;
+		updates.incrementAndGet();
+		respond(exchange, 200, "application/json", new JSONObject().put("entry", new JSONObject().put("id", node.id).put("name", node.name)).toString());
+	}
+
+	/**
+	 * @return About bytes characters of sentences of random words, in paragraphs.
+	 */
+	static String textOf(int bytes, long seed)
+	{
+		Random random = new Random(seed);
+		StringBuilder text = new StringBuilder(bytes + 16);
+		int sentences = 0;
+		while (text.length() < bytes)
+		{
+			int words = 8 + random.nextInt(13);
+			for (int w = 0; w < words; w++)
+			{
+				String word = WORDS[random.nextInt(WORDS.length)];
+				text.append((w == 0) ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word).append((w == words - 1) ? ". " : " ");
+			}
+			if (++sentences % 6 == 0)
+				text.append("\n\n");
+		}
+		text.setLength(bytes);
+		return text.toString();
+	}
+
+	private static byte[] pdfOf(int pages, long seed) throws IOException
+	{
+		try (PDDocument document = new PDDocument())
+		{
+			PDType1Font font = new PDType1Font(Standard14Fonts.FontName.HELVETICA);
+			String text = textOf(pages * 40 * 90, seed).replace("\n", " ");
+			for (int p = 0; p < pages; p++)
+			{
+				PDPage page = new PDPage();
+				document.addPage(page);
+				try (PDPageContentStream stream = new PDPageContentStream(document, page))
+				{
+					stream.beginText();
+					stream.setFont(font, 10);
+					stream.setLeading(14);
+					stream.newLineAtOffset(50, 740);
+					for (int l = 0; l < 40; l++)
+					{
+						int start = (p * 40 + l) * 90;
+						stream.showText(text.substring(start, start + 90));
+						stream.newLine();
+					}
+					stream.endText();
+				}
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			document.save(out);
+			return out.toByteArray();
+		}
+	}
+
+	static byte[] readBody(HttpExchange exchange) throws IOException
+	{
+		try (InputStream in = exchange.getRequestBody())
+		{
+			return in.readAllBytes();
+		}
+	}
+
+	static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException
+	{
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody())
+		{
+			out.write(bytes);
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
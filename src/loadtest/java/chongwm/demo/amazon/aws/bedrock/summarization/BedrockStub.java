@@ -0,0 +1,143 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for Bedrock runtime's InvokeModel with Claude text completions. Each request waits latencyMillis, give or take latencyJitter of it, and a throttleRate share of them is refused with ThrottlingException as Bedrock does when over
+ * quota. The completion is a title line followed by the first echoChars characters of the prompt, and the token count headers are a quarter of the characters.
+ */
+public class BedrockStub implements Closeable
+{
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool(r ->
+	{
+		Thread t = new Thread(r, "bedrock-stub");
+		t.setDaemon(true);
+		return t;
+	});
+	private final long latencyMillis;
+	private final double latencyJitter;
+	private final double throttleRate;
+	private final int echoChars;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong promptChars = new AtomicLong();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger peakInFlight = new AtomicInteger();
+
+	/**
+	 * @param latencyMillis
+	 *            Mean time to answer a request.
+	 * @param latencyJitter
+	 *            0 to 1, how far latency is spread either side of the mean as a share of it.
+	 * @param throttleRate
+	 *            0 to 1, share of the requests refused with ThrottlingException.
+	 * @param echoChars
+	 *            Characters of the prompt repeated in the completion.
+	 */
+	public BedrockStub(long latencyMillis, double latencyJitter, double throttleRate, int echoChars) throws IOException
+	{
+		this.latencyMillis = latencyMillis;
+		this.latencyJitter = latencyJitter;
+		this.throttleRate = throttleRate;
+		this.echoChars = echoChars;
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 256);
+		server.setExecutor(executor);
+		server.createContext("/model/", this::handle);
+		server.start();
+	}
+
+	public int getPort()
+	{
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return Requests answered, refused and at most in flight at once.
+	 */
+	public Map<String, Object> getStatistics()
+	{
+		Map<String, Object> statistics = new HashMap<String, Object>();
+		statistics.put("requests", requests.get());
+		statistics.put("throttled", throttled.get());
+		statistics.put("promptChars", promptChars.get());
+		statistics.put("peakInFlight", peakInFlight.get());
+		return statistics;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		int current = inFlight.incrementAndGet();
+		peakInFlight.accumulateAndGet(current, Math::max);
+		try
+		{
+			requests.incrementAndGet();
+			String path = exchange.getRequestURI().getPath();
+			if (!exchange.getRequestMethod().equals("POST") || !path.endsWith("/invoke"))
+			{
+				AlfrescoStub.readBody(exchange);
+				error(exchange, 404, "ResourceNotFoundException", "No such operation " + path);
+				return;
+			}
+			JSONObject body = new JSONObject(new String(AlfrescoStub.readBody(exchange), StandardCharsets.UTF_8));
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			if (random.nextDouble() < throttleRate)
+			{
+				throttled.incrementAndGet();
+				error(exchange, 429, "ThrottlingException", "Too many requests, please wait before trying again.");
+				return;
+			}
+			long latency = Math.round(latencyMillis * (1 + latencyJitter * (2 * random.nextDouble() - 1)));
+			if (latency > 0)
+				Thread.sleep(latency);
+			String prompt = body.optString("prompt");
+			promptChars.addAndGet(prompt.length());
+			String text = prompt.startsWith("Human:") ? prompt.substring("Human:".length()) : prompt;
+			String completion = " Summary\n\n" + text.substring(0, Math.min(text.length(), echoChars));
+			exchange.getResponseHeaders().set("X-Amzn-Bedrock-Input-Token-Count", Integer.toString(Math.max(1, prompt.length() / 4)));
+			exchange.getResponseHeaders().set("X-Amzn-Bedrock-Output-Token-Count", Integer.toString(Math.max(1, completion.length() / 4)));
+			AlfrescoStub.respond(exchange, 200, "application/json", new JSONObject().put("completion", completion).put("stop_reason", "stop_sequence").put("stop", "\n\nHuman:").toString());
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			error(exchange, 503, "ServiceUnavailableException", "Stopped");
+		} catch (RuntimeException e)
+		{
+			error(exchange, 400, "ValidationException", e.toString());
+		} finally
+		{
+			inFlight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Answers with an error the way Bedrock does, the error code in the x-amzn-ErrorType header.
+	 */
+	private static void error(HttpExchange exchange, int status, String type, String message) throws IOException
+	{
+		exchange.getResponseHeaders().set("x-amzn-ErrorType", type);
+		AlfrescoStub.respond(exchange, status, "application/json", new JSONObject().put("message", message).toString());
+	}
+
+	@Override
+	public void close()
+	{
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
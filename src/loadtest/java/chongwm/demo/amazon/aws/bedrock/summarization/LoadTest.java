@@ -0,0 +1,316 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import chongwm.demo.hyland.alfresco.search.pojo.json2kt.Content;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.bedrockruntime.BedrockRuntimeAsyncClient;
+
+/**
+ * Drives SummarizeAlfrescoWithBedrock against an AlfrescoStub and a BedrockStub in the same JVM, so that throughput can be measured and Lambda memory and concurrency sized without Alfresco, Bedrock or credentials. Run it with the loadtest profile,
+ * eg. mvn -Ploadtest verify -Dloadtest.args="documents=2000 concurrency=16 bedrockLatencyMillis=3000", and bound the heap as the Lambda memory size would with -Dloadtest.jvmArgs.
+ *
+ * Options are name=value arguments, see DEFAULTS. Each invocation is handleRequest() with a Context whose time runs out after timeoutSeconds. Invocations continue until the corpus is summarized or invocations have been made. Nodes deferred for lack of
+ * time are kept in memory for the next invocation instead of an S3 checkpoint. S3 is never called: the summary cache and near duplicate index stay in memory and every document is routed for direct inference.
+ *
+ * Each invocation prints documents per second, percentiles of document and inference latency, and peak heap. All of it, with the stubs' counters, is written as JSON to the result file.
+ */
+public class LoadTest
+{
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+	static
+	{
+		DEFAULTS.put("documents", "500"); // nodes in the corpus
+		DEFAULTS.put("minBytes", "2000"); // smallest text document
+		DEFAULTS.put("maxBytes", "200000"); // largest text document
+		DEFAULTS.put("pdfShare", "0.2"); // share of PDF documents, of 1 to 64 pages
+		DEFAULTS.put("seed", "1"); // the same seed gives the same corpus
+		DEFAULTS.put("alfrescoLatencyMillis", "0"); // added to every Alfresco response
+		DEFAULTS.put("bedrockLatencyMillis", "1500"); // mean time to a completion
+		DEFAULTS.put("bedrockLatencyJitter", "0.5"); // spread of the latency either side of the mean, as a share of it
+		DEFAULTS.put("throttleRate", "0.02"); // share of Bedrock requests refused with ThrottlingException
+		DEFAULTS.put("echoChars", "600"); // characters of the prompt echoed in each completion
+		DEFAULTS.put("concurrency", "8"); // bedrockMaxInFlight
+		DEFAULTS.put("fetchWorkers", "4"); // pipelineFetchWorkers
+		DEFAULTS.put("bedrockInitialRate", "10"); // requests per second the rate limiter starts at
+		DEFAULTS.put("invocations", "1"); // most handler invocations
+		DEFAULTS.put("timeoutSeconds", "900"); // Lambda timeout of each invocation
+		DEFAULTS.put("log", "target/loadtest.log"); // handler log
+		DEFAULTS.put("result", "target/loadtest-result.json");
+	}
+
+	/**
+	 * The handler with its S3 checkpoint and batch submission replaced, so that nothing leaves the JVM but calls to the stubs.
+	 */
+	static class Handler extends SummarizeAlfrescoWithBedrock
+	{
+		private Set<String> checkpoint = new LinkedHashSet<String>();
+
+		Handler() throws Exception
+		{
+			super();
+		}
+
+		@Override
+		protected Set<String> loadCheckpoint()
+		{
+			return checkpoint;
+		}
+
+		@Override
+		protected void saveCheckpoint(Set<String> deferred)
+		{
+			checkpoint = new LinkedHashSet<String>(deferred);
+		}
+
+		@Override
+		protected void finishBatch()
+		{
+		}
+	}
+
+	/**
+	 * Lambda context of one invocation. The handler's log goes to a file.
+	 */
+	static class StubContext implements Context
+	{
+		private final long deadline;
+		private final LambdaLogger logger;
+
+		StubContext(long timeoutMillis, LambdaLogger logger)
+		{
+			this.deadline = System.currentTimeMillis() + timeoutMillis;
+			this.logger = logger;
+		}
+
+		public String getAwsRequestId()
+		{
+			return "loadtest-" + deadline;
+		}
+
+		public String getLogGroupName()
+		{
+			return "loadtest";
+		}
+
+		public String getLogStreamName()
+		{
+			return "loadtest";
+		}
+
+		public String getFunctionName()
+		{
+			return "loadtest";
+		}
+
+		public String getFunctionVersion()
+		{
+			return "$LATEST";
+		}
+
+		public String getInvokedFunctionArn()
+		{
+			return "arn:aws:lambda:us-east-1:000000000000:function:loadtest";
+		}
+
+		public CognitoIdentity getIdentity()
+		{
+			return null;
+		}
+
+		public ClientContext getClientContext()
+		{
+			return null;
+		}
+
+		public int getRemainingTimeInMillis()
+		{
+			return (int) Math.max(0, deadline - System.currentTimeMillis());
+		}
+
+		public int getMemoryLimitInMB()
+		{
+			return (int) (Runtime.getRuntime().maxMemory() / 1024 / 1024);
+		}
+
+		public LambdaLogger getLogger()
+		{
+			return logger;
+		}
+	}
+
+	static class FileLogger implements LambdaLogger, AutoCloseable
+	{
+		private final Writer writer;
+
+		FileLogger(File file) throws IOException
+		{
+			if (file.getParentFile() != null)
+				file.getParentFile().mkdirs();
+			writer = new BufferedWriter(new FileWriter(file, StandardCharsets.UTF_8));
+		}
+
+		public synchronized void log(String message)
+		{
+			try
+			{
+				writer.write(message);
+			} catch (IOException e)
+			{ // the log is a by-product, the run goes on
+			}
+		}
+
+		public void log(byte[] message)
+		{
+			log(new String(message, StandardCharsets.UTF_8));
+		}
+
+		public synchronized void close() throws IOException
+		{
+			writer.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> options = new LinkedHashMap<String, String>(DEFAULTS);
+		for (String arg : args)
+		{
+			int equals = arg.indexOf('=');
+			if (equals < 0 || !DEFAULTS.containsKey(arg.substring(0, equals)))
+				throw new IllegalArgumentException("Unknown option " + arg + ", expected one of " + DEFAULTS.keySet());
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		if (System.getenv("AWS_REGION") == null && System.getProperty("aws.region") == null)
+			System.setProperty("aws.region", Region.US_EAST_1.toString()); // before SummarizeAlfrescoWithBedrock builds its clients
+
+		try (AlfrescoStub alfresco = new AlfrescoStub(intOf(options, "documents"), intOf(options, "minBytes"), intOf(options, "maxBytes"), doubleOf(options, "pdfShare"), longOf(options, "alfrescoLatencyMillis"), longOf(options, "seed"));
+		        BedrockStub bedrock = new BedrockStub(longOf(options, "bedrockLatencyMillis"), doubleOf(options, "bedrockLatencyJitter"), doubleOf(options, "throttleRate"), intOf(options, "echoChars"));
+		        FileLogger logger = new FileLogger(new File(options.get("log"))))
+		{
+			System.out.println("Corpus of " + options.get("documents") + " documents, " + alfresco.getCorpusBytes() + " bytes. Alfresco stub on port " + alfresco.getPort() + ", Bedrock stub on port " + bedrock.getPort() + ".");
+			configure(options, alfresco, bedrock);
+			Handler handler = new Handler();
+			JSONArray invocations = new JSONArray();
+			long runStart = System.nanoTime();
+			int summarized = 0;
+			for (int i = 0; i < intOf(options, "invocations") && alfresco.getPending() > 0; i++)
+			{
+				resetPeakHeap();
+				long start = System.nanoTime();
+				Map<String, Object> summary = handler.handleRequest(new LinkedHashMap<String, Object>(), new StubContext(longOf(options, "timeoutSeconds") * 1000, logger));
+				double seconds = (System.nanoTime() - start) / 1e9;
+				int done = (Integer) summary.get("summarizations");
+				summarized += done;
+				long peakHeap = getPeakHeap();
+				System.out.println(String.format("Invocation %d: %d documents in %.1fs, %.2f documents/s, document ms p50 %d p95 %d p99 %d, inference ms p50 %d p95 %d p99 %d, peak heap %dMB, %d left.", i + 1, done, seconds,
+				        done / seconds, percentile(handler, "DocumentTime", 50), percentile(handler, "DocumentTime", 95), percentile(handler, "DocumentTime", 99), percentile(handler, "InferenceTime", 50),
+				        percentile(handler, "InferenceTime", 95), percentile(handler, "InferenceTime", 99), peakHeap / 1024 / 1024, alfresco.getPending()));
+				invocations.put(new JSONObject(summary).put("seconds", seconds).put("documentsPerSecond", done / seconds).put("peakHeapBytes", peakHeap));
+			}
+			double seconds = (System.nanoTime() - runStart) / 1e9;
+			System.out.println(String.format("%d documents in %.1fs, %.2f documents/s. Alfresco %s. Bedrock %s.", summarized, seconds, summarized / seconds, alfresco.getStatistics(), bedrock.getStatistics()));
+			JSONObject result = new JSONObject().put("options", new JSONObject(options)).put("jvm", new JSONObject().put("maxHeapBytes", Runtime.getRuntime().maxMemory()).put("processors", Runtime.getRuntime().availableProcessors()))
+			        .put("summarized", summarized).put("seconds", seconds).put("documentsPerSecond", summarized / seconds).put("invocations", invocations)
+			        .put("alfresco", new JSONObject(alfresco.getStatistics())).put("bedrock", new JSONObject(bedrock.getStatistics()));
+			File resultFile = new File(options.get("result"));
+			if (resultFile.getParentFile() != null)
+				resultFile.getParentFile().mkdirs();
+			try (Writer writer = new FileWriter(resultFile, StandardCharsets.UTF_8))
+			{
+				writer.write(result.toString(2));
+			}
+			System.out.println("Results written to " + resultFile);
+		}
+		System.exit(0); // the handler's pools are meant to outlive an invocation, do not wait for them
+	}
+
+	/**
+	 * Points the handler's settings at the stubs. They are read from the environment when SummarizeAlfrescoWithBedrock is loaded, so they are replaced before the handler is created.
+	 */
+	private static void configure(Map<String, String> options, AlfrescoStub alfresco, BedrockStub bedrock)
+	{
+		SummarizeAlfrescoWithBedrock.url = "localhost:" + alfresco.getPort();
+		SummarizeAlfrescoWithBedrock.httpProtocol = false;
+		SummarizeAlfrescoWithBedrock.awsSecretsManagerSecretArn = null;
+		SummarizeAlfrescoWithBedrock.userId = "loadtest";
+		SummarizeAlfrescoWithBedrock.password = "loadtest";
+		SummarizeAlfrescoWithBedrock.queryJson = "{\"query\":{\"language\":\"afts\",\"query\":\"crestBedrock:generateSummary:'true'\"},\"include\":[\"properties\"]}";
+		SummarizeAlfrescoWithBedrock.bedrockMaxInFlight = intOf(options, "concurrency");
+		SummarizeAlfrescoWithBedrock.pipelineFetchWorkers = intOf(options, "fetchWorkers");
+		SummarizeAlfrescoWithBedrock.bedrockRateLimiter = new AdaptiveRateLimiter(doubleOf(options, "bedrockInitialRate"), 0.05, SummarizeAlfrescoWithBedrock.bedrockMaxRate, 1, 0.5,
+		        SummarizeAlfrescoWithBedrock.bedrockBackoffBaseMillis, SummarizeAlfrescoWithBedrock.bedrockBackoffMaxMillis);
+		SummarizeAlfrescoWithBedrock.bedrockAsyncClient = BedrockRuntimeAsyncClient.builder().region(Region.US_EAST_1).endpointOverride(URI.create("http://localhost:" + bedrock.getPort()))
+		        .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("loadtest", "loadtest")))
+		        .overrideConfiguration(b -> b.apiCallTimeout(Duration.ofSeconds(900)).apiCallAttemptTimeout(Duration.ofSeconds(300))).build();
+		// nothing in S3: caches in memory only, no batch route
+		SummarizeAlfrescoWithBedrock.summaryCacheStore = "none";
+		SummarizeAlfrescoWithBedrock.nearDuplicateStore = "none";
+		SummarizeAlfrescoWithBedrock.jfrRecordingThresholdMillis = 0;
+		SummarizeAlfrescoWithBedrock.metricsNamespace = "none";
+		SummarizeAlfrescoWithBedrock.claudeSyncMaxInputTokens = SummarizeAlfrescoWithBedrock.claudeMaxInputTokens;
+		SummarizeAlfrescoWithBedrock.workBatchThresholdBytes = 0;
+		SummarizeAlfrescoWithBedrock.workPlanner = new WorkPlanner(WorkPlanner.orderOf(SummarizeAlfrescoWithBedrock.workOrder), Set.of(Content.MIME_PDFDoc, Content.MIME_TEXTDoc), 0);
+	}
+
+	private static long percentile(Handler handler, String name, double percentile)
+	{
+		RunMetrics.Histogram histogram = handler.metrics.getHistogram(name);
+		return (histogram == null) ? 0 : histogram.getPercentile(percentile);
+	}
+
+	private static void resetPeakHeap()
+	{
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+	}
+
+	private static long getPeakHeap()
+	{
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+
+	private static int intOf(Map<String, String> options, String name)
+	{
+		return Integer.parseInt(options.get(name));
+	}
+
+	private static long longOf(Map<String, String> options, String name)
+	{
+		return Long.parseLong(options.get(name));
+	}
+
+	private static double doubleOf(Map<String, String> options, String name)
+	{
+		return Double.parseDouble(options.get(name));
+	}
+}
@@ -0,0 +1,146 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Paces requests to a throttled service and learns the rate it will sustain. Requests are released by a token bucket. The bucket's rate is adjusted by additive increase, multiplicative decrease (AIMD): every success raises the rate a little, and a
+ * throttle cuts it by decreaseFactor. Only throttles of requests sent since the last cut count, so a burst of throttles from one overload halves the rate once, not once per request.
+ *
+ * It also computes retry delays: exponential backoff with full jitter, so that requests throttled together do not all return together.
+ */
+public class AdaptiveRateLimiter
+{
+	private final double minRate;
+	private final double maxRate;
+	private final double increasePerSecond;
+	private final double decreaseFactor;
+	private final long backoffBaseMillis;
+	private final long backoffMaxMillis;
+	private double rate; // requests per second
+	private double tokens;
+	private long refilledAt = System.nanoTime();
+	private long lastDecreaseAt;
+	private long successes = 0;
+	private long throttles = 0;
+	private long decreases = 0;
+	private long pacedMillis = 0;
+
+	/**
+	 * @param initialRate
+	 *            Requests per second to start with.
+	 * @param minRate
+	 *            The rate is never cut below this.
+	 * @param maxRate
+	 *            The rate is never raised above this.
+	 * @param increasePerSecond
+	 *            How much the rate rises per second while requests succeed at the current rate.
+	 * @param decreaseFactor
+	 *            Multiplier applied to the rate on a throttle, eg. 0.5
+	 * @param backoffBaseMillis
+	 *            Upper bound of the first retry delay. It doubles with each attempt.
+	 * @param backoffMaxMillis
+	 *            Largest upper bound of a retry delay.
+	 */
+	public AdaptiveRateLimiter(double initialRate, double minRate, double maxRate, double increasePerSecond, double decreaseFactor, long backoffBaseMillis, long backoffMaxMillis)
+	{
+		this.minRate = Math.max(0.01, minRate);
+		this.maxRate = Math.max(this.minRate, maxRate);
+		this.rate = Math.min(this.maxRate, Math.max(this.minRate, initialRate));
+		this.increasePerSecond = increasePerSecond;
+		this.decreaseFactor = Math.min(1, Math.max(0.01, decreaseFactor));
+		this.backoffBaseMillis = Math.max(1, backoffBaseMillis);
+		this.backoffMaxMillis = Math.max(this.backoffBaseMillis, backoffMaxMillis);
+		this.tokens = 1;
+	}
+
+	/**
+	 * Takes a token for one request.
+	 *
+	 * @return Milliseconds the request should wait before it is sent. 0 if it can go now.
+	 */
+	public synchronized long reserve()
+	{
+		long now = System.nanoTime();
+		double burst = Math.max(1, rate); // at most a second's worth of requests at once
+		tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * rate);
+		refilledAt = now;
+		tokens -= 1;
+		if (tokens >= 0)
+			return 0;
+		long wait = (long) Math.ceil(-tokens / rate * 1000);
+		pacedMillis += wait;
+		return wait;
+	}
+
+	/**
+	 * Records a request that was served.
+	 */
+	public synchronized void onSuccess()
+	{
+		successes++;
+		rate = Math.min(maxRate, rate + increasePerSecond / rate); // rate successes a second raise the rate by increasePerSecond
+	}
+
+	/**
+	 * Records a request the service throttled.
+	 *
+	 * @param sentAtNanos
+	 *            System.nanoTime() when the request was sent.
+	 */
+	public synchronized void onThrottle(long sentAtNanos)
+	{
+		throttles++;
+		if (decreases > 0 && sentAtNanos - lastDecreaseAt < 0)
+			return; // sent at the old rate, the cut already accounts for it
+		lastDecreaseAt = System.nanoTime();
+		decreases++;
+		rate = Math.max(minRate, rate * decreaseFactor);
+		tokens = Math.min(tokens, 0); // no burst straight after a throttle
+	}
+
+	/**
+	 * @param attempt
+	 *            Number of attempts already made, from 1.
+	 * @return Random delay between 0 and min(backoffMaxMillis, backoffBaseMillis * 2^(attempt-1)).
+	 */
+	public long backoffMillis(int attempt)
+	{
+		long ceiling = backoffBaseMillis << Math.min(30, Math.max(0, attempt - 1));
+		if (ceiling <= 0 || ceiling > backoffMaxMillis)
+			ceiling = backoffMaxMillis;
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	public synchronized double getRate()
+	{
+		return rate;
+	}
+
+	public synchronized long getSuccesses()
+	{
+		return successes;
+	}
+
+	public synchronized long getThrottles()
+	{
+		return throttles;
+	}
+
+	public synchronized long getDecreases()
+	{
+		return decreases;
+	}
+
+	/**
+	 * @return Total time requests were held back to keep to the rate.
+	 */
+	public synchronized long getPacedMillis()
+	{
+		return pacedMillis;
+	}
+
+	public synchronized String getStatistics()
+	{
+		return String.format("Rate limiter: %.2f requests/s, %d successes, %d throttles, %d rate cuts, %d ms paced.", rate, successes, throttles, decreases, pacedMillis);
+	}
+}
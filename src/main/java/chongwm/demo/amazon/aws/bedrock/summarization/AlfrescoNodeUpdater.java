@@ -0,0 +1,236 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Writes node property updates behind the caller's back. submit() queues an update and returns at once, and up to parallelism updates are sent at a time. While an update waits, further updates to the same node are merged into it, later values
+ * winning, so a node is written once rather than once per change. Updates to one node are never sent concurrently, so they reach the repository in the order they were submitted.
+ *
+ * Updates that fail with a 5xx, a 401 or an I/O error are retried after a random delay that grows with each attempt, up to maxAttempts. Call flush() before the Lambda function returns, as the execution environment is frozen afterwards.
+ */
+public class AlfrescoNodeUpdater implements Closeable
+{
+	/**
+	 * Sends one update.
+	 */
+	@FunctionalInterface
+	public interface Sender
+	{
+		/**
+		 * @param properties
+		 *            Properties to set on the node.
+		 * @return HTTP status code of the repository's response.
+		 * @throws IOException
+		 *             if the request could not be sent or the response not read.
+		 */
+		int put(String nodeId, JsonObject properties) throws IOException;
+	}
+
+	private static class Update
+	{
+		final JsonObject properties;
+		int attempts = 0;
+
+		Update(JsonObject properties)
+		{
+			this.properties = properties;
+		}
+	}
+
+	private final Sender sender;
+	private final int maxAttempts;
+	private final long backoffBaseMillis;
+	private final long backoffMaxMillis;
+	private final Consumer<String> log;
+	private final ScheduledExecutorService executor;
+	private final Map<String, Update> pending = new HashMap<String, Update>(); // waiting to be sent, by node id
+	private final Set<String> inFlight = new HashSet<String>();
+	private int submitted = 0;
+	private int coalesced = 0;
+	private int sent = 0;
+	private int retries = 0;
+	private int failed = 0;
+
+	/**
+	 * @param sender
+	 *            Sends updates, eg. over the pooled client of an AlfrescoSession.
+	 * @param parallelism
+	 *            Updates sent at the same time. Should not exceed the connection pool.
+	 * @param maxAttempts
+	 *            Attempts per update, the first included.
+	 * @param backoffBaseMillis
+	 *            Upper bound of the first retry delay. It doubles with each attempt.
+	 * @param backoffMaxMillis
+	 *            Largest upper bound of a retry delay.
+	 */
+	public AlfrescoNodeUpdater(Sender sender, int parallelism, int maxAttempts, long backoffBaseMillis, long backoffMaxMillis, Consumer<String> log)
+	{
+		this.sender = sender;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.backoffBaseMillis = Math.max(1, backoffBaseMillis);
+		this.backoffMaxMillis = Math.max(this.backoffBaseMillis, backoffMaxMillis);
+		this.log = log;
+		ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(Math.max(1, parallelism), r ->
+		{
+			Thread t = new Thread(r, "alfresco-update");
+			t.setDaemon(true);
+			return t;
+		});
+		pool.setRemoveOnCancelPolicy(true);
+		this.executor = pool;
+	}
+
+	/**
+	 * Queues an update. If an update of the same node is still waiting, properties are merged into it.
+	 *
+	 * @param properties
+	 *            Properties to set. Not modified.
+	 */
+	public synchronized void submit(String nodeId, JsonObject properties)
+	{
+		submitted++;
+		Update waiting = pending.get(nodeId);
+		if (waiting != null)
+		{
+			merge(waiting.properties, properties);
+			coalesced++;
+			return;
+		}
+		pending.put(nodeId, new Update(properties.deepCopy()));
+		if (!inFlight.contains(nodeId)) // otherwise it is sent when the one in flight ends
+			executor.execute(() -> send(nodeId));
+	}
+
+	private void send(String nodeId)
+	{
+		Update update;
+		synchronized (this)
+		{
+			if (inFlight.contains(nodeId))
+				return;
+			update = pending.remove(nodeId);
+			if (update == null)
+				return; // sent by an earlier task
+			inFlight.add(nodeId);
+		}
+		update.attempts++;
+		int status = -1;
+		String error = null;
+		try
+		{
+			status = sender.put(nodeId, update.properties);
+		} catch (IOException | RuntimeException e)
+		{
+			error = e.toString();
+		}
+		boolean ok = status == HttpURLConnection.HTTP_OK;
+		boolean retry = !ok && isTransient(status) && update.attempts < maxAttempts;
+		synchronized (this)
+		{
+			inFlight.remove(nodeId);
+			if (ok)
+				sent++;
+			else if (retry)
+			{
+				retries++;
+				Update newer = pending.get(nodeId);
+				if (newer != null)
+					merge(update.properties, newer.properties); // submitted while this one was in flight, its values win
+				pending.put(nodeId, update);
+				executor.schedule(() -> send(nodeId), backoffMillis(update.attempts), TimeUnit.MILLISECONDS);
+			}
+			else
+				failed++;
+			if (!retry && pending.containsKey(nodeId))
+				executor.execute(() -> send(nodeId));
+			notifyAll();
+		}
+		if (!ok)
+			log.accept("Update of node " + nodeId + " " + ((error == null) ? "returned HTTP " + status : "failed. " + error) + (retry ? ", attempt " + update.attempts + " of " + maxAttempts + ", retrying." : ", giving up."));
+	}
+
+	/**
+	 * @param status
+	 *            HTTP status, or -1 if no response was received.
+	 */
+	private static boolean isTransient(int status)
+	{
+		return status < 0 || status >= HttpURLConnection.HTTP_INTERNAL_ERROR || status == HttpURLConnection.HTTP_UNAUTHORIZED;
+	}
+
+	private long backoffMillis(int attempt)
+	{
+		long ceiling = backoffBaseMillis << Math.min(30, Math.max(0, attempt - 1));
+		if (ceiling <= 0 || ceiling > backoffMaxMillis)
+			ceiling = backoffMaxMillis;
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	private static void merge(JsonObject into, JsonObject from)
+	{
+		for (Map.Entry<String, JsonElement> property : from.entrySet())
+			into.add(property.getKey(), property.getValue().deepCopy());
+	}
+
+	/**
+	 * Waits until every queued update has been sent or has failed.
+	 *
+	 * @param timeoutMillis
+	 *            Longest wait.
+	 * @return false if updates were still outstanding when the wait timed out.
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean flush(long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!pending.isEmpty() || !inFlight.isEmpty())
+		{
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0)
+				return false;
+			wait(wait);
+		}
+		return true;
+	}
+
+	/**
+	 * @return Updates waiting or in flight.
+	 */
+	public synchronized int getOutstanding()
+	{
+		return pending.size() + inFlight.size();
+	}
+
+	public synchronized int getFailed()
+	{
+		return failed;
+	}
+
+	public synchronized String getStatistics()
+	{
+		return "Node updater: " + submitted + " updates submitted, " + coalesced + " merged into a waiting update, " + sent + " sent, " + retries + " retries, " + failed + " failed, " + getOutstanding() + " outstanding.";
+	}
+
+	/**
+	 * Stops the sender threads. Updates not yet sent are dropped, call flush() first.
+	 */
+	@Override
+	public void close()
+	{
+		executor.shutdownNow();
+	}
+}
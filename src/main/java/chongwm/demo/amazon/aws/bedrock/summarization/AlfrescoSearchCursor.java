@@ -0,0 +1,212 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntSupplier;
+
+import chongwm.demo.hyland.alfresco.search.pojo.json2kt.Entries;
+import chongwm.demo.hyland.alfresco.search.pojo.json2kt.Entry;
+import chongwm.demo.hyland.alfresco.search.pojo.json2kt.Pagination;
+import chongwm.demo.hyland.alfresco.search.pojo.json2kt.SearchResultsList;
+
+/**
+ * Lazy cursor over the pages of an Alfresco search. Only the page being consumed and the page after it are held in memory. The next page is requested in the background as soon as the current page is handed out, so the search round trip overlaps with the
+ * summarization of the current page.
+ *
+ * Alfresco pages with skipCount/maxItems. Nodes that are summarized drop out of the query (crestBedrock:generateSummary is reset to false) once the index catches up, which moves the nodes not yet read towards the start of the result set. So the
+ * next skipCount is not the end of the last page but the number of distinct nodes read so far less those reported by released, an upper bound of how many of them have since dropped out. As released counts nodes whether or not the index has caught up
+ * with them, a page may start with nodes read before. Those are returned again, callers skip them by id, but no unread node is passed over as long as the search keeps its order between pages.
+ *
+ * While the index lags a whole page may hold only nodes read before. The same page is then asked for again after a growing delay, and after MAX_STALLED_PAGES such pages in a row the cursor ends (see isStalled()) and leaves the rest to the next run
+ * rather than skipping ahead.
+ */
+public class AlfrescoSearchCursor implements Iterator<Entry>, Closeable
+{
+	/**
+	 * Fetches one page of search results.
+	 */
+	@FunctionalInterface
+	public interface PageFetcher
+	{
+		SearchResultsList fetchPage(int skipCount, int maxItems) throws IOException;
+	}
+
+	protected static final int MAX_STALLED_PAGES = 5; // pages in a row without an unread node before the cursor gives up
+	protected static final long STALLED_PAGE_DELAY_MILLIS = 1000; // wait before asking again for a page without an unread node, times the pages in a row
+
+	private final PageFetcher pageFetcher;
+	private final int pageSize;
+	private final IntSupplier released;
+	private final Set<String> read = new HashSet<String>(); // ids of the nodes on the pages fetched so far
+	private final ExecutorService prefetchExecutor;
+	private CompletableFuture<SearchResultsList> nextPage;
+	private Iterator<Entries> currentPage = Collections.emptyIterator();
+	private int stalledPages = 0; // pages in a row without an unread node
+	private int pagesFetched = 0;
+	private int entriesReturned = 0;
+	private int totalItems = -1;
+
+	/**
+	 * @param pageFetcher
+	 *            Performs the actual search request for a given skipCount and maxItems.
+	 * @param pageSize
+	 *            Number of entries requested per page (Alfresco maxItems).
+	 */
+	public AlfrescoSearchCursor(PageFetcher pageFetcher, int pageSize)
+	{
+		this(pageFetcher, pageSize, () -> 0);
+	}
+
+	/**
+	 * @param pageFetcher
+	 *            Performs the actual search request for a given skipCount and maxItems.
+	 * @param pageSize
+	 *            Number of entries requested per page (Alfresco maxItems).
+	 * @param released
+	 *            Number of the nodes read through this cursor that have since been updated so that they no longer match the query, or more. Asked as each page is requested.
+	 */
+	public AlfrescoSearchCursor(PageFetcher pageFetcher, int pageSize, IntSupplier released)
+	{
+		if (pageSize <= 0)
+			throw new IllegalArgumentException("pageSize must be positive");
+		this.pageFetcher = pageFetcher;
+		this.pageSize = pageSize;
+		this.released = released;
+		this.prefetchExecutor = Executors.newSingleThreadExecutor(r ->
+		{
+			Thread t = new Thread(r, "alfresco-search-prefetch");
+			t.setDaemon(true);
+			return t;
+		});
+		this.nextPage = requestPage(0);
+	}
+
+	/**
+	 * @param delayMillis
+	 *            Wait before the request is sent, so that the index can catch up.
+	 */
+	private CompletableFuture<SearchResultsList> requestPage(long delayMillis)
+	{
+		int readSoFar = read.size();
+		return CompletableFuture.supplyAsync(() ->
+		{
+			try
+			{
+				if (delayMillis > 0)
+					Thread.sleep(delayMillis);
+				// Worked out only when the request is sent, as the nodes of the page being consumed are released meanwhile.
+				int skipCount = Math.max(0, readSoFar - Math.max(0, released.getAsInt()));
+				return pageFetcher.fetchPage(skipCount, pageSize);
+			} catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new UncheckedIOException(new InterruptedIOException("Alfresco search prefetch interrupted"));
+			}
+		}, prefetchExecutor);
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		while (!currentPage.hasNext())
+		{
+			if (nextPage == null)
+				return false;
+			SearchResultsList page = awaitNextPage();
+			List<Entries> entries = (page == null) ? null : page.getEntries();
+			Pagination pagination = (page == null) ? null : page.getPagination();
+			pagesFetched++;
+			if (pagination != null)
+				totalItems = pagination.getTotalItems();
+
+			int count = (entries == null) ? 0 : entries.size();
+			boolean unread = false;
+			for (int i = 0; i < count; i++)
+				if (read.add(entries.get(i).getEntry().getId()))
+					unread = true;
+			stalledPages = (count > 0 && !unread) ? stalledPages + 1 : 0;
+			if (count > 0 && pagination != null && pagination.getHasMoreItems() && stalledPages <= MAX_STALLED_PAGES)
+			{
+				nextPage = requestPage(stalledPages * STALLED_PAGE_DELAY_MILLIS); // prefetch page N+1 while page N is consumed
+			}
+			else
+				nextPage = null;
+			currentPage = (entries == null) ? Collections.emptyIterator() : entries.iterator();
+		}
+		return true;
+	}
+
+	private SearchResultsList awaitNextPage()
+	{
+		try
+		{
+			return nextPage.join();
+		} catch (CompletionException e)
+		{
+			nextPage = null;
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	@Override
+	public Entry next()
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+		entriesReturned++;
+		return currentPage.next().getEntry();
+	}
+
+	public int getPagesFetched()
+	{
+		return pagesFetched;
+	}
+
+	public int getEntriesReturned()
+	{
+		return entriesReturned;
+	}
+
+	/**
+	 * @return true if the cursor ended because the index did not catch up with the nodes read, so that more may match the query.
+	 */
+	public boolean isStalled()
+	{
+		return stalledPages > MAX_STALLED_PAGES;
+	}
+
+	/**
+	 * @return totalItems reported by the most recent page, or -1 if no page has been read yet.
+	 */
+	public int getTotalItems()
+	{
+		return totalItems;
+	}
+
+	@Override
+	public void close()
+	{
+		if (nextPage != null)
+			nextPage.cancel(true);
+		nextPage = null;
+		currentPage = Collections.emptyIterator();
+		prefetchExecutor.shutdownNow();
+	}
+}
@@ -0,0 +1,273 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.function.LongConsumer;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+
+/**
+ * One authenticated connection to an Alfresco Content Services repository, shared by search, content download and node updates. It owns a single pooled HttpClient, so TLS connections are reused across documents and, when kept in a static field, across
+ * warm Lambda invocations.
+ *
+ * The Alfresco ticket is cached and only renewed when it is older than the configured time to live, or when the repository answers 401.
+ */
+public class AlfrescoSession implements Closeable
+{
+	/**
+	 * Supplies the Alfresco service account credentials.
+	 */
+	@FunctionalInterface
+	public interface CredentialSource
+	{
+		/**
+		 * @param refresh
+		 *            true if previously returned credentials were rejected and should be looked up again rather than served from a cache.
+		 * @return userId at index 0 and password at index 1.
+		 */
+		String[] getUserIdAndPassword(boolean refresh) throws IOException;
+	}
+
+	private final String baseUrl;
+	private final CredentialSource credentialSource;
+	private final long ticketTtlMillis;
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient httpClient;
+	private final RequestConfig defaultRequestConfig = RequestConfig.custom().setCookieSpec(CookieSpecs.STANDARD).build();
+	private volatile long deadline = Long.MAX_VALUE;
+	private volatile String encodedTicket;
+	private volatile long ticketIssuedAt;
+	private volatile int ticketsIssued = 0;
+	private volatile LongConsumer authTimer = null;
+
+	/**
+	 * This session trusts all certificates in order to accommodate repositories that use self-signed certificates.
+	 *
+	 * @param host
+	 *            The host/domain name of the Alfresco Content Services repository. eg. alfservice.amazonaws.com
+	 * @param https
+	 *            True if the repository should be accessed with HTTPS.
+	 * @param maxConnectionsPerRoute
+	 *            Size of the connection pool. Everything goes to the same host so this is also the total.
+	 * @param ticketTtlMillis
+	 *            Age after which a cached ticket is renewed before use.
+	 * @param credentialSource
+	 *            Where the service account credentials come from.
+	 * @throws KeyManagementException
+	 * @throws NoSuchAlgorithmException
+	 * @throws KeyStoreException
+	 */
+	public AlfrescoSession(String host, boolean https, int maxConnectionsPerRoute, long ticketTtlMillis, CredentialSource credentialSource) throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException
+	{
+		this.baseUrl = (https ? "https" : "http") + "://" + host;
+		this.ticketTtlMillis = ticketTtlMillis;
+		this.credentialSource = credentialSource;
+
+		SSLContext sslContext = new SSLContextBuilder().loadTrustMaterial(null, (chain, authType) -> true).build(); // SSL context that trusts all certificates
+		Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory> create().register("http", PlainConnectionSocketFactory.getSocketFactory())
+				                                                          .register("https", new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE)).build();
+		this.connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+		this.connectionManager.setMaxTotal(maxConnectionsPerRoute);
+		this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute); // HttpClient defaults to 2
+		this.connectionManager.setValidateAfterInactivity(2000); // pooled connections may have gone stale while the Lambda environment was frozen
+		this.httpClient = HttpClients.custom().setConnectionManager(connectionManager)
+				                     .setDefaultRequestConfig(defaultRequestConfig).build();
+	}
+
+	/**
+	 * @param path
+	 *            Path starting with /alfresco/
+	 * @return Full URL of path on this repository.
+	 */
+	public String endpoint(String path)
+	{
+		return baseUrl + path;
+	}
+
+	/**
+	 * Bounds the requests sent from now on. The session outlives invocations, so each invocation sets its own deadline.
+	 *
+	 * @param deadline
+	 *            System.currentTimeMillis() by which requests must end, Long.MAX_VALUE for none.
+	 */
+	public void setDeadline(long deadline)
+	{
+		this.deadline = deadline;
+	}
+
+	/**
+	 * @param authTimer
+	 *            Is given the milliseconds each authentication took, eg. to record them in RunMetrics. null for none.
+	 */
+	public void setAuthTimer(LongConsumer authTimer)
+	{
+		this.authTimer = authTimer;
+	}
+
+	/**
+	 * Sends a request with the session's ticket. If the repository answers 401 the ticket is renewed and the request is sent once more. The request entity, if any, must be repeatable.
+	 *
+	 * If a deadline is set, waits for a pooled connection, for the connection to open and between packets of the response are limited to the time left before it.
+	 *
+	 * @return The response, which the caller must close.
+	 * @throws InterruptedIOException
+	 *             if the deadline has passed.
+	 * @throws IOException
+	 */
+	public CloseableHttpResponse execute(HttpRequestBase request) throws IOException
+	{
+		long left = deadline - System.currentTimeMillis();
+		if (deadline != Long.MAX_VALUE)
+		{
+			if (left <= 0)
+				throw new InterruptedIOException("Deadline passed, " + request.getMethod() + " " + request.getURI().getPath() + " not sent.");
+			int timeout = (int) Math.min(Integer.MAX_VALUE, left);
+			request.setConfig(RequestConfig.copy(defaultRequestConfig).setConnectionRequestTimeout(timeout).setConnectTimeout(timeout).setSocketTimeout(timeout).build());
+		}
+		String ticketUsed = getEncodedTicket();
+		request.setHeader(HttpHeaders.AUTHORIZATION, "Basic " + ticketUsed);
+		CloseableHttpResponse response = httpClient.execute(request);
+		if (response.getStatusLine().getStatusCode() == HttpURLConnection.HTTP_UNAUTHORIZED)
+		{
+			EntityUtils.consumeQuietly(response.getEntity());
+			response.close();
+			invalidateTicket(ticketUsed);
+			request.setHeader(HttpHeaders.AUTHORIZATION, "Basic " + getEncodedTicket());
+			response = httpClient.execute(request);
+		}
+		return response;
+	}
+
+	/**
+	 * @return The Base64 encoded ticket, authenticating first if there is no current ticket.
+	 * @throws IOException
+	 */
+	public String getEncodedTicket() throws IOException
+	{
+		String ticket = this.encodedTicket;
+		if (ticket != null && System.currentTimeMillis() - ticketIssuedAt < ticketTtlMillis)
+			return ticket;
+		synchronized (this)
+		{
+			if (this.encodedTicket == null || System.currentTimeMillis() - ticketIssuedAt >= ticketTtlMillis)
+				authenticate();
+			return this.encodedTicket;
+		}
+	}
+
+	/**
+	 * Drops the cached ticket if it is still the one that was rejected. Threads that saw the same 401 therefore renew the ticket only once.
+	 */
+	public synchronized void invalidateTicket(String rejectedEncodedTicket)
+	{
+		if (rejectedEncodedTicket == null || rejectedEncodedTicket.equals(this.encodedTicket))
+			this.encodedTicket = null;
+	}
+
+	private void authenticate() throws IOException
+	{
+		long startTime = System.currentTimeMillis();
+		SummarizationEvents.Call event = new SummarizationEvents.Call();
+		event.begin();
+		event.service = "alfresco";
+		event.operation = "authenticate";
+		event.attempt = 1;
+		String[] credentials = credentialSource.getUserIdAndPassword(false);
+		String ticket;
+		try
+		{
+			ticket = requestTicket(credentials);
+			if (ticket == null)
+			{ // The password may have been rotated since it was cached.
+				event.attempt = 2;
+				credentials = credentialSource.getUserIdAndPassword(true);
+				ticket = requestTicket(credentials);
+				if (ticket == null)
+					throw new HttpResponseException(HttpURLConnection.HTTP_UNAUTHORIZED, "Alfresco rejected the credentials of " + credentials[0]);
+			}
+			event.outcome = "ok";
+		} catch (IOException | RuntimeException e)
+		{
+			event.outcome = e.getClass().getSimpleName() + ": " + e.getMessage();
+			throw e;
+		} finally
+		{
+			event.commit();
+		}
+		this.encodedTicket = Base64.getEncoder().encodeToString(ticket.getBytes(StandardCharsets.UTF_8));
+		this.ticketIssuedAt = System.currentTimeMillis();
+		this.ticketsIssued++;
+		LongConsumer timer = authTimer;
+		if (timer != null)
+			timer.accept(System.currentTimeMillis() - startTime);
+	}
+
+	/**
+	 * @return The ticket id, or null if the credentials were rejected.
+	 */
+	private String requestTicket(String[] credentials) throws IOException
+	{
+		HttpPost request = new HttpPost(endpoint("/alfresco/api/-default-/public/authentication/versions/1/tickets"));
+		String json = new JSONObject().put("userId", credentials[0]).put("password", credentials[1]).toString();
+		StringEntity entity = new StringEntity(json, StandardCharsets.UTF_8);
+		entity.setContentType("application/json");
+		request.setEntity(entity);
+		try (CloseableHttpResponse httpResponse = httpClient.execute(request))
+		{
+			int status = httpResponse.getStatusLine().getStatusCode();
+			String body = EntityUtils.toString(httpResponse.getEntity());
+			if (status == HttpURLConnection.HTTP_UNAUTHORIZED || status == HttpURLConnection.HTTP_FORBIDDEN)
+				return null;
+			if (status != HttpURLConnection.HTTP_CREATED && status != HttpURLConnection.HTTP_OK)
+				throw new HttpResponseException(status, "Alfresco ticket request failed: " + body);
+			return new JSONObject(body).getJSONObject("entry").getString("id");
+		}
+	}
+
+	/**
+	 * @return Number of times a ticket was requested from the repository over the life of this session.
+	 */
+	public int getTicketsIssued()
+	{
+		return ticketsIssued;
+	}
+
+	public PoolingHttpClientConnectionManager getConnectionManager()
+	{
+		return connectionManager;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		httpClient.close();
+	}
+}
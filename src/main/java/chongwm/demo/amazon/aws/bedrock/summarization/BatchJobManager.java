@@ -0,0 +1,232 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import chongwm.demo.aws.community.examples.S3Utils;
+import software.amazon.awssdk.services.bedrock.BedrockClient;
+import software.amazon.awssdk.services.bedrock.model.CreateModelInvocationJobRequest;
+import software.amazon.awssdk.services.bedrock.model.GetModelInvocationJobRequest;
+import software.amazon.awssdk.services.bedrock.model.GetModelInvocationJobResponse;
+import software.amazon.awssdk.services.bedrock.model.ModelInvocationJobInputDataConfig;
+import software.amazon.awssdk.services.bedrock.model.ModelInvocationJobOutputDataConfig;
+import software.amazon.awssdk.services.bedrock.model.ModelInvocationJobS3InputDataConfig;
+import software.amazon.awssdk.services.bedrock.model.ModelInvocationJobS3OutputDataConfig;
+import software.amazon.awssdk.services.bedrock.model.S3InputFormat;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Turns the files BatchPacker leaves in the pending folder into Bedrock model invocation jobs, and tracks the jobs until they end.
+ *
+ * Layout under the batch prefix:
+ * <ul>
+ * <li>pending/ files waiting for a job. They stay here across runs until together they reach minRecordsPerJob.</li>
+ * <li>input/jobName/ files of one job, moved from pending/ when the job is submitted.</li>
+ * <li>output/jobName/ where Bedrock writes the job's results.</li>
+ * <li>jobs/jobName.json the job's manifest: its ARN, files, record count and last known status.</li>
+ * </ul>
+ */
+public class BatchJobManager
+{
+	public static final String STATUS_INGESTED = "Ingested"; // set once the job's output has been written back to Alfresco
+	private static final Pattern PENDING_RECORDS = Pattern.compile("-(\\d+)\\.jsonl$");
+	private static final String[] TERMINAL = {"Completed", "PartiallyCompleted", "Failed", "Stopped", "Expired", STATUS_INGESTED};
+
+	private final Supplier<BedrockClient> bedrockClient; // built on first use, only runs that submit or track a job need it
+	private final Supplier<S3Client> s3Client; // built on first use, like bedrockClient
+	private final S3Utils s3Utils;
+	private final String batchPrefix;
+	private final String modelId;
+	private final String roleArn;
+	private final int minRecordsPerJob;
+	private final int maxRecordsPerJob;
+	private final long maxBytesPerJob;
+	private final Consumer<String> log;
+
+	/**
+	 * @param bedrockClient
+	 *            Gives the Bedrock control plane client when a job is submitted or tracked.
+	 * @param batchPrefix
+	 *            Key prefix, relative to the bucket and ending with a slash, of the folders above.
+	 * @param modelId
+	 *            eg. anthropic.claude-v2:1
+	 * @param roleArn
+	 *            Service role Bedrock assumes to read input and write output. Jobs are not submitted without one.
+	 * @param minRecordsPerJob
+	 *            Bedrock rejects jobs with fewer records than its minimum.
+	 * @param maxRecordsPerJob
+	 *            Bedrock's limit of records per job.
+	 * @param maxBytesPerJob
+	 *            Bedrock's limit of input size per job.
+	 */
+	public BatchJobManager(Supplier<BedrockClient> bedrockClient, Supplier<S3Client> s3Client, S3Utils s3Utils, String batchPrefix, String modelId, String roleArn, int minRecordsPerJob, int maxRecordsPerJob, long maxBytesPerJob, Consumer<String> log)
+	{
+		this.bedrockClient = bedrockClient;
+		this.s3Client = s3Client;
+		this.s3Utils = s3Utils;
+		this.batchPrefix = batchPrefix;
+		this.modelId = modelId;
+		this.roleArn = roleArn;
+		this.minRecordsPerJob = Math.max(1, minRecordsPerJob);
+		this.maxRecordsPerJob = Math.max(this.minRecordsPerJob, maxRecordsPerJob);
+		this.maxBytesPerJob = maxBytesPerJob;
+		this.log = log;
+	}
+
+	public String getPendingPrefix()
+	{
+		return batchPrefix + "pending/";
+	}
+
+	/**
+	 * Packs pending files into as few jobs as the limits allow and submits them. Files that would make a job smaller than minRecordsPerJob are left for a later run.
+	 *
+	 * @return Manifests of the jobs submitted.
+	 */
+	public List<JSONObject> submitPending()
+	{
+		List<JSONObject> submitted = new ArrayList<JSONObject>();
+		List<S3Object> pending = s3Utils.listObjects(s3Client.get(), getPendingPrefix());
+		int pendingRecords = 0;
+		for (S3Object file : pending)
+			pendingRecords += recordsIn(file.key());
+		if (pendingRecords < minRecordsPerJob)
+		{
+			if (pendingRecords > 0)
+				log.accept(pendingRecords + " batch records pending, waiting for " + minRecordsPerJob + " before submitting a job.");
+			return submitted;
+		}
+		if (roleArn == null || roleArn.isBlank())
+		{
+			log.accept(pendingRecords + " batch records pending, but batchRoleArn is not set so no job is submitted.");
+			return submitted;
+		}
+
+		List<S3Object> job = new ArrayList<S3Object>();
+		int jobRecords = 0;
+		long jobBytes = 0;
+		int jobNumber = 0;
+		String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		for (S3Object file : pending)
+		{
+			int records = recordsIn(file.key());
+			if (!job.isEmpty() && (jobRecords + records > maxRecordsPerJob || jobBytes + file.size() > maxBytesPerJob))
+			{
+				submitted.add(submit("alfresco-summaries-" + stamp + "-" + jobNumber++, job, jobRecords));
+				job = new ArrayList<S3Object>();
+				jobRecords = 0;
+				jobBytes = 0;
+			}
+			job.add(file);
+			jobRecords += records;
+			jobBytes += file.size();
+		}
+		if (jobRecords >= minRecordsPerJob)
+			submitted.add(submit("alfresco-summaries-" + stamp + "-" + jobNumber, job, jobRecords));
+		submitted.removeIf(manifest -> manifest == null);
+		return submitted;
+	}
+
+	/**
+	 * Moves the files into the job's input folder and creates the job. If Bedrock refuses the job, the files are moved back to pending.
+	 *
+	 * @return The job's manifest, or null if it was not submitted.
+	 */
+	private JSONObject submit(String jobName, List<S3Object> files, int records)
+	{
+		String inputPrefix = batchPrefix + "input/" + jobName + "/";
+		String outputPrefix = batchPrefix + "output/" + jobName + "/";
+		JSONArray parts = new JSONArray();
+		for (S3Object file : files)
+		{
+			String name = file.key().substring(file.key().lastIndexOf('/') + 1);
+			s3Utils.moveObject(s3Client.get(), file.key(), inputPrefix + name);
+			parts.put(name);
+		}
+		try
+		{
+			String jobArn = bedrockClient.get().createModelInvocationJob(CreateModelInvocationJobRequest.builder().jobName(jobName).roleArn(roleArn).modelId(modelId)
+			        .inputDataConfig(ModelInvocationJobInputDataConfig.builder().s3InputDataConfig(ModelInvocationJobS3InputDataConfig.builder().s3Uri(s3Utils.toS3Uri(inputPrefix)).s3InputFormat(S3InputFormat.JSONL).build()).build())
+			        .outputDataConfig(ModelInvocationJobOutputDataConfig.builder().s3OutputDataConfig(ModelInvocationJobS3OutputDataConfig.builder().s3Uri(s3Utils.toS3Uri(outputPrefix)).build()).build())
+			        .build()).jobArn();
+			JSONObject manifest = new JSONObject().put("jobName", jobName).put("jobArn", jobArn).put("status", "Submitted").put("records", records).put("parts", parts)
+			        .put("inputS3Uri", s3Utils.toS3Uri(inputPrefix)).put("outputPrefix", outputPrefix).put("submittedAt", System.currentTimeMillis());
+			writeManifest(manifest);
+			log.accept("Submitted batch job " + jobName + " with " + records + " records in " + files.size() + " files. " + jobArn);
+			return manifest;
+		} catch (RuntimeException e)
+		{
+			log.accept("Batch job " + jobName + " was not submitted, its files are back in pending. " + e.getMessage());
+			for (int p = 0; p < parts.length(); p++)
+				s3Utils.moveObject(s3Client.get(), inputPrefix + parts.getString(p), getPendingPrefix() + parts.getString(p));
+			return null;
+		}
+	}
+
+	/**
+	 * Refreshes the status of every job that has not ended yet.
+	 *
+	 * @return Manifests of all known jobs, with their current status.
+	 */
+	public List<JSONObject> trackJobs()
+	{
+		List<JSONObject> manifests = new ArrayList<JSONObject>();
+		for (S3Object file : s3Utils.listObjects(s3Client.get(), batchPrefix + "jobs/"))
+		{
+			String json = s3Utils.getStringFromS3(s3Client.get(), file.key());
+			if (json == null)
+				continue;
+			JSONObject manifest = new JSONObject(json);
+			if (!isTerminal(manifest.optString("status")))
+			{
+				try
+				{
+					GetModelInvocationJobResponse job = bedrockClient.get().getModelInvocationJob(GetModelInvocationJobRequest.builder().jobIdentifier(manifest.getString("jobArn")).build());
+					String status = job.statusAsString();
+					if (!status.equals(manifest.optString("status")))
+					{
+						manifest.put("status", status).put("statusAt", System.currentTimeMillis());
+						if (job.message() != null)
+							manifest.put("message", job.message());
+						writeManifest(manifest);
+						log.accept("Batch job " + manifest.getString("jobName") + " is " + status + ".");
+					}
+				} catch (RuntimeException e)
+				{
+					log.accept("Could not get the status of batch job " + manifest.optString("jobName") + ". " + e.getMessage());
+				}
+			}
+			manifests.add(manifest);
+		}
+		return manifests;
+	}
+
+	public void writeManifest(JSONObject manifest)
+	{
+		s3Utils.putJsonIntoS3(s3Client.get(), batchPrefix + "jobs/" + manifest.getString("jobName") + ".json", manifest, false);
+	}
+
+	public static boolean isTerminal(String status)
+	{
+		for (String terminal : TERMINAL)
+			if (terminal.equalsIgnoreCase(status))
+				return true;
+		return false;
+	}
+
+	private static int recordsIn(String key)
+	{
+		Matcher m = PENDING_RECORDS.matcher(key);
+		return m.find() ? Integer.parseInt(m.group(1)) : 0;
+	}
+}
@@ -0,0 +1,286 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import chongwm.demo.aws.community.examples.S3Utils;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Reads the output of Bedrock batch inference jobs (https://docs.aws.amazon.com/bedrock/latest/userguide/batch-inference-results.html) and hands each record's result to a ResultHandler on several threads.
+ *
+ * Output files are parsed as a stream of JSON records. A record's modelInput, which repeats the whole text that was summarized, is skipped rather than read, and only a few records are queued for the handler at a time, so memory stays flat however
+ * large the file.
+ */
+public class BatchOutputIngester
+{
+	/**
+	 * Where job output is read from.
+	 */
+	public interface OutputSource
+	{
+		/**
+		 * @return Names of the output files under prefix.
+		 */
+		List<String> list(String prefix) throws IOException;
+
+		InputStream open(String name) throws IOException;
+	}
+
+	/**
+	 * Output in the staging bucket, where Bedrock writes it.
+	 */
+	public static class S3OutputSource implements OutputSource
+	{
+		private final Supplier<S3Client> s3Client; // built on first use, only runs that ingest a job's output need it
+		private final S3Utils s3Utils;
+
+		public S3OutputSource(Supplier<S3Client> s3Client, S3Utils s3Utils)
+		{
+			this.s3Client = s3Client;
+			this.s3Utils = s3Utils;
+		}
+
+		@Override
+		public List<String> list(String prefix)
+		{
+			List<String> names = new ArrayList<String>();
+			for (S3Object object : s3Utils.listObjects(s3Client.get(), prefix))
+				names.add(object.key());
+			return names;
+		}
+
+		@Override
+		public InputStream open(String name)
+		{
+			return s3Utils.getInputStreamFromS3(s3Client.get(), name);
+		}
+	}
+
+	/**
+	 * Output copied to a local folder, eg. with aws s3 sync, to ingest it offline. Prefixes are paths relative to the folder.
+	 */
+	public static class DirectoryOutputSource implements OutputSource
+	{
+		private final File root;
+
+		public DirectoryOutputSource(File root)
+		{
+			this.root = root;
+		}
+
+		@Override
+		public List<String> list(String prefix)
+		{
+			List<String> names = new ArrayList<String>();
+			collect(new File(root, prefix), prefix.endsWith("/") || prefix.isEmpty() ? prefix : prefix + "/", names);
+			names.sort(null);
+			return names;
+		}
+
+		private void collect(File directory, String path, List<String> names)
+		{
+			File[] files = directory.listFiles();
+			if (files == null)
+				return;
+			for (File file : files)
+			{
+				if (file.isDirectory())
+					collect(file, path + file.getName() + "/", names);
+				else
+					names.add(path + file.getName());
+			}
+		}
+
+		@Override
+		public InputStream open(String name) throws IOException
+		{
+			return new FileInputStream(new File(root, name));
+		}
+	}
+
+	/**
+	 * One record of a job's output.
+	 */
+	public static class Result
+	{
+		private final String recordId;
+		private final String completion;
+		private final String error;
+
+		Result(String recordId, String completion, String error)
+		{
+			this.recordId = recordId;
+			this.completion = completion;
+			this.error = error;
+		}
+
+		public String getRecordId()
+		{
+			return recordId;
+		}
+
+		/**
+		 * @return The model's completion, or null if the record failed.
+		 */
+		public String getCompletion()
+		{
+			return completion;
+		}
+
+		/**
+		 * @return Why the record failed, or null if it did not.
+		 */
+		public String getError()
+		{
+			return error;
+		}
+	}
+
+	/**
+	 * Applies one result, eg. writes it to the node it belongs to.
+	 */
+	@FunctionalInterface
+	public interface ResultHandler
+	{
+		/**
+		 * @return false if the result was not used, eg. because it is stale.
+		 */
+		boolean handle(Result result) throws Exception;
+	}
+
+	private static final String OUTPUT_SUFFIX = ".jsonl.out"; // manifest.json.out holds job statistics, not records
+
+	private final OutputSource source;
+	private final int workers;
+	private final int queueCapacity;
+	private final Consumer<String> log;
+
+	/**
+	 * @param workers
+	 *            Threads handing results to the handler.
+	 * @param queueCapacity
+	 *            Results read ahead of the handler.
+	 */
+	public BatchOutputIngester(OutputSource source, int workers, int queueCapacity, Consumer<String> log)
+	{
+		this.source = source;
+		this.workers = Math.max(1, workers);
+		this.queueCapacity = Math.max(1, queueCapacity);
+		this.log = log;
+	}
+
+	/**
+	 * Reads every output file under outputPrefix and hands its records to handler.
+	 *
+	 * @return Number of results the handler used.
+	 * @throws IOException
+	 *             if an output file cannot be read.
+	 * @throws InterruptedException
+	 */
+	public int ingest(String outputPrefix, ResultHandler handler) throws IOException, InterruptedException
+	{
+		AtomicInteger used = new AtomicInteger();
+		AtomicInteger failedRecords = new AtomicInteger();
+		StagedPipeline<Result> pipeline = new StagedPipeline<Result>("batch-ingest", (stageName, result, e) -> log.accept("Could not apply batch result " + result.getRecordId() + ". " + e));
+		pipeline.addStage("apply", workers, queueCapacity, result ->
+		{
+			if (result.getError() != null)
+			{
+				failedRecords.incrementAndGet();
+				log.accept("Batch record " + result.getRecordId() + " failed. " + result.getError());
+			}
+			if (handler.handle(result))
+				used.incrementAndGet();
+			return true;
+		});
+		pipeline.start();
+		try
+		{
+			for (String name : source.list(outputPrefix))
+			{
+				if (!name.endsWith(OUTPUT_SUFFIX))
+					continue;
+				try (InputStream in = source.open(name))
+				{
+					read(in, pipeline);
+				}
+			}
+		} finally
+		{
+			pipeline.finish();
+		}
+		log.accept(pipeline.getStatistics() + " " + used.get() + " results applied, " + failedRecords.get() + " failed records.");
+		return used.get();
+	}
+
+	/**
+	 * Parses a stream of records, one after the other, and submits each to the pipeline.
+	 */
+	static void read(InputStream in, StagedPipeline<Result> pipeline) throws IOException, InterruptedException
+	{
+		JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		reader.setLenient(true); // JSON Lines: many top level values
+		while (reader.peek() != JsonToken.END_DOCUMENT)
+		{
+			String recordId = null;
+			String completion = null;
+			String error = null;
+			reader.beginObject();
+			while (reader.hasNext())
+			{
+				switch (reader.nextName())
+				{
+					case "recordId" :
+						recordId = reader.nextString();
+						break;
+					case "modelOutput" :
+						completion = readCompletion(reader);
+						break;
+					case "error" :
+						error = JsonParser.parseReader(reader).toString();
+						break;
+					default :
+						reader.skipValue(); // modelInput in particular
+				}
+			}
+			reader.endObject();
+			if (recordId != null)
+				pipeline.submit(new Result(recordId, completion, error));
+		}
+	}
+
+	private static String readCompletion(JsonReader reader) throws IOException
+	{
+		if (reader.peek() != JsonToken.BEGIN_OBJECT)
+		{
+			reader.skipValue();
+			return null;
+		}
+		String completion = null;
+		reader.beginObject();
+		while (reader.hasNext())
+		{
+			if (reader.nextName().equals("completion") && reader.peek() == JsonToken.STRING)
+				completion = reader.nextString();
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		return completion;
+	}
+}
@@ -0,0 +1,244 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+import chongwm.demo.aws.community.examples.S3Utils;
+import software.amazon.awssdk.services.s3.S3Client;
+
+/**
+ * Packs Bedrock batch inference records from a whole run into JSONL files (https://docs.aws.amazon.com/bedrock/latest/userguide/batch-inference-data.html). Records are appended to a local temp file as they arrive, so a file is never held in memory
+ * as a whole. Once a file reaches maxFileBytes or maxRecordsPerFile, or the packer is closed, the file is uploaded to the pending folder, where BatchJobManager picks it up.
+ *
+ * Pending files are named runId-part-records.jsonl, so that the record count is known from a listing.
+ *
+ * By the time a file is uploaded its nodes already carry their batch placeholder, so a file that cannot be uploaded is never thrown away. It is moved to the batch-unsent folder under tempDirectory, and close() sends it, with any left there by
+ * earlier runs in the same execution environment. A failed upload does not fail the record being added, which belongs to the next file.
+ */
+public class BatchPacker implements Closeable
+{
+	private final S3Client s3Client;
+	private final S3Utils s3Utils;
+	private final String pendingPrefix;
+	private final File tempDirectory;
+	private final File unsentDirectory;
+	private final String runId;
+	private final int maxRecordBytes;
+	private final long maxFileBytes;
+	private final int maxRecordsPerFile;
+	private File partFile;
+	private OutputStream part;
+	private int partNumber = 0;
+	private int partRecords = 0;
+	private long partBytes = 0;
+	private int records = 0;
+	private int rejected = 0;
+	private int filesUploaded = 0;
+	private int filesKept = 0;
+
+	/**
+	 * @param pendingPrefix
+	 *            Key prefix, relative to the bucket and ending with a slash, for finished files.
+	 * @param tempDirectory
+	 *            Folder for the file being filled.
+	 * @param runId
+	 *            Distinguishes this run's files from those of other runs.
+	 * @param maxRecordBytes
+	 *            Largest record Bedrock accepts, eg. BedrockBatchItemMaxLength.
+	 * @param maxFileBytes
+	 *            Size at which a file is uploaded and a new one started.
+	 * @param maxRecordsPerFile
+	 *            Record count at which a file is uploaded and a new one started.
+	 */
+	public BatchPacker(S3Client s3Client, S3Utils s3Utils, String pendingPrefix, File tempDirectory, String runId, int maxRecordBytes, long maxFileBytes, int maxRecordsPerFile)
+	{
+		this.s3Client = s3Client;
+		this.s3Utils = s3Utils;
+		this.pendingPrefix = pendingPrefix;
+		this.tempDirectory = tempDirectory;
+		this.unsentDirectory = unsentDirectoryOf(tempDirectory);
+		this.runId = runId;
+		this.maxRecordBytes = maxRecordBytes;
+		this.maxFileBytes = maxFileBytes;
+		this.maxRecordsPerFile = Math.max(1, maxRecordsPerFile);
+	}
+
+	/**
+	 * Appends a record.
+	 *
+	 * @param recordId
+	 *            Identifies the record's output line.
+	 * @param modelInput
+	 *            Model request body.
+	 * @return false if the record is larger than maxRecordBytes and was not added.
+	 * @throws IOException
+	 */
+	public synchronized boolean add(String recordId, JSONObject modelInput) throws IOException
+	{
+		byte[] line = new JSONObject().put("recordId", recordId).put("modelInput", modelInput).toString().getBytes(StandardCharsets.UTF_8);
+		if (line.length > maxRecordBytes)
+		{
+			rejected++;
+			return false;
+		}
+		if (part != null && (partBytes + line.length + 1 > maxFileBytes || partRecords >= maxRecordsPerFile))
+			upload();
+		if (part == null)
+		{
+			partFile = File.createTempFile("batch-", ".jsonl", tempDirectory);
+			part = new BufferedOutputStream(new FileOutputStream(partFile), 64 * 1024);
+		}
+		part.write(line);
+		part.write('\n');
+		partBytes += line.length + 1;
+		partRecords++;
+		records++;
+		return true;
+	}
+
+	/**
+	 * Uploads the file being filled and starts a new one. If the upload fails the file is kept in unsentDirectory.
+	 * 
+	 * @throws IOException
+	 *             if the file could not be finished or kept.
+	 */
+	private void upload() throws IOException
+	{
+		String name = runId + "-" + partNumber + "-" + partRecords + ".jsonl";
+		try
+		{
+			part.close();
+			try
+			{
+				put(name, partFile);
+				partFile.delete();
+			} catch (IOException e)
+			{
+				keep(name, partFile);
+			}
+		} finally
+		{
+			part = null;
+			partFile = null;
+			partNumber++;
+			partRecords = 0;
+			partBytes = 0;
+		}
+	}
+
+	private void put(String name, File file) throws IOException
+	{
+		try
+		{
+			s3Utils.putFileIntoS3(s3Client, pendingPrefix + name, file, "application/jsonl");
+			filesUploaded++;
+		} catch (RuntimeException e) // SdkException and the SDK's own argument checks
+		{
+			throw new IOException("Upload of batch file " + name + " failed. " + e.getMessage(), e);
+		}
+	}
+
+	private void keep(String name, File file) throws IOException
+	{
+		if (!unsentDirectory.isDirectory() && !unsentDirectory.mkdirs())
+			throw new IOException("Could not create " + unsentDirectory + " to keep batch file " + file);
+		if (!file.renameTo(new File(unsentDirectory, name)))
+			throw new IOException("Could not keep batch file " + file + " in " + unsentDirectory);
+		filesKept++;
+	}
+
+	/**
+	 * Uploads the files kept in unsentDirectory.
+	 * 
+	 * @return Number of files still unsent.
+	 */
+	private int uploadUnsent()
+	{
+		File[] unsent = unsentDirectory.listFiles((dir, name) -> name.endsWith(".jsonl"));
+		if (unsent == null)
+			return 0;
+		Arrays.sort(unsent);
+		int left = 0;
+		for (File file : unsent)
+		{
+			try
+			{
+				put(file.getName(), file);
+				file.delete();
+			} catch (IOException e)
+			{
+				left++;
+			}
+		}
+		return left;
+	}
+
+	/**
+	 * @return true if files of an earlier run are waiting in tempDirectory to be uploaded.
+	 */
+	public static boolean hasUnsent(File tempDirectory)
+	{
+		String[] unsent = unsentDirectoryOf(tempDirectory).list((dir, name) -> name.endsWith(".jsonl"));
+		return unsent != null && unsent.length > 0;
+	}
+
+	private static File unsentDirectoryOf(File tempDirectory)
+	{
+		return new File(tempDirectory, "batch-unsent");
+	}
+
+	/**
+	 * @return Key prefix under which this run's files are uploaded.
+	 */
+	public String getPendingLocation()
+	{
+		return pendingPrefix + runId;
+	}
+
+	public synchronized int getRecords()
+	{
+		return records;
+	}
+
+	public synchronized int getRejected()
+	{
+		return rejected;
+	}
+
+	public synchronized int getFilesUploaded()
+	{
+		return filesUploaded;
+	}
+
+	/**
+	 * @return Files that could not be uploaded when they were finished.
+	 */
+	public synchronized int getFilesKept()
+	{
+		return filesKept;
+	}
+
+	/**
+	 * Uploads the file being filled, if it holds any records, and the files kept after a failed upload.
+	 * 
+	 * @throws IOException
+	 *             if files are still unsent. They stay in tempDirectory for the next run in this execution environment.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (part != null)
+			upload();
+		int left = uploadUnsent();
+		if (left > 0)
+			throw new IOException(left + " batch files could not be uploaded, they are kept in " + unsentDirectory + " for the next run.");
+	}
+}
@@ -0,0 +1,369 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.json.JSONObject;
+
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.bedrockruntime.BedrockRuntimeAsyncClient;
+import software.amazon.awssdk.services.bedrockruntime.model.InvokeModelRequest;
+import software.amazon.awssdk.services.bedrockruntime.model.InvokeModelResponse;
+import software.amazon.awssdk.services.bedrockruntime.model.ModelTimeoutException;
+import software.amazon.awssdk.services.bedrockruntime.model.ServiceQuotaExceededException;
+import software.amazon.awssdk.services.bedrockruntime.model.ThrottlingException;
+
+/**
+ * Invokes a Bedrock model without blocking the caller. At most maxInFlight requests are sent at a time; further requests wait in order for a free slot. Requests are paced by an AdaptiveRateLimiter, which learns from throttling how fast Bedrock will
+ * serve them.
+ *
+ * A request that is throttled, times out or hits a server error keeps its slot and is retried after an exponential, jittered backoff, up to maxAttempts attempts in all. Other errors, such as a ValidationException, fail the request straight away.
+ *
+ * Cancelling the future invoke() returns withdraws the request: a waiting request is dropped, a paced or backed off one is not sent, and an attempt in flight is aborted. Its slot goes to the next request.
+ */
+public class BedrockInvoker
+{
+	private final Supplier<BedrockRuntimeAsyncClient> client; // built when the first request is sent
+	private final String modelId;
+	private final int maxInFlight;
+	private final AdaptiveRateLimiter limiter;
+	private final int maxAttempts;
+	private final ScheduledExecutorService retryScheduler;
+	private final Consumer<String> log;
+	private final ArrayDeque<Call> waiting = new ArrayDeque<Call>();
+	private int inFlight = 0;
+	private int peakInFlight = 0;
+	private long invocations = 0;
+	private long retries = 0;
+	private long giveUps = 0;
+	private long cancelled = 0;
+	private volatile long deadline = Long.MAX_VALUE;
+	private volatile TokenEstimator tokenEstimator;
+	private long inputTokens = 0;
+	private long outputTokens = 0;
+
+	/**
+	 * @param client
+	 *            Gives the asynchronous Bedrock runtime client when the first request is sent.
+	 * @param modelId
+	 *            eg. anthropic.claude-v2:1
+	 * @param maxInFlight
+	 *            Number of requests that may be awaiting a response at the same time.
+	 * @param limiter
+	 *            Paces requests and computes retry delays.
+	 * @param maxAttempts
+	 *            Attempts made for one request, including the first, before giving up.
+	 * @param retryScheduler
+	 *            Sends paced requests and retries once their delay is up.
+	 * @param log
+	 *            Receives a line for each retry.
+	 */
+	public BedrockInvoker(Supplier<BedrockRuntimeAsyncClient> client, String modelId, int maxInFlight, AdaptiveRateLimiter limiter, int maxAttempts, ScheduledExecutorService retryScheduler, Consumer<String> log)
+	{
+		this.client = client;
+		this.modelId = modelId;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.limiter = limiter;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.retryScheduler = retryScheduler;
+		this.log = log;
+	}
+
+	/**
+	 * Bounds the requests sent from now on. Each attempt's API call timeout is cut to the time left, and a retry that could not start before the deadline is not made.
+	 *
+	 * @param deadline
+	 *            System.currentTimeMillis() by which requests must end, Long.MAX_VALUE for none.
+	 */
+	public void setDeadline(long deadline)
+	{
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Calibrates estimator with the input token count Bedrock reports for each request that succeeds.
+	 */
+	public void setTokenEstimator(TokenEstimator estimator)
+	{
+		this.tokenEstimator = estimator;
+	}
+
+	/**
+	 * @param jsonBody
+	 *            Model input, eg. {"prompt":..., "max_tokens_to_sample":...}
+	 * @return Completes with the model's reply, or exceptionally with the SDK exception if the request cannot succeed, such as a ValidationException.
+	 */
+	public CompletableFuture<JSONObject> invoke(JSONObject jsonBody)
+	{
+		InvokeModelRequest request = InvokeModelRequest.builder().modelId(modelId).body(SdkBytes.fromUtf8String(jsonBody.toString())).build();
+		Call call = new Call(request, jsonBody.optString("prompt", null));
+		boolean sendNow;
+		synchronized (this)
+		{
+			invocations++;
+			sendNow = (inFlight < maxInFlight);
+			if (sendNow)
+			{
+				inFlight++;
+				peakInFlight = Math.max(peakInFlight, inFlight);
+			}
+			else
+				waiting.add(call);
+		}
+		call.result.whenComplete((reply, e) ->
+		{
+			if (call.result.isCancelled())
+				cancelled(call);
+		});
+		if (sendNow)
+			send(call);
+		return call.result;
+	}
+
+	/**
+	 * Withdraws a request whose result was cancelled. One still waiting for a slot is dropped, an attempt in flight is aborted and completes through failedAttempt(), which passes the slot on.
+	 */
+	private void cancelled(Call call)
+	{
+		boolean wasWaiting;
+		synchronized (this)
+		{
+			cancelled++;
+			wasWaiting = waiting.remove(call);
+		}
+		CompletableFuture<InvokeModelResponse> attempt = call.attempt;
+		if (!wasWaiting && attempt != null)
+			attempt.cancel(true);
+	}
+
+	/**
+	 * Sends the request once the rate limiter allows it.
+	 */
+	private void send(Call call)
+	{
+		if (call.result.isDone())
+		{ // cancelled, the slot is not needed
+			complete(call, null, null);
+			return;
+		}
+		long wait = limiter.reserve();
+		if (wait > 0)
+			retryScheduler.schedule(() -> dispatch(call), wait, TimeUnit.MILLISECONDS);
+		else
+			dispatch(call);
+	}
+
+	private void dispatch(Call call)
+	{
+		if (call.result.isDone())
+		{ // cancelled while paced
+			complete(call, null, null);
+			return;
+		}
+		long left = deadline - System.currentTimeMillis();
+		if (left <= 0)
+		{
+			complete(call, null, new TimeoutException("Deadline passed before the Bedrock request was sent."));
+			return;
+		}
+		InvokeModelRequest request = (deadline == Long.MAX_VALUE) ? call.request : call.request.toBuilder().overrideConfiguration(o -> o.apiCallTimeout(Duration.ofMillis(left))).build();
+		call.attempts++;
+		call.sentAt = System.nanoTime();
+		SummarizationEvents.Call event = new SummarizationEvents.Call();
+		event.begin();
+		try
+		{
+			call.attempt = client.get().invokeModel(request);
+			if (call.result.isCancelled())
+				call.attempt.cancel(true); // cancelled while it was being sent
+			call.attempt.whenComplete((response, e) ->
+			{
+				Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+				if (event.shouldCommit())
+				{
+					event.service = "bedrock";
+					event.operation = "InvokeModel";
+					event.attempt = call.attempts;
+					event.inputTokens = (response == null) ? -1 : tokenHeader(response, "X-Amzn-Bedrock-Input-Token-Count");
+					event.outputTokens = (response == null) ? -1 : tokenHeader(response, "X-Amzn-Bedrock-Output-Token-Count");
+					event.outcome = (cause == null) ? "ok" : cause.getClass().getSimpleName() + ": " + cause.getMessage();
+					event.commit();
+				}
+				if (e == null)
+				{
+					limiter.onSuccess();
+					countTokens(call, response);
+					complete(call, response.body().asUtf8String(), null);
+				}
+				else
+					failedAttempt(call, cause);
+			});
+		} catch (RuntimeException e)
+		{ // rejected before it was sent, eg. by an invalid request
+			complete(call, null, e);
+		}
+	}
+
+	private void failedAttempt(Call call, Throwable e)
+	{
+		if (call.result.isCancelled())
+		{ // aborted, see cancelled()
+			complete(call, null, null);
+			return;
+		}
+		boolean throttled = isThrottle(e);
+		if (throttled)
+			limiter.onThrottle(call.sentAt);
+		if (!throttled && !isTransient(e))
+		{
+			complete(call, null, e);
+			return;
+		}
+		long backoff = limiter.backoffMillis(call.attempts);
+		if (call.attempts >= maxAttempts || System.currentTimeMillis() + backoff >= deadline)
+		{
+			synchronized (this)
+			{
+				giveUps++;
+			}
+			log.accept("Giving up after " + call.attempts + " attempts-" + e.getMessage());
+			complete(call, null, e);
+			return;
+		}
+		synchronized (this)
+		{
+			retries++;
+		}
+		log.accept("Retrying in " + backoff + "ms, attempt " + (call.attempts + 1) + " of " + maxAttempts + "-" + e.getMessage());
+		retryScheduler.schedule(() -> send(call), backoff, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds up the token counts Bedrock reports in response headers, and calibrates tokenEstimator with the input count.
+	 */
+	private void countTokens(Call call, InvokeModelResponse response)
+	{
+		int input = tokenHeader(response, "X-Amzn-Bedrock-Input-Token-Count");
+		int output = tokenHeader(response, "X-Amzn-Bedrock-Output-Token-Count");
+		synchronized (this)
+		{
+			inputTokens += Math.max(0, input);
+			outputTokens += Math.max(0, output);
+		}
+		TokenEstimator estimator = tokenEstimator;
+		if (estimator != null && call.prompt != null && input > 0)
+			estimator.calibrate(call.prompt, input);
+	}
+
+	/**
+	 * @return The header's value, -1 if it is missing or not a number.
+	 */
+	private static int tokenHeader(InvokeModelResponse response, String name)
+	{
+		try
+		{
+			return (response.sdkHttpResponse() == null) ? -1 : response.sdkHttpResponse().firstMatchingHeader(name).map(Integer::parseInt).orElse(-1);
+		} catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * @return true if Bedrock refused the request for being over the account's rate or quota.
+	 */
+	static boolean isThrottle(Throwable e)
+	{
+		return e instanceof ThrottlingException || e instanceof ServiceQuotaExceededException || (e instanceof AwsServiceException && ((AwsServiceException) e).statusCode() == 429);
+	}
+
+	/**
+	 * @return true if the same request may succeed later: timeouts (https://docs.aws.amazon.com/bedrock/latest/userguide/model-parameters-claude.html), connection problems and server errors.
+	 */
+	static boolean isTransient(Throwable e)
+	{
+		return e instanceof SdkClientException || e instanceof ModelTimeoutException || (e instanceof AwsServiceException && ((AwsServiceException) e).statusCode() >= 500);
+	}
+
+	/**
+	 * Completes the request and passes its slot on. body and e are both null for a request that was cancelled.
+	 */
+	private void complete(Call call, String body, Throwable e)
+	{
+		try
+		{
+			if (e != null)
+				call.result.completeExceptionally(e);
+			else if (body != null)
+				call.result.complete(new JSONObject(body));
+		} catch (RuntimeException parseFailure)
+		{
+			call.result.completeExceptionally(parseFailure);
+		}
+		Call next;
+		synchronized (this)
+		{
+			next = waiting.poll();
+			if (next == null)
+				inFlight--;
+		}
+		if (next != null)
+			send(next); // the slot passes straight to the next waiting request
+	}
+
+	public synchronized String getStatistics()
+	{
+		return "Bedrock invoker: " + invocations + " invocations, " + retries + " retries, " + giveUps + " given up, " + cancelled + " cancelled, peak " + peakInFlight + " of " + maxInFlight + " in flight, " + waiting.size() + " waiting, " + inputTokens + " input and " + outputTokens
+		        + " output tokens. " + limiter.getStatistics();
+	}
+
+	public synchronized long getInputTokens()
+	{
+		return inputTokens;
+	}
+
+	public synchronized long getOutputTokens()
+	{
+		return outputTokens;
+	}
+
+	public AdaptiveRateLimiter getLimiter()
+	{
+		return limiter;
+	}
+
+	public synchronized long getRetries()
+	{
+		return retries;
+	}
+
+	public synchronized long getGiveUps()
+	{
+		return giveUps;
+	}
+
+	private static class Call
+	{
+		final InvokeModelRequest request;
+		final String prompt; // kept to calibrate the token estimator once Bedrock has counted its tokens
+		final CompletableFuture<JSONObject> result = new CompletableFuture<JSONObject>();
+		int attempts = 0; // only touched by one thread at a time, each attempt follows the last
+		long sentAt;
+		volatile CompletableFuture<InvokeModelResponse> attempt; // the request in flight, to abort it on cancel
+
+		Call(InvokeModelRequest request, String prompt)
+		{
+			this.request = request;
+			this.prompt = prompt;
+		}
+	}
+}
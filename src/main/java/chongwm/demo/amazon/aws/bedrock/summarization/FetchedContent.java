@@ -0,0 +1,221 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.io.RandomAccessReadBuffer;
+import org.apache.pdfbox.io.RandomAccessStreamCache.StreamCacheCreateFunction;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Content downloaded from Alfresco for one node. Content is kept in memory unless it is larger than the spill threshold, in which case it is written to a temp file of its own. Either way nothing is shared between downloads, so any number can be in flight.
+ */
+public class FetchedContent implements Closeable
+{
+	private byte[] bytes;
+	private int length;
+	private File spillFile;
+
+	private FetchedContent(byte[] bytes, int length)
+	{
+		this.bytes = bytes;
+		this.length = length;
+	}
+
+	private FetchedContent(File spillFile)
+	{
+		this.spillFile = spillFile;
+		this.length = -1;
+	}
+
+	/**
+	 * Reads a stream to its end.
+	 *
+	 * @param in
+	 *            Content stream. It is not closed.
+	 * @param expectedLength
+	 *            Content length if known, otherwise -1. Used to size the buffer, or to spill straight away.
+	 * @param spillThreshold
+	 *            Content larger than this many bytes is written to a temp file.
+	 * @param spillDirectory
+	 *            Folder for the temp file.
+	 * @return The content.
+	 * @throws IOException
+	 */
+	public static FetchedContent read(InputStream in, long expectedLength, long spillThreshold, File spillDirectory) throws IOException
+	{
+		if (expectedLength > spillThreshold)
+			return spill(new byte[0], 0, in, spillDirectory);
+
+		byte[] buffer = new byte[(expectedLength > 0) ? (int) expectedLength : (int) Math.min(64 * 1024, Math.max(spillThreshold, 1))];
+		int count = 0;
+		while (true)
+		{
+			if (count == buffer.length)
+			{
+				int next = in.read(); // a full buffer is usually the end, when the server gave the length
+				if (next < 0)
+					break;
+				if (count >= spillThreshold)
+				{ // the server did not say how long, or understated it
+					return spill(buffer, count, new SequenceInputStream(new ByteArrayInputStream(new byte[] {(byte) next}), in), spillDirectory);
+				}
+				buffer = Arrays.copyOf(buffer, (int) Math.min(Math.max(spillThreshold, count + 1), (long) buffer.length * 2));
+				buffer[count++] = (byte) next;
+				continue;
+			}
+			int n = in.read(buffer, count, buffer.length - count);
+			if (n < 0)
+				break;
+			count += n;
+		}
+		return new FetchedContent(buffer, count);
+	}
+
+	private static FetchedContent spill(byte[] head, int headLength, InputStream rest, File spillDirectory) throws IOException
+	{
+		File file = File.createTempFile("alfresco-", ".bin", spillDirectory);
+		try (OutputStream out = new FileOutputStream(file))
+		{
+			out.write(head, 0, headLength);
+			rest.transferTo(out);
+		} catch (IOException e)
+		{
+			file.delete();
+			throw e;
+		}
+		return new FetchedContent(file);
+	}
+
+	/**
+	 * Decodes a text stream without buffering the bytes first.
+	 *
+	 * @param in
+	 *            Content stream. It is not closed.
+	 * @param charset
+	 *            Charset of the content.
+	 * @return The decoded text.
+	 * @throws IOException
+	 */
+	public static String readText(InputStream in, Charset charset) throws IOException
+	{
+		return readText(in, charset, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Same as readText(in, charset) but stops once maxChars characters have been read. The rest of the stream is left unread.
+	 */
+	public static String readText(InputStream in, Charset charset, int maxChars) throws IOException
+	{
+		Reader reader = new InputStreamReader(in, charset);
+		StringBuilder sb = new StringBuilder();
+		char[] chars = new char[8192];
+		int n;
+		while (sb.length() < maxChars && (n = reader.read(chars, 0, Math.min(chars.length, maxChars - sb.length()))) >= 0)
+			sb.append(chars, 0, n);
+		return sb.toString();
+	}
+
+	/**
+	 * @param encoding
+	 *            Charset name such as Content.getEncoding() reports.
+	 * @param fallback
+	 *            Used if encoding is missing or unknown to this JVM.
+	 */
+	public static Charset charsetFor(String encoding, Charset fallback)
+	{
+		if (encoding != null && !encoding.isBlank())
+		{
+			try
+			{
+				return Charset.forName(encoding.trim());
+			} catch (IllegalArgumentException e)
+			{
+				// unsupported or illegal name, use the fallback
+			}
+		}
+		return (fallback == null) ? StandardCharsets.UTF_8 : fallback;
+	}
+
+	/**
+	 * @return Size of the content in bytes.
+	 */
+	public long size()
+	{
+		return (spillFile == null) ? length : spillFile.length();
+	}
+
+	public boolean isSpilled()
+	{
+		return spillFile != null;
+	}
+
+	/**
+	 * @return The temp file holding the content, or null if the content is in memory.
+	 */
+	public File getSpillFile()
+	{
+		return spillFile;
+	}
+
+	public InputStream openStream() throws IOException
+	{
+		return (spillFile == null) ? new ByteArrayInputStream(bytes, 0, length) : new FileInputStream(spillFile);
+	}
+
+	/**
+	 * Opens the content as a PDF. In-memory content is wrapped, not copied.
+	 */
+	public PDDocument loadPDF() throws IOException
+	{
+		return (spillFile == null) ? Loader.loadPDF(new RandomAccessReadBuffer(ByteBuffer.wrap(bytes, 0, length).slice())) : Loader.loadPDF(spillFile);
+	}
+
+	/**
+	 * Opens the content as a PDF with the given PDFBox scratch setting, such as PdfMemoryGovernor.getStreamCache(). A spilled file is read from disk on demand rather than loaded onto the heap.
+	 */
+	public PDDocument loadPDF(StreamCacheCreateFunction streamCache) throws IOException
+	{
+		if (spillFile == null)
+			return Loader.loadPDF(new RandomAccessReadBuffer(ByteBuffer.wrap(bytes, 0, length).slice()), streamCache);
+		return Loader.loadPDF(spillFile, streamCache);
+	}
+
+	public String decode(Charset charset) throws IOException
+	{
+		if (spillFile == null)
+			return new String(bytes, 0, length, charset);
+		try (InputStream in = openStream())
+		{
+			return readText(in, charset);
+		}
+	}
+
+	/**
+	 * Releases the buffer and deletes the temp file, if any.
+	 */
+	@Override
+	public void close()
+	{
+		bytes = null;
+		if (spillFile != null)
+		{
+			spillFile.delete();
+			spillFile = null;
+		}
+	}
+}
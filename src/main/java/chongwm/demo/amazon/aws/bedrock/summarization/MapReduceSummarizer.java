@@ -0,0 +1,304 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Summarizes text too long for one model call. The text is split into chunks on page, paragraph, line or sentence boundaries (map), each chunk is summarized with up to parallelism calls in flight, and the partial summaries are summarized together in a
+ * final call with the caller's own instruction (reduce). If the partial summaries are themselves too long for one call, they are reduced in groups first.
+ *
+ * Lengths are in characters, or in tokens if the summarizer is given a TokenEstimator.
+ */
+public class MapReduceSummarizer
+{
+	/**
+	 * One model call.
+	 */
+	@FunctionalInterface
+	public interface Model
+	{
+		/**
+		 * @param text
+		 *            Text the instruction applies to.
+		 * @param instruction
+		 *            What to do with the text.
+		 * @param maxTokens
+		 *            Longest response wanted.
+		 * @return Completes with the model's response.
+		 */
+		CompletableFuture<String> complete(String text, String instruction, int maxTokens);
+	}
+
+	/**
+	 * Outcome of one summarization.
+	 */
+	public static class Result
+	{
+		private final String summary;
+		private final int chunks;
+		private final int calls;
+
+		Result(String summary, int chunks, int calls)
+		{
+			this.summary = summary;
+			this.chunks = chunks;
+			this.calls = calls;
+		}
+
+		public String getSummary()
+		{
+			return summary;
+		}
+
+		/**
+		 * @return Number of chunks the text was split into.
+		 */
+		public int getChunks()
+		{
+			return chunks;
+		}
+
+		/**
+		 * @return Number of model calls made, map and reduce.
+		 */
+		public int getCalls()
+		{
+			return calls;
+		}
+	}
+
+	private static final String[] BOUNDARIES = {PdfTextExtractor.PAGE_BREAK, "\n\n", "\n", ". ", " "}; // preferred first
+	private static final int MAX_REDUCE_ROUNDS = 4;
+	protected static String mapInstruction = "This is part %d of %d of a longer document. Summarize this part, keeping its key facts, names, figures, dates and conclusions, so that it can be combined with summaries of the other parts.";
+	protected static String combineInstruction = "These are summaries of consecutive parts of one document. Combine them into one summary, keeping their key facts, names, figures, dates and conclusions.";
+	protected static String reduceHeader = "The following are summaries of consecutive parts of one document, in order.";
+
+	private final Model model;
+	private final TokenEstimator tokens; // null to measure in characters
+	private final int chunkLength;
+	private final int parallelism;
+	private final int partialResponseLength;
+
+	/**
+	 * @param model
+	 *            Makes the model calls.
+	 * @param chunkLength
+	 *            Longest text, in characters, sent in one call.
+	 * @param parallelism
+	 *            Calls in flight at once for one document.
+	 * @param partialResponseLength
+	 *            Longest response, in tokens, wanted for a chunk's summary.
+	 */
+	public MapReduceSummarizer(Model model, int chunkLength, int parallelism, int partialResponseLength)
+	{
+		this(model, null, chunkLength, parallelism, partialResponseLength);
+	}
+
+	/**
+	 * @param tokens
+	 *            Measures text in tokens. chunkLength is then in tokens too.
+	 */
+	public MapReduceSummarizer(Model model, TokenEstimator tokens, int chunkLength, int parallelism, int partialResponseLength)
+	{
+		this.model = model;
+		this.tokens = tokens;
+		this.chunkLength = Math.max((tokens == null) ? 1000 : 250, chunkLength);
+		this.parallelism = Math.max(1, parallelism);
+		this.partialResponseLength = Math.max(1, partialResponseLength);
+	}
+
+	/**
+	 * @param text
+	 *            Whole text to summarize.
+	 * @param instruction
+	 *            The caller's prompt, applied in the final reduce call.
+	 * @param responseLength
+	 *            Longest response, in tokens, wanted for the final summary.
+	 * @return Completes with the summary, or exceptionally if any call fails.
+	 */
+	public CompletableFuture<Result> summarize(String text, String instruction, int responseLength)
+	{
+		List<String> chunks = split(text, chunkLength, tokens);
+		AtomicInteger calls = new AtomicInteger();
+		return mapAll(chunks.size(), i ->
+		{
+			calls.incrementAndGet();
+			return model.complete(chunks.get(i), String.format(mapInstruction, i + 1, chunks.size()), partialResponseLength);
+		}).thenCompose(partials -> reduce(partials, instruction, responseLength, calls, 1))
+		  .thenApply(summary -> new Result(summary, chunks.size(), calls.get()));
+	}
+
+	private CompletableFuture<String> reduce(List<String> partials, String instruction, int responseLength, AtomicInteger calls, int round)
+	{
+		String joined = join(partials);
+		boolean fits = lengthOf(joined) <= chunkLength;
+		if (fits || partials.size() == 1 || round >= MAX_REDUCE_ROUNDS)
+		{
+			calls.incrementAndGet();
+			return model.complete(fits ? joined : joined.substring(0, endOf(joined, 0, chunkLength, tokens)), instruction, responseLength);
+		}
+		// Too long for one call, combine neighbouring partial summaries first.
+		List<List<String>> groups = group(partials);
+		return mapAll(groups.size(), g ->
+		{
+			calls.incrementAndGet();
+			return model.complete(join(groups.get(g)), combineInstruction, partialResponseLength);
+		}).thenCompose(combined -> reduce(combined, instruction, responseLength, calls, round + 1));
+	}
+
+	private String join(List<String> partials)
+	{
+		StringBuilder sb = new StringBuilder(reduceHeader);
+		for (int p = 0; p < partials.size(); p++)
+			sb.append("\n\nPart ").append(p + 1).append(":\n").append(partials.get(p).trim());
+		return sb.toString();
+	}
+
+	private List<List<String>> group(List<String> partials)
+	{
+		List<List<String>> groups = new ArrayList<List<String>>();
+		List<String> current = new ArrayList<String>();
+		int header = lengthOf(reduceHeader);
+		int length = header;
+		for (String partial : partials)
+		{
+			int partialLength = lengthOf(partial) + 16;
+			if (!current.isEmpty() && length + partialLength > chunkLength)
+			{
+				groups.add(current);
+				current = new ArrayList<String>();
+				length = header;
+			}
+			current.add(partial);
+			length += partialLength;
+		}
+		if (!current.isEmpty())
+			groups.add(current);
+		if (groups.size() == partials.size() && groups.size() > 1)
+		{ // every partial fills a call on its own, pair them up so that each round gets shorter
+			List<List<String>> pairs = new ArrayList<List<String>>();
+			for (int p = 0; p < partials.size(); p += 2)
+				pairs.add(partials.subList(p, Math.min(partials.size(), p + 2)));
+			return pairs;
+		}
+		return groups;
+	}
+
+	private int lengthOf(String text)
+	{
+		return (tokens == null) ? text.length() : tokens.estimate(text);
+	}
+
+	/**
+	 * @return Index in text after start at which length characters, or tokens if tokens is not null, are reached.
+	 */
+	private static int endOf(String text, int start, int length, TokenEstimator tokens)
+	{
+		return (tokens == null) ? Math.min(text.length(), start + length) : Math.max(start + 1, tokens.endFor(text, start, length));
+	}
+
+	/**
+	 * Runs count tasks with at most parallelism in flight, starting the next as each completes. On the first failure the tasks still in flight are cancelled, as their results would be thrown away.
+	 *
+	 * @return Completes with the results in task order, or exceptionally with the first failure.
+	 */
+	private CompletableFuture<List<String>> mapAll(int count, IntFunction<CompletableFuture<String>> task)
+	{
+		String[] results = new String[count];
+		List<CompletableFuture<String>> started = new ArrayList<CompletableFuture<String>>();
+		CompletableFuture<List<String>> done = new CompletableFuture<List<String>>();
+		AtomicInteger next = new AtomicInteger();
+		AtomicInteger remaining = new AtomicInteger(count);
+		Runnable[] startNext = new Runnable[1];
+		startNext[0] = () ->
+		{
+			int i = next.getAndIncrement();
+			if (i >= count || done.isDone())
+				return;
+			CompletableFuture<String> call;
+			try
+			{
+				call = task.apply(i);
+			} catch (RuntimeException e)
+			{
+				call = CompletableFuture.failedFuture(e);
+			}
+			synchronized (started)
+			{
+				started.add(call);
+			}
+			if (done.isDone())
+				call.cancel(true); // failed while this one was being started
+			call.whenComplete((result, e) ->
+			{
+				if (e != null)
+				{
+					if (done.completeExceptionally(e))
+					{
+						synchronized (started)
+						{
+							for (CompletableFuture<String> other : started)
+								other.cancel(true);
+						}
+					}
+				}
+				else
+				{
+					results[i] = (result == null) ? "" : result;
+					if (remaining.decrementAndGet() == 0)
+						done.complete(Arrays.asList(results));
+					else
+						startNext[0].run();
+				}
+			});
+		};
+		if (count == 0)
+			done.complete(new ArrayList<String>());
+		for (int k = 0; k < Math.min(parallelism, count); k++)
+			startNext[0].run();
+		return done;
+	}
+
+	/**
+	 * Splits text into chunks of at most chunkLength characters. Each chunk ends at the best boundary found in its second half: a page break, a blank line, a line end, a sentence end or a space, in that order of preference.
+	 */
+	public static List<String> split(String text, int chunkLength)
+	{
+		return split(text, chunkLength, null);
+	}
+
+	/**
+	 * Same as split(text, chunkLength), with chunkLength in tokens if tokens is not null.
+	 */
+	public static List<String> split(String text, int chunkLength, TokenEstimator tokens)
+	{
+		List<String> chunks = new ArrayList<String>();
+		int start = 0;
+		while (start < text.length())
+		{
+			int end = endOf(text, start, chunkLength, tokens);
+			if (end < text.length())
+			{
+				int floor = start + (end - start) / 2;
+				for (String boundary : BOUNDARIES)
+				{
+					int at = text.lastIndexOf(boundary, end - boundary.length());
+					if (at >= floor)
+					{
+						end = at + boundary.length();
+						break;
+					}
+				}
+			}
+			String chunk = text.substring(start, end);
+			if (!chunk.isBlank())
+				chunks.add(chunk);
+			start = end;
+		}
+		return chunks;
+	}
+}
@@ -0,0 +1,433 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import chongwm.demo.aws.community.examples.S3Utils;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+/**
+ * Finds nodes whose text is nearly the same as that of a node already summarized, eg. a copy or a lightly edited version, so that its summary can be reused instead of asking Amazon Bedrock again.
+ *
+ * Each text is reduced to a MinHash signature of its 5 word shingles: HASHES minimums, of which only the low 16 bits are kept. The share of positions two signatures agree on estimates the Jaccard similarity of their shingles. Signatures are indexed by
+ * locality sensitive hashing, BANDS bands of ROWS positions each, so that only nodes that agree on a whole band are compared. With 32 bands of 4, pairs of similarity 0.8 and above are found with near certainty.
+ *
+ * The index is held in memory, up to maxEntries nodes, least recently summarized dropped first. It is saved as a compact snapshot of about 300 bytes a node. Concurrent execution environments each save their own, the last one saved wins.
+ */
+public class NearDuplicateIndex
+{
+	/**
+	 * Where the snapshot is kept.
+	 */
+	public interface SnapshotStore
+	{
+		/**
+		 * @return The snapshot, or null if none has been saved yet.
+		 */
+		InputStream open() throws IOException;
+
+		void save(byte[] snapshot) throws IOException;
+	}
+
+	/**
+	 * Keeps the snapshot in a local file.
+	 */
+	public static class FileSnapshotStore implements SnapshotStore
+	{
+		private final File file;
+
+		public FileSnapshotStore(File file)
+		{
+			this.file = file;
+		}
+
+		@Override
+		public InputStream open() throws IOException
+		{
+			return file.isFile() ? new FileInputStream(file) : null;
+		}
+
+		@Override
+		public void save(byte[] snapshot) throws IOException
+		{ // write then rename, so that a concurrent reader never sees half a snapshot
+			File directory = file.getAbsoluteFile().getParentFile();
+			directory.mkdirs();
+			File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+			Files.write(tmp.toPath(), snapshot);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * Keeps the snapshot as an object in the staging bucket.
+	 */
+	public static class S3SnapshotStore implements SnapshotStore
+	{
+		private final Supplier<S3Client> s3Client; // built when the snapshot is first read or saved
+		private final S3Utils s3Utils;
+		private final String key;
+
+		/**
+		 * @param key
+		 *            Object key, relative to the bucket.
+		 */
+		public S3SnapshotStore(Supplier<S3Client> s3Client, S3Utils s3Utils, String key)
+		{
+			this.s3Client = s3Client;
+			this.s3Utils = s3Utils;
+			this.key = key;
+		}
+
+		@Override
+		public InputStream open()
+		{
+			try
+			{
+				return s3Utils.getInputStreamFromS3(s3Client.get(), key);
+			} catch (NoSuchKeyException e)
+			{
+				return null;
+			}
+		}
+
+		@Override
+		public void save(byte[] snapshot) throws IOException
+		{
+			s3Utils.uploadStream(s3Client.get(), key, new ByteArrayInputStream(snapshot), snapshot.length);
+		}
+	}
+
+	/**
+	 * A node found to be a near-duplicate.
+	 */
+	public static class Match
+	{
+		private final String nodeId;
+		private final double similarity;
+
+		Match(String nodeId, double similarity)
+		{
+			this.nodeId = nodeId;
+			this.similarity = similarity;
+		}
+
+		public String getNodeId()
+		{
+			return nodeId;
+		}
+
+		/**
+		 * @return Estimated Jaccard similarity of the two texts' shingles, 0 to 1.
+		 */
+		public double getSimilarity()
+		{
+			return similarity;
+		}
+	}
+
+	private static class Entry
+	{
+		final long settings;
+		final short[] signature;
+
+		Entry(long settings, short[] signature)
+		{
+			this.settings = settings;
+			this.signature = signature;
+		}
+	}
+
+	private static final int HASHES = 128;
+	private static final int BANDS = 32;
+	private static final int ROWS = HASHES / BANDS;
+	private static final int SHINGLE_WORDS = 5;
+	private static final int MIN_SHINGLES = 20; // shorter texts are too alike by chance
+	private static final int SNAPSHOT_MAGIC = 0x4E445831; // "NDX1"
+	private static final long[] SEEDS = new long[HASHES];
+	static
+	{
+		for (int i = 0; i < HASHES; i++)
+			SEEDS[i] = mix(0x9E3779B97F4A7C15L * (i + 1)); // fixed, so that snapshots stay valid across runs
+	}
+
+	private final double threshold;
+	private final int maxEntries;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(); // insertion order, eldest was summarized longest ago
+	private final Map<Long, List<String>> bands = new HashMap<Long, List<String>>(); // band key to nodes, see bandKey()
+	private boolean changed = false;
+	private int lookups = 0;
+	private int matches = 0;
+
+	/**
+	 * @param threshold
+	 *            Least similarity, 0 to 1, at which a node is a near-duplicate. Pairs below about 0.5 are rarely found at all.
+	 * @param maxEntries
+	 *            Nodes held.
+	 */
+	public NearDuplicateIndex(double threshold, int maxEntries)
+	{
+		this.threshold = threshold;
+		this.maxEntries = Math.max(1, maxEntries);
+	}
+
+	/**
+	 * @return MinHash signature of text's shingles, or null if text is too short to compare.
+	 */
+	public static short[] signatureOf(CharSequence text)
+	{
+		long[] minimums = new long[HASHES];
+		Arrays.fill(minimums, Long.MAX_VALUE);
+		long[] words = new long[SHINGLE_WORDS]; // the last words, as a ring
+		int wordCount = 0;
+		int shingles = 0;
+		int length = text.length();
+		int i = 0;
+		while (i < length)
+		{
+			char c = text.charAt(i);
+			if (!Character.isLetterOrDigit(c))
+			{
+				i++;
+				continue;
+			}
+			long word = 0xCBF29CE484222325L; // FNV-1a
+			if (c >= '\u3040' && c <= '\u9FFF')
+			{ // CJK is not spaced, each character is a word
+				word = (word ^ c) * 0x100000001B3L;
+				i++;
+			} else
+			{
+				while (i < length && Character.isLetterOrDigit(text.charAt(i)) && !(text.charAt(i) >= '\u3040' && text.charAt(i) <= '\u9FFF'))
+					word = (word ^ Character.toLowerCase(text.charAt(i++))) * 0x100000001B3L;
+			}
+			words[wordCount++ % SHINGLE_WORDS] = word;
+			if (wordCount < SHINGLE_WORDS)
+				continue;
+			long shingle = 0;
+			for (int w = wordCount - SHINGLE_WORDS; w < wordCount; w++)
+				shingle = shingle * 31 + words[w % SHINGLE_WORDS];
+			for (int h = 0; h < HASHES; h++)
+			{
+				long value = mix(shingle ^ SEEDS[h]);
+				if (value < minimums[h])
+					minimums[h] = value;
+			}
+			shingles++;
+		}
+		if (shingles < MIN_SHINGLES)
+			return null;
+		short[] signature = new short[HASHES];
+		for (int h = 0; h < HASHES; h++)
+			signature[h] = (short) minimums[h];
+		return signature;
+	}
+
+	/**
+	 * @return A 64 bit digest of the settings that shape a summary, see SummaryCache.keyOf(). Only nodes summarized with the same settings are near-duplicates.
+	 */
+	public static long settingsOf(String prompt, float temperature, int responseLength, String fm)
+	{
+		return Long.parseUnsignedLong(SummaryCache.keyOf("", 0, prompt, temperature, responseLength, fm).substring(0, 16), 16);
+	}
+
+	/**
+	 * @return The most similar node summarized with the same settings, if its similarity reaches the threshold, otherwise null. It may be the node itself, as it was when last summarized, eg. before a new version was uploaded.
+	 */
+	public Match find(short[] signature, long settings)
+	{
+		if (signature == null)
+			return null;
+		String best = null;
+		int bestAgreed = -1;
+		synchronized (this)
+		{
+			lookups++;
+			for (int b = 0; b < BANDS; b++)
+			{
+				List<String> candidates = bands.get(bandKey(signature, b));
+				if (candidates == null)
+					continue;
+				for (String candidate : candidates)
+				{
+					Entry entry = entries.get(candidate);
+					if (entry.settings != settings)
+						continue;
+					int agreed = 0;
+					for (int h = 0; h < HASHES; h++)
+						if (entry.signature[h] == signature[h])
+							agreed++;
+					if (agreed > bestAgreed)
+					{
+						best = candidate;
+						bestAgreed = agreed;
+					}
+				}
+			}
+			if (best == null || (double) bestAgreed / HASHES < threshold)
+				return null;
+			matches++;
+		}
+		return new Match(best, (double) bestAgreed / HASHES);
+	}
+
+	/**
+	 * Records the signature of a node just summarized, replacing any it had.
+	 */
+	public synchronized void put(String nodeId, short[] signature, long settings)
+	{
+		if (signature == null)
+			return;
+		remove(nodeId);
+		add(nodeId, new Entry(settings, signature));
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while (entries.size() > maxEntries && eldest.hasNext())
+		{
+			Map.Entry<String, Entry> entry = eldest.next();
+			eldest.remove();
+			unband(entry.getKey(), entry.getValue());
+		}
+		changed = true;
+	}
+
+	private void add(String nodeId, Entry entry)
+	{
+		entries.put(nodeId, entry);
+		for (int b = 0; b < BANDS; b++)
+			bands.computeIfAbsent(bandKey(entry.signature, b), k -> new ArrayList<String>(1)).add(nodeId);
+	}
+
+	private void remove(String nodeId)
+	{
+		Entry entry = entries.remove(nodeId);
+		if (entry != null)
+			unband(nodeId, entry);
+	}
+
+	private void unband(String nodeId, Entry entry)
+	{
+		for (int b = 0; b < BANDS; b++)
+		{
+			Long key = bandKey(entry.signature, b);
+			List<String> nodes = bands.get(key);
+			if (nodes != null && nodes.remove(nodeId) && nodes.isEmpty())
+				bands.remove(key);
+		}
+	}
+
+	/**
+	 * @return The band's ROWS values and its number, packed into one long.
+	 */
+	private static long bandKey(short[] signature, int band)
+	{
+		long key = band;
+		for (int r = band * ROWS; r < (band + 1) * ROWS; r++)
+			key = (key << 16) | (signature[r] & 0xFFFF);
+		return mix(key);
+	}
+
+	/**
+	 * SplitMix64's finalizer.
+	 */
+	private static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Replaces the index's content with a snapshot.
+	 *
+	 * @return Nodes read.
+	 */
+	public synchronized int load(SnapshotStore store) throws IOException
+	{
+		try (InputStream in = store.open())
+		{
+			if (in == null)
+				return 0;
+			DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+			if (data.readInt() != SNAPSHOT_MAGIC || data.readInt() != HASHES)
+				throw new IOException("Not a near-duplicate index snapshot of " + HASHES + " hashes.");
+			int count = data.readInt();
+			entries.clear();
+			bands.clear();
+			for (int n = 0; n < count; n++)
+			{
+				String nodeId = data.readUTF();
+				long settings = data.readLong();
+				short[] signature = new short[HASHES];
+				for (int h = 0; h < HASHES; h++)
+					signature[h] = data.readShort();
+				add(nodeId, new Entry(settings, signature));
+			}
+			changed = false;
+			return count;
+		}
+	}
+
+	/**
+	 * Saves the index if it changed since it was loaded or last saved.
+	 *
+	 * @return false if there was nothing to save.
+	 */
+	public boolean save(SnapshotStore store) throws IOException
+	{
+		ByteArrayOutputStream bytes;
+		synchronized (this)
+		{
+			if (!changed)
+				return false;
+			bytes = new ByteArrayOutputStream(16 + entries.size() * (2 * HASHES + 48));
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(bytes));
+			data.writeInt(SNAPSHOT_MAGIC);
+			data.writeInt(HASHES);
+			data.writeInt(entries.size());
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) // eldest first, so that a reload keeps the order
+			{
+				data.writeUTF(entry.getKey());
+				data.writeLong(entry.getValue().settings);
+				for (short value : entry.getValue().signature)
+					data.writeShort(value);
+			}
+			data.flush();
+			changed = false;
+		}
+		try
+		{
+			store.save(bytes.toByteArray());
+		} catch (IOException | RuntimeException e)
+		{
+			synchronized (this)
+			{
+				changed = true; // try again next time
+			}
+			throw e;
+		}
+		return true;
+	}
+
+	public synchronized String getStatistics()
+	{
+		return "Near-duplicate index: " + entries.size() + " nodes, " + lookups + " lookups, " + matches + " near-duplicates at a similarity of " + threshold + " or more.";
+	}
+}
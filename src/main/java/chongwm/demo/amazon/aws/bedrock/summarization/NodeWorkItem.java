@@ -0,0 +1,66 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.util.Date;
+
+import chongwm.demo.hyland.alfresco.search.pojo.json2kt.Entry;
+
+/**
+ * State of one Alfresco node as it moves through the summarization pipeline. Each stage fills in the fields it produces. An item is only ever worked on by one stage at a time.
+ */
+public class NodeWorkItem
+{
+	final Entry entry;
+	final int sequence; // order in which the search returned the node, for logging
+	final Date startTime = new Date();
+	FetchedContent content; // downloaded content, released once extracted
+	PdfMemoryGovernor.Permit memoryPermit; // held from download until the PDF is closed, only when the memory governor is on
+	WorkPlanner.Route route = WorkPlanner.Route.DIRECT;
+	TimeBudgetScheduler.Ticket ticket; // the node's share of the invocation's time, released when it leaves the pipeline
+	String text; // extracted text, null if the MIME type is not supported
+	long fullTextLength; // whole document's text length, estimated if extraction stopped early
+	String cacheKey; // key of the text and settings in the summary cache, null if the cache is off
+	boolean cacheResponse; // aiResponse came from the model and goes into the summary cache in the update stage
+	short[] signature; // MinHash of the text, see NearDuplicateIndex
+	String aiResponse;
+	String log;
+	final SummarizationEvents.Document event = new SummarizationEvents.Document(); // timed from the moment the node is queued
+
+	public NodeWorkItem(Entry entry, int sequence)
+	{
+		this.entry = entry;
+		this.sequence = sequence;
+		event.begin();
+	}
+
+	public Entry getEntry()
+	{
+		return entry;
+	}
+
+	public String getNodeId()
+	{
+		return entry.getId();
+	}
+
+	public String getMimeType()
+	{
+		return entry.getContent().getMimeType();
+	}
+
+	/**
+	 * Releases downloaded content, deleting its temp file if it had to be spilled to disk, and gives back its share of the PDF memory budget.
+	 */
+	public void discardContent()
+	{
+		if (content != null)
+		{
+			content.close();
+			content = null;
+		}
+		if (memoryPermit != null)
+		{
+			memoryPermit.close();
+			memoryPermit = null;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.io.File;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessStreamCache.StreamCacheCreateFunction;
+
+/**
+ * Keeps the PDFs that are open at the same time within a heap budget. A PDF's heap cost is estimated from its Content.sizeInBytes, and a document is only let in while the estimated cost of all open documents fits in the budget. A document larger than the
+ * whole budget waits until it can be open on its own. A document parsed by several threads is open once per thread, so its permit is for as many copies as fit in the budget left, up to the number asked for, and the document is parsed by no more
+ * threads than that.
+ *
+ * It also supplies the PDFBox scratch setting that keeps each document's decoded streams to a fixed amount of main memory and moves the rest to temp files.
+ */
+public class PdfMemoryGovernor
+{
+	/**
+	 * A share of the budget held by one document. Closing it more than once is harmless.
+	 */
+	public class Permit implements AutoCloseable
+	{
+		private final long cost;
+		private final int copies;
+		private boolean released = false;
+
+		private Permit(long cost, int copies)
+		{
+			this.cost = cost;
+			this.copies = copies;
+		}
+
+		public long getCost()
+		{
+			return cost;
+		}
+
+		/**
+		 * @return Copies of the document that may be open at the same time, at least 1.
+		 */
+		public int getCopies()
+		{
+			return copies;
+		}
+
+		@Override
+		public void close()
+		{
+			synchronized (PdfMemoryGovernor.this)
+			{
+				if (released)
+					return;
+				released = true;
+				inUse -= cost;
+				PdfMemoryGovernor.this.notifyAll();
+			}
+		}
+	}
+
+	private final long budgetBytes;
+	private final int costFactor;
+	private final long maxMainMemoryBytes;
+	private final File scratchDirectory;
+	private long inUse = 0;
+	private long peakInUse = 0;
+	private int waits = 0;
+
+	/**
+	 * @param budgetBytes
+	 *            Heap that all open PDFs together may use.
+	 * @param costFactor
+	 *            Heap used by an open PDF, as a multiple of its file size.
+	 * @param maxMainMemoryBytes
+	 *            Main memory each document's PDFBox scratch buffers may use before spilling to scratchDirectory.
+	 * @param scratchDirectory
+	 *            Folder for PDFBox scratch files.
+	 */
+	public PdfMemoryGovernor(long budgetBytes, int costFactor, long maxMainMemoryBytes, File scratchDirectory)
+	{
+		this.budgetBytes = Math.max(1, budgetBytes);
+		this.costFactor = Math.max(1, costFactor);
+		this.maxMainMemoryBytes = maxMainMemoryBytes;
+		this.scratchDirectory = scratchDirectory;
+	}
+
+	/**
+	 * @return Estimated heap cost of a PDF of the given size, never more than the whole budget.
+	 */
+	public long costOf(long sizeInBytes)
+	{
+		return Math.min(budgetBytes, Math.max(1, sizeInBytes) * costFactor);
+	}
+
+	/**
+	 * Blocks until a document of the given size fits in the budget.
+	 *
+	 * @param sizeInBytes
+	 *            File size of the PDF, such as Content.getSizeInBytes().
+	 * @return The permit, to be closed once the document has been closed.
+	 * @throws InterruptedException
+	 */
+	public Permit acquire(long sizeInBytes) throws InterruptedException
+	{
+		return acquire(sizeInBytes, 1);
+	}
+
+	/**
+	 * Blocks until one copy of a document of the given size fits in the budget, then takes as many more as fit, up to copies.
+	 *
+	 * @param sizeInBytes
+	 *            File size of the PDF, such as Content.getSizeInBytes().
+	 * @param copies
+	 *            Copies of the document that would be open at the same time, eg. one per thread parsing it.
+	 * @return The permit, to be closed once every copy has been closed. Permit.getCopies() tells how many may be open.
+	 * @throws InterruptedException
+	 */
+	public synchronized Permit acquire(long sizeInBytes, int copies) throws InterruptedException
+	{
+		long cost = costOf(sizeInBytes);
+		if (inUse + cost > budgetBytes)
+		{
+			waits++;
+			while (inUse + cost > budgetBytes)
+				wait();
+		}
+		int granted = (int) Math.max(1, Math.min(Math.max(1, copies), (budgetBytes - inUse) / cost));
+		inUse += cost * granted;
+		peakInUse = Math.max(peakInUse, inUse);
+		return new Permit(cost * granted, granted);
+	}
+
+	/**
+	 * @return true if a document of this size is big enough that it should not be held in memory, nor parsed by several threads at once.
+	 */
+	public boolean isLarge(long sizeInBytes)
+	{
+		return sizeInBytes > maxMainMemoryBytes;
+	}
+
+	/**
+	 * @return Scratch setting to pass to Loader.loadPDF.
+	 */
+	public StreamCacheCreateFunction getStreamCache()
+	{
+		MemoryUsageSetting setting = MemoryUsageSetting.setupMixed(maxMainMemoryBytes);
+		if (scratchDirectory != null)
+			setting = setting.setTempDir(scratchDirectory);
+		return setting.streamCache;
+	}
+
+	public long getBudgetBytes()
+	{
+		return budgetBytes;
+	}
+
+	public long getMaxMainMemoryBytes()
+	{
+		return maxMainMemoryBytes;
+	}
+
+	public synchronized long getPeakInUse()
+	{
+		return peakInUse;
+	}
+
+	/**
+	 * @return Number of documents that had to wait for budget.
+	 */
+	public synchronized int getWaits()
+	{
+		return waits;
+	}
+}
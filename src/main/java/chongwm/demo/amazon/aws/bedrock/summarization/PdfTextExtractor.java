@@ -0,0 +1,269 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+/**
+ * Extracts the text of a PDF in page ranges, several ranges at a time, and reassembles them in page order. Extraction stops once the text collected from the leading pages reaches the requested number of characters, since inference would discard the
+ * rest anyway.
+ *
+ * PDDocument is not thread safe, so every thread works on a document of its own opened from the same source. The calling thread always takes part, so extraction progresses even when the pool is busy with other documents.
+ */
+public class PdfTextExtractor
+{
+	/**
+	 * Opens a new, independent PDDocument on each call.
+	 */
+	@FunctionalInterface
+	public interface DocumentSource
+	{
+		PDDocument open() throws IOException;
+	}
+
+	/**
+	 * Text extracted from a PDF.
+	 */
+	public static class Result
+	{
+		private final String text;
+		private final int pageCount;
+		private final int pagesRead;
+		private final long elapsedMillis;
+
+		Result(String text, int pageCount, int pagesRead, long elapsedMillis)
+		{
+			this.text = text;
+			this.pageCount = pageCount;
+			this.pagesRead = pagesRead;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		public String getText()
+		{
+			return text;
+		}
+
+		public int getPageCount()
+		{
+			return pageCount;
+		}
+
+		public int getPagesRead()
+		{
+			return pagesRead;
+		}
+
+		public long getElapsedMillis()
+		{
+			return elapsedMillis;
+		}
+
+		/**
+		 * @return true if extraction stopped before the last page.
+		 */
+		public boolean isCutOff()
+		{
+			return pagesRead < pageCount;
+		}
+
+		/**
+		 * @return Length the whole document's text would have had, extrapolated from the pages read.
+		 */
+		public long getEstimatedFullLength()
+		{
+			if (!isCutOff() || pagesRead == 0)
+				return text.length();
+			return (long) text.length() * pageCount / pagesRead;
+		}
+	}
+
+	/**
+	 * Marks the end of each page in the extracted text.
+	 */
+	public static final String PAGE_BREAK = "\f";
+
+	private final Executor pool;
+	private final int pagesPerRange;
+	private final int parallelism;
+
+	/**
+	 * @param pool
+	 *            Threads that help the caller. Should be sized to the CPUs available.
+	 * @param pagesPerRange
+	 *            Number of pages handed to a thread at a time.
+	 * @param parallelism
+	 *            Maximum number of threads, including the caller, working on one document.
+	 */
+	public PdfTextExtractor(Executor pool, int pagesPerRange, int parallelism)
+	{
+		this.pool = pool;
+		this.pagesPerRange = Math.max(1, pagesPerRange);
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * @param source
+	 *            Opens the document.
+	 * @param maxChars
+	 *            Stop once at least this many characters have been collected from the leading pages. Use Integer.MAX_VALUE for the whole document.
+	 * @return Extracted text, at least maxChars long unless the document is shorter.
+	 * @throws IOException
+	 */
+	public Result extract(DocumentSource source, int maxChars) throws IOException
+	{
+		return extract(source, maxChars, parallelism);
+	}
+
+	/**
+	 * @param parallelism
+	 *            Maximum number of threads, including the caller, for this document. Overrides the extractor's own setting, eg. to parse a large document on one thread only.
+	 */
+	public Result extract(DocumentSource source, int maxChars, int parallelism) throws IOException
+	{
+		long startTime = System.currentTimeMillis();
+		PDDocument first = source.open();
+		Extraction extraction;
+		List<CompletableFuture<Void>> helperRuns = new ArrayList<CompletableFuture<Void>>();
+		try
+		{
+			int pageCount = first.getNumberOfPages();
+			if (pageCount == 0)
+				return new Result("", 0, 0, System.currentTimeMillis() - startTime);
+			extraction = new Extraction(source, pageCount, maxChars);
+			int helpers = Math.min(Math.max(1, parallelism), extraction.ranges) - 1;
+			for (int h = 0; h < helpers; h++)
+			{
+				try
+				{
+					helperRuns.add(CompletableFuture.runAsync(() -> extraction.work(null), pool));
+				} catch (RejectedExecutionException e)
+				{
+					break; // the caller carries on alone
+				}
+			}
+			extraction.work(first);
+		} finally
+		{
+			// Helpers still parse the source until they finish their range, the caller's caller may delete it or release its memory permit once this returns.
+			CompletableFuture.allOf(helperRuns.toArray(new CompletableFuture<?>[0])).handle((done, e) -> null).join();
+			first.close();
+		}
+		return extraction.result(System.currentTimeMillis() - startTime);
+	}
+
+	/**
+	 * Shared state of one document's extraction. Ranges are claimed in page order, so the text at the front of the document is always finished first.
+	 */
+	private class Extraction
+	{
+		final DocumentSource source;
+		final int pageCount;
+		final int ranges;
+		final int maxChars;
+		final String[] texts;
+		final AtomicInteger nextRange = new AtomicInteger();
+		final AtomicBoolean enough = new AtomicBoolean(false);
+		Throwable failure;
+		int prefixRanges = 0; // ranges[0..prefixRanges) are all done
+		long prefixChars = 0;
+
+		Extraction(DocumentSource source, int pageCount, int maxChars)
+		{
+			this.source = source;
+			this.pageCount = pageCount;
+			this.ranges = (pageCount + pagesPerRange - 1) / pagesPerRange;
+			this.maxChars = maxChars;
+			this.texts = new String[ranges];
+		}
+
+		private boolean moreToDo()
+		{
+			return !enough.get() && nextRange.get() < ranges;
+		}
+
+		/**
+		 * Claims and strips ranges until none are left or enough text has been collected.
+		 *
+		 * @param document
+		 *            Document to use, or null to open one only if there is work left.
+		 */
+		void work(PDDocument document)
+		{
+			boolean ownDocument = (document == null);
+			try
+			{
+				if (!moreToDo())
+					return;
+				if (ownDocument)
+					document = source.open();
+				PDFTextStripper stripper = new PDFTextStripper();
+				stripper.setPageEnd(stripper.getLineSeparator() + PAGE_BREAK); // lets long text be split on page boundaries, see MapReduceSummarizer
+				int r;
+				while (!enough.get() && (r = nextRange.getAndIncrement()) < ranges)
+				{
+					stripper.setStartPage(r * pagesPerRange + 1);
+					stripper.setEndPage(Math.min(pageCount, (r + 1) * pagesPerRange));
+					String text = stripper.getText(document);
+					completed(r, text);
+				}
+			} catch (Throwable e) // a RuntimeException from a malformed page too, so that the other threads stop
+			{
+				failed(e);
+			} finally
+			{
+				if (ownDocument && document != null)
+				{
+					try
+					{
+						document.close();
+					} catch (IOException e)
+					{
+						// nothing more to read from it
+					}
+				}
+			}
+		}
+
+		private synchronized void completed(int range, String text)
+		{
+			texts[range] = text;
+			while (prefixRanges < ranges && texts[prefixRanges] != null)
+				prefixChars += texts[prefixRanges++].length();
+			if (prefixChars >= maxChars)
+				enough.set(true);
+		}
+
+		private synchronized void failed(Throwable e)
+		{
+			if (failure == null)
+				failure = e;
+			enough.set(true);
+		}
+
+		synchronized Result result(long elapsedMillis) throws IOException
+		{
+			if (failure instanceof IOException)
+				throw (IOException) failure;
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure instanceof Error)
+				throw (Error) failure;
+			if (failure != null)
+				throw new IOException(failure);
+			StringBuilder sb = new StringBuilder((int) Math.min(prefixChars, Integer.MAX_VALUE - 8));
+			for (int r = 0; r < prefixRanges; r++)
+				sb.append(texts[r]);
+			int pagesRead = Math.min(pageCount, prefixRanges * pagesPerRange);
+			return new Result(sb.toString(), pageCount, pagesRead, elapsedMillis);
+		}
+	}
+}
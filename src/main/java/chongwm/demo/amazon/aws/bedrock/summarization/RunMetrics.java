@@ -0,0 +1,273 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Latencies, sizes and counts of one run, eg. one Lambda invocation. Each measurement is recorded into a histogram of its name, which keeps counts in buckets 1/16 of a power of 2 wide, so percentiles are accurate to about 6% in a fixed 8KB whatever the
+ * number of values.
+ *
+ * toEmf() renders the run as CloudWatch Embedded Metric Format (https://docs.aws.amazon.com/AmazonCloudWatch/latest/monitoring/CloudWatch_Embedded_Metric_Format_Specification.html) log lines, which CloudWatch Logs turns into metrics without any
+ * PutMetricData call. Each histogram gives its p50, p95, p99, maximum and count.
+ */
+public class RunMetrics
+{
+	/**
+	 * CloudWatch units of the values recorded.
+	 */
+	public enum Unit
+	{
+		Milliseconds, Bytes, Count
+	}
+
+	/**
+	 * Distribution of the values of one measurement.
+	 */
+	public static class Histogram
+	{
+		private static final int SUB_BUCKETS = 16; // per power of 2
+		private static final int SUB_BITS = 4;
+
+		private final Unit unit;
+		private final long[] counts = new long[64 * SUB_BUCKETS];
+		private long count = 0;
+		private long sum = 0;
+		private long min = Long.MAX_VALUE;
+		private long max = 0;
+
+		Histogram(Unit unit)
+		{
+			this.unit = unit;
+		}
+
+		public synchronized void record(long value)
+		{
+			value = Math.max(0, value);
+			counts[indexOf(value)]++;
+			count++;
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		private static int indexOf(long value)
+		{
+			if (value < SUB_BUCKETS)
+				return (int) value;
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+		}
+
+		private static long lowestOf(int index)
+		{
+			if (index < SUB_BUCKETS)
+				return index;
+			int shift = index / SUB_BUCKETS - 1;
+			return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		}
+
+		/**
+		 * @param percentile
+		 *            0 to 100.
+		 * @return The value below which percentile % of the values fall, 0 if there are none.
+		 */
+		public synchronized long getPercentile(double percentile)
+		{
+			if (count == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++)
+			{
+				seen += counts[i];
+				if (seen >= rank)
+				{
+					long middle = (lowestOf(i) + lowestOf(i + 1) - 1) / 2;
+					return Math.max(min, Math.min(max, middle));
+				}
+			}
+			return max;
+		}
+
+		public Unit getUnit()
+		{
+			return unit;
+		}
+
+		public synchronized long getCount()
+		{
+			return count;
+		}
+
+		public synchronized long getSum()
+		{
+			return sum;
+		}
+
+		public synchronized long getMax()
+		{
+			return max;
+		}
+	}
+
+	private static final int EMF_MAX_METRICS = 100; // per directive
+	private static final String[] PERCENTILES = {"p50", "p95", "p99"};
+
+	private final long startedAt = System.currentTimeMillis();
+	private final Map<String, Histogram> histograms = new TreeMap<String, Histogram>();
+	private final Map<String, AtomicLong> counters = new TreeMap<String, AtomicLong>();
+
+	/**
+	 * Records one value of a measurement, eg. the latency of one call.
+	 */
+	public void record(String name, Unit unit, long value)
+	{
+		Histogram histogram;
+		synchronized (histograms)
+		{
+			histogram = histograms.computeIfAbsent(name, k -> new Histogram(unit));
+		}
+		histogram.record(value);
+	}
+
+	/**
+	 * Records the milliseconds since startNanos, a System.nanoTime().
+	 */
+	public void recordMillisSince(String name, long startNanos)
+	{
+		record(name, Unit.Milliseconds, (System.nanoTime() - startNanos) / 1000000);
+	}
+
+	/**
+	 * Adds to a counter, eg. of documents or tokens.
+	 */
+	public void add(String name, long delta)
+	{
+		AtomicLong counter;
+		synchronized (counters)
+		{
+			counter = counters.computeIfAbsent(name, k -> new AtomicLong());
+		}
+		counter.addAndGet(delta);
+	}
+
+	/**
+	 * @return The measurement's histogram, or null if nothing was recorded under name.
+	 */
+	public Histogram getHistogram(String name)
+	{
+		synchronized (histograms)
+		{
+			return histograms.get(name);
+		}
+	}
+
+	/**
+	 * @return Milliseconds since the run started.
+	 */
+	public long getElapsedMillis()
+	{
+		return System.currentTimeMillis() - startedAt;
+	}
+
+	public long getCounter(String name)
+	{
+		synchronized (counters)
+		{
+			AtomicLong counter = counters.get(name);
+			return (counter == null) ? 0 : counter.get();
+		}
+	}
+
+	/**
+	 * @return Every metric of the run as name, unit and value, histograms flattened into their percentiles, maximum and count.
+	 */
+	private List<Object[]> flatten()
+	{
+		List<Object[]> metrics = new ArrayList<Object[]>();
+		synchronized (counters)
+		{
+			for (Map.Entry<String, AtomicLong> counter : counters.entrySet())
+				metrics.add(new Object[] {counter.getKey(), Unit.Count, counter.getValue().get()});
+		}
+		synchronized (histograms)
+		{
+			for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+			{
+				Histogram histogram = entry.getValue();
+				for (String percentile : PERCENTILES)
+					metrics.add(new Object[] {entry.getKey() + "." + percentile, histogram.getUnit(), histogram.getPercentile(Double.parseDouble(percentile.substring(1)))});
+				metrics.add(new Object[] {entry.getKey() + ".max", histogram.getUnit(), histogram.getMax()});
+				metrics.add(new Object[] {entry.getKey() + ".count", Unit.Count, histogram.getCount()});
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * @param namespace
+	 *            CloudWatch namespace of the metrics.
+	 * @param dimensions
+	 *            Dimension names and values, eg. FunctionName.
+	 * @return One EMF JSON document per line, each within the limit of 100 metrics.
+	 */
+	public List<String> toEmf(String namespace, Map<String, String> dimensions)
+	{
+		List<Object[]> metrics = flatten();
+		List<String> lines = new ArrayList<String>();
+		long timestamp = System.currentTimeMillis();
+		for (int from = 0; from < metrics.size(); from += EMF_MAX_METRICS)
+		{
+			JSONObject line = new JSONObject();
+			JSONArray definitions = new JSONArray();
+			for (Object[] metric : metrics.subList(from, Math.min(metrics.size(), from + EMF_MAX_METRICS)))
+			{
+				definitions.put(new JSONObject().put("Name", metric[0]).put("Unit", metric[1].toString()));
+				line.put((String) metric[0], metric[2]);
+			}
+			JSONObject directive = new JSONObject().put("Namespace", namespace).put("Dimensions", new JSONArray().put(new JSONArray(dimensions.keySet()))).put("Metrics", definitions);
+			line.put("_aws", new JSONObject().put("Timestamp", timestamp).put("CloudWatchMetrics", new JSONArray().put(directive)));
+			for (Map.Entry<String, String> dimension : dimensions.entrySet())
+				line.put(dimension.getKey(), dimension.getValue());
+			lines.add(line.toString());
+		}
+		return lines;
+	}
+
+	/**
+	 * @return The run's counters, and for each histogram its count, sum, percentiles and maximum, eg. to return from the Lambda handler.
+	 */
+	public Map<String, Object> toSummary()
+	{
+		Map<String, Object> summary = new LinkedHashMap<String, Object>();
+		summary.put("elapsedMillis", System.currentTimeMillis() - startedAt);
+		synchronized (counters)
+		{
+			for (Map.Entry<String, AtomicLong> counter : counters.entrySet())
+				summary.put(counter.getKey(), counter.getValue().get());
+		}
+		synchronized (histograms)
+		{
+			for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+			{
+				Histogram histogram = entry.getValue();
+				Map<String, Object> stats = new LinkedHashMap<String, Object>();
+				stats.put("unit", histogram.getUnit().toString());
+				stats.put("count", histogram.getCount());
+				stats.put("sum", histogram.getSum());
+				for (String percentile : PERCENTILES)
+					stats.put(percentile, histogram.getPercentile(Double.parseDouble(percentile.substring(1))));
+				stats.put("max", histogram.getMax());
+				summary.put(entry.getKey(), stats);
+			}
+		}
+		return summary;
+	}
+}
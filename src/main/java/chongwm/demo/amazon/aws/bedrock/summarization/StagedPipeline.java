@@ -0,0 +1,491 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A chain of stages, each with its own fixed number of worker threads and a bounded input queue. Work items flow from one stage to the next. When a stage's queue is full, the stage before it (or the submitter) blocks, so a slow stage throttles everything in
+ * front of it instead of letting work pile up in memory.
+ *
+ * Stages are added in order with addStage, then start() is called, items are submitted, and finish() waits for the pipeline to drain.
+ *
+ * @param <T>
+ *            Type of the work item passed between stages.
+ */
+public class StagedPipeline<T>
+{
+	/**
+	 * Work performed by a stage on one item.
+	 */
+	@FunctionalInterface
+	public interface StageTask<T>
+	{
+		/**
+		 * @return true to pass the item on to the next stage, false to drop it.
+		 */
+		boolean process(T item) throws Exception;
+	}
+
+	/**
+	 * Work started by an asynchronous stage on one item. It returns as soon as the work is under way.
+	 */
+	@FunctionalInterface
+	public interface AsyncStageTask<T>
+	{
+		/**
+		 * @return Completes with true to pass the item on to the next stage, false to drop it.
+		 */
+		CompletionStage<Boolean> process(T item) throws Exception;
+	}
+
+	/**
+	 * Called when a stage throws, including an Error such as OutOfMemoryError, and for each item abort() discards. The item is dropped from the pipeline afterwards.
+	 */
+	@FunctionalInterface
+	public interface FailureHandler<T>
+	{
+		void onFailure(String stageName, T item, Exception e);
+	}
+
+	private static final Object END = new Object(); // end of input marker, one per worker
+
+	private final String name;
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private final FailureHandler<T> failureHandler;
+	private CountDownLatch drained;
+	private boolean started = false;
+	private boolean finished = false;
+
+	public StagedPipeline(String name, FailureHandler<T> failureHandler)
+	{
+		this.name = name;
+		this.failureHandler = failureHandler;
+	}
+
+	/**
+	 * Appends a stage to the pipeline.
+	 *
+	 * @param stageName
+	 *            Used for thread names and statistics.
+	 * @param workers
+	 *            Number of threads that run this stage concurrently.
+	 * @param queueCapacity
+	 *            Number of items that may wait in front of this stage.
+	 * @param task
+	 *            Work performed on each item.
+	 * @return this pipeline
+	 */
+	public StagedPipeline<T> addStage(String stageName, int workers, int queueCapacity, StageTask<T> task)
+	{
+		if (started)
+			throw new IllegalStateException("Stages cannot be added to a running pipeline");
+		stages.add(new Stage(stageName, Math.max(1, workers), Math.max(1, queueCapacity), task));
+		return this;
+	}
+
+	/**
+	 * Appends a stage whose work completes asynchronously, such as a call through an asynchronous SDK client. One thread starts the work for up to maxInFlight items at once, and another passes each item on as its work completes, so no thread waits
+	 * on the work itself.
+	 *
+	 * @param stageName
+	 *            Used for thread names and statistics.
+	 * @param maxInFlight
+	 *            Number of items whose work may be under way at the same time.
+	 * @param queueCapacity
+	 *            Number of items that may wait in front of this stage.
+	 * @param task
+	 *            Starts the work on each item.
+	 * @return this pipeline
+	 */
+	public StagedPipeline<T> addAsyncStage(String stageName, int maxInFlight, int queueCapacity, AsyncStageTask<T> task)
+	{
+		if (started)
+			throw new IllegalStateException("Stages cannot be added to a running pipeline");
+		stages.add(new Stage(stageName, Math.max(1, maxInFlight), Math.max(1, queueCapacity), task));
+		return this;
+	}
+
+	public synchronized void start()
+	{
+		if (started)
+			return;
+		if (stages.isEmpty())
+			throw new IllegalStateException("Pipeline " + name + " has no stages");
+		started = true;
+		drained = new CountDownLatch(1);
+		for (int s = 0; s < stages.size(); s++)
+			stages.get(s).start(s);
+	}
+
+	/**
+	 * Hands an item to the first stage. Blocks while the first stage's queue is full.
+	 */
+	public void submit(T item) throws InterruptedException
+	{
+		if (!started || finished)
+			throw new IllegalStateException("Pipeline " + name + " is not accepting work");
+		stages.get(0).queue.put(item);
+	}
+
+	/**
+	 * Signals that no more items will be submitted and waits for all stages to drain.
+	 *
+	 * @return true if the pipeline drained within the timeout.
+	 */
+	public boolean finish(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		endOfInput();
+		return drained.await(timeout, unit);
+	}
+
+	public void finish() throws InterruptedException
+	{
+		endOfInput();
+		drained.await();
+	}
+
+	private synchronized void endOfInput() throws InterruptedException
+	{
+		if (!started)
+			start();
+		if (finished)
+			return;
+		finished = true;
+		stages.get(0).sendEnd();
+	}
+
+	/**
+	 * Stops all workers without draining. Items still queued or being worked on are discarded and handed to the failure handler, so that what they hold is released.
+	 */
+	public void abort()
+	{
+		finished = true;
+		for (Stage stage : stages)
+			stage.interruptAll();
+		for (Stage stage : stages)
+			stage.discardQueued();
+	}
+
+	/**
+	 * @return true for errors after which the JVM cannot be trusted to go on, a worker stops on them. An OutOfMemoryError or StackOverflowError is usually down to the one item and is not.
+	 */
+	private static boolean isFatal(Throwable t)
+	{
+		return (t instanceof VirtualMachineError) && !(t instanceof OutOfMemoryError) && !(t instanceof StackOverflowError);
+	}
+
+	/**
+	 * @return one line per stage with items processed, dropped, failed and busy time.
+	 */
+	public String getStatistics()
+	{
+		StringBuilder sb = new StringBuilder("Pipeline " + name + ":");
+		for (Stage stage : stages)
+			sb.append(" [").append(stage.name).append((stage.asyncTask == null) ? " workers=" : " inFlight=").append((stage.asyncTask == null) ? stage.workers : stage.maxInFlight).append(" processed=").append(stage.processed.get()).append(" dropped=").append(stage.dropped.get()).append(" failed=").append(stage.failed.get())
+			  .append(" busyMs=").append(stage.busyMillis.get()).append("]");
+		return sb.toString();
+	}
+
+	private class Stage
+	{
+		final String name;
+		final int workers;
+		final BlockingQueue<Object> queue;
+		final StageTask<T> task;
+		final AsyncStageTask<T> asyncTask;
+		final int maxInFlight; // asynchronous stages only
+		final List<Thread> threads = new ArrayList<Thread>();
+		final AtomicInteger liveWorkers = new AtomicInteger();
+		final AtomicLong processed = new AtomicLong();
+		final AtomicLong dropped = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final AtomicLong busyMillis = new AtomicLong();
+		final BlockingQueue<Object> completions = new LinkedBlockingQueue<Object>(); // asynchronous stages only, never holds more than maxInFlight, permits are returned once an item has been passed on
+		volatile boolean aborted = false;
+		Stage next;
+
+		Stage(String name, int workers, int queueCapacity, StageTask<T> task)
+		{
+			this.name = name;
+			this.workers = workers;
+			this.queue = new ArrayBlockingQueue<Object>(queueCapacity);
+			this.task = task;
+			this.asyncTask = null;
+			this.maxInFlight = 0;
+		}
+
+		Stage(String name, int maxInFlight, int queueCapacity, AsyncStageTask<T> asyncTask)
+		{
+			this.name = name;
+			this.workers = 1; // the dispatcher, the only thread taking from the queue
+			this.queue = new ArrayBlockingQueue<Object>(queueCapacity);
+			this.task = null;
+			this.asyncTask = asyncTask;
+			this.maxInFlight = maxInFlight;
+		}
+
+		void start(int index)
+		{
+			next = (index + 1 < stages.size()) ? stages.get(index + 1) : null;
+			if (asyncTask != null)
+			{
+				startAsync();
+				return;
+			}
+			liveWorkers.set(workers);
+			for (int w = 0; w < workers; w++)
+			{
+				Thread t = new Thread(this::runWorker, StagedPipeline.this.name + "-" + name + "-" + w);
+				t.setDaemon(true);
+				threads.add(t);
+				t.start();
+			}
+		}
+
+		void sendEnd() throws InterruptedException
+		{
+			for (int w = 0; w < workers; w++)
+				queue.put(END);
+		}
+
+		void interruptAll()
+		{
+			aborted = true;
+			for (Thread t : threads)
+				t.interrupt();
+		}
+
+		@SuppressWarnings("unchecked")
+		void discardQueued()
+		{
+			List<Object> left = new ArrayList<Object>();
+			queue.drainTo(left);
+			for (Object o : left)
+				if (o != END)
+					fail((T) o, new InterruptedException("Pipeline " + StagedPipeline.this.name + " aborted"));
+			discardCompletions();
+		}
+
+		/**
+		 * Hands the items of work completed after an abort to the failure handler, as the forwarder no longer passes them on.
+		 */
+		@SuppressWarnings("unchecked")
+		void discardCompletions()
+		{
+			Object o;
+			while ((o = completions.poll()) != null)
+				if (o != END)
+					fail(((Completion) o).item, new InterruptedException("Pipeline " + StagedPipeline.this.name + " aborted"));
+		}
+
+		void fail(T item, Throwable e)
+		{
+			failed.incrementAndGet();
+			if (failureHandler != null)
+				failureHandler.onFailure(name, item, (e instanceof Exception) ? (Exception) e : new Exception(e));
+		}
+
+		@SuppressWarnings("unchecked")
+		void runWorker()
+		{
+			try
+			{
+				while (true)
+				{
+					Object o = queue.take();
+					if (o == END)
+						break;
+					T item = (T) o;
+					long start = System.currentTimeMillis();
+					boolean forward = false;
+					try
+					{
+						forward = task.process(item);
+						processed.incrementAndGet();
+					} catch (Throwable e) // an Error or an abort() too, the item may hold a memory permit or a time budget ticket
+					{
+						fail(item, e);
+						if (e instanceof InterruptedException)
+							throw (InterruptedException) e;
+						if (isFatal(e))
+							throw (Error) e;
+					} finally
+					{
+						busyMillis.addAndGet(System.currentTimeMillis() - start);
+					}
+					if (!forward)
+						dropped.incrementAndGet();
+					else if (next != null)
+					{
+						try
+						{
+							next.queue.put(item);
+						} catch (InterruptedException e)
+						{
+							fail(item, e);
+							throw e;
+						}
+					}
+				}
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			} finally
+			{
+				if (liveWorkers.decrementAndGet() == 0)
+					closeDownstream();
+			}
+		}
+
+		private void startAsync()
+		{
+			Semaphore inFlight = new Semaphore(maxInFlight);
+			Thread dispatcher = new Thread(() -> runDispatcher(inFlight), StagedPipeline.this.name + "-" + name + "-dispatch");
+			Thread forwarder = new Thread(() -> runForwarder(inFlight), StagedPipeline.this.name + "-" + name + "-forward");
+			for (Thread t : new Thread[] {dispatcher, forwarder})
+			{
+				t.setDaemon(true);
+				threads.add(t);
+				t.start();
+			}
+		}
+
+		/**
+		 * Starts the work on each item as soon as a permit is free. On end of input, waits for all work to be passed on before telling the forwarder.
+		 */
+		@SuppressWarnings("unchecked")
+		void runDispatcher(Semaphore inFlight)
+		{
+			try
+			{
+				while (true)
+				{
+					Object o = queue.take();
+					if (o == END)
+						break;
+					T item = (T) o;
+					inFlight.acquire();
+					long start = System.currentTimeMillis();
+					CompletionStage<Boolean> work;
+					Throwable fatal = null;
+					try
+					{
+						work = asyncTask.process(item);
+					} catch (Throwable e) // reported through the forwarder like a failed completion
+					{
+						work = CompletableFuture.failedFuture(e);
+						if (isFatal(e))
+							fatal = e;
+					}
+					work.whenComplete((forward, e) -> 
+					{
+						busyMillis.addAndGet(System.currentTimeMillis() - start);
+						completions.add(new Completion(item, Boolean.TRUE.equals(forward), e));
+						if (aborted)
+							discardCompletions();
+					});
+					if (fatal != null)
+						throw (Error) fatal;
+				}
+				inFlight.acquire(maxInFlight);
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			} finally
+			{
+				completions.add(END);
+			}
+		}
+
+		/**
+		 * Passes completed items on, on a thread of its own so that whichever thread completed the work is never blocked by a full queue downstream.
+		 */
+		void runForwarder(Semaphore inFlight)
+		{
+			try
+			{
+				while (true)
+				{
+					Object o = completions.take();
+					if (o == END)
+						break;
+					@SuppressWarnings("unchecked")
+					Completion done = (Completion) o;
+					try
+					{
+						if (done.failure != null)
+						{
+							fail(done.item, (done.failure instanceof CompletionException && done.failure.getCause() != null) ? done.failure.getCause() : done.failure);
+							continue;
+						}
+						processed.incrementAndGet();
+						if (!done.forward)
+							dropped.incrementAndGet();
+						else if (next != null)
+						{
+							try
+							{
+								next.queue.put(done.item);
+							} catch (InterruptedException e)
+							{
+								fail(done.item, e);
+								throw e;
+							}
+						}
+					} finally
+					{
+						inFlight.release();
+					}
+				}
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			} finally
+			{
+				closeDownstream();
+			}
+		}
+
+		private class Completion
+		{
+			final T item;
+			final boolean forward;
+			final Throwable failure;
+
+			Completion(T item, boolean forward, Throwable failure)
+			{
+				this.item = item;
+				this.forward = forward;
+				this.failure = failure;
+			}
+		}
+
+		private void closeDownstream()
+		{
+			if (next == null)
+			{
+				drained.countDown();
+				return;
+			}
+			try
+			{
+				next.sendEnd();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				drained.countDown();
+			}
+		}
+	}
+}
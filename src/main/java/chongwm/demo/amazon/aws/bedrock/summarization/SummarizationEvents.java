@@ -0,0 +1,124 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the summarization hot path. They show, next to the JVM's own events such as GC pauses and socket reads, which document and which stage the time went to. An event that is not being recorded costs next to nothing, so
+ * they are always emitted, whether or not a recording is running (see jfrRecordingThresholdMillis).
+ *
+ * View a recording with JDK Mission Control, or eg. jfr print --events chongwm.summarization.Stage recording.jfr
+ */
+public final class SummarizationEvents
+{
+	private static final String CATEGORY = "Alfresco Summarization";
+
+	private SummarizationEvents()
+	{
+	}
+
+	/**
+	 * One node from the moment it is queued until its summary has been handed to the node updater, or it failed.
+	 */
+	@Name("chongwm.summarization.Document")
+	@Label("Document")
+	@Category(CATEGORY)
+	@Description("A node's whole way through the summarization pipeline")
+	@StackTrace(false)
+	public static class Document extends Event
+	{
+		@Label("Node Id")
+		public String nodeId;
+
+		@Label("MIME Type")
+		public String mimeType;
+
+		@Label("Route")
+		public String route;
+
+		@Label("Content Size")
+		@DataAmount
+		public long sizeBytes;
+
+		@Label("Text Length")
+		@Description("Characters sent for inference")
+		public long textChars;
+
+		@Label("Outcome")
+		public String outcome;
+	}
+
+	/**
+	 * One node's pass through one pipeline stage.
+	 */
+	@Name("chongwm.summarization.Stage")
+	@Label("Pipeline Stage")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static class Stage extends Event
+	{
+		@Label("Stage")
+		public String stage;
+
+		@Label("Node Id")
+		public String nodeId;
+
+		@Label("MIME Type")
+		public String mimeType;
+
+		@Label("Content Size")
+		@DataAmount
+		public long sizeBytes;
+
+		@Label("Text Length")
+		@Description("Characters of text once the stage is done")
+		public long textChars;
+
+		@Label("Outcome")
+		@Description("forwarded, dropped or the exception that failed the stage")
+		public String outcome;
+	}
+
+	/**
+	 * One remote call, eg. a Bedrock attempt or an Alfresco authentication.
+	 */
+	@Name("chongwm.summarization.Call")
+	@Label("Remote Call")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static class Call extends Event
+	{
+		@Label("Service")
+		public String service;
+
+		@Label("Operation")
+		public String operation;
+
+		@Label("Attempt")
+		public int attempt;
+
+		@Label("Input Tokens")
+		public long inputTokens;
+
+		@Label("Output Tokens")
+		public long outputTokens;
+
+		@Label("Outcome")
+		public String outcome;
+	}
+
+	/**
+	 * @return "forwarded" or "dropped" for a stage that returned, otherwise the exception's class and message.
+	 */
+	static String outcomeOf(Boolean forwarded, Throwable failure)
+	{
+		if (failure != null)
+			return failure.getClass().getSimpleName() + ": " + failure.getMessage();
+		return Boolean.TRUE.equals(forwarded) ? "forwarded" : "dropped";
+	}
+}
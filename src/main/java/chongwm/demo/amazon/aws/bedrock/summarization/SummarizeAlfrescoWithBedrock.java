@@ -1,48 +1,71 @@
 package chongwm.demo.amazon.aws.bedrock.summarization;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.file.Path;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpResponseException;
-import org.apache.http.client.config.CookieSpecs;
-import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
-import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.util.EntityUtils;
 import org.apache.pdfbox.Loader;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.FontMappers;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
 import org.apache.pdfbox.text.PDFTextStripper;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import org.crac.Core;
+import org.crac.Resource;
+
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
@@ -52,20 +75,19 @@ import com.google.gson.JsonSyntaxException;
 
 import chongwm.demo.aws.community.examples.S3Utils;
 import chongwm.demo.hyland.alfresco.search.pojo.json2kt.Content;
-import chongwm.demo.hyland.alfresco.search.pojo.json2kt.Entries;
 import chongwm.demo.hyland.alfresco.search.pojo.json2kt.Entry;
 import chongwm.demo.hyland.alfresco.search.pojo.json2kt.Properties;
 import chongwm.demo.hyland.alfresco.search.pojo.json2kt.SearchResults;
+import chongwm.demo.hyland.alfresco.search.pojo.json2kt.SearchResultsDecoder;
+import chongwm.demo.hyland.alfresco.search.pojo.json2kt.SearchResultsList;
 import chongwm.demo.toolbox.String.Utils;
 import software.amazon.awssdk.arns.Arn;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
-import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.regions.providers.DefaultAwsRegionProviderChain;
+import software.amazon.awssdk.services.bedrock.BedrockClient;
 import software.amazon.awssdk.services.bedrockruntime.BedrockRuntimeAsyncClient;
-import software.amazon.awssdk.services.bedrockruntime.BedrockRuntimeClient;
-import software.amazon.awssdk.services.bedrockruntime.model.InvokeModelRequest;
-import software.amazon.awssdk.services.bedrockruntime.model.InvokeModelResponse;
 import software.amazon.awssdk.services.bedrockruntime.model.ValidationException;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
@@ -77,9 +99,8 @@ import software.amazon.awssdk.services.s3.presigner.S3Presigner;
  * Queries an Alfresco Content Services repository for documents with crestBedrock:generateSummary property set true. See AAAAA for the GenAi aspect that provides the property. After summarization is completed, the crestBedrock:generateSummary is reset to false. The AI generated
  * summary is stored in crestBedrock:summary. The foundation model used for summary is specified in crestBedrock:fm. (Currently only Anthropic Claude v2 is supported).
  */
-public class SummarizeAlfrescoWithBedrock implements RequestHandler<Map<String, Object>, Integer>
+public class SummarizeAlfrescoWithBedrock implements RequestHandler<Map<String, Object>, Map<String, Object>>, Resource
 {
-	protected static String awsSessionToken = System.getenv("AWS_SESSION_TOKEN");
 	protected static String awsSecretsExtensionHTTPPort = System.getenv("PARAMETERS_SECRETS_EXTENSION_HTTP_PORT");
 	protected static String url = System.getenv("alfrescoHost");
 	protected static String userId = System.getenv("alfrescoSA"); // ignored if Lambda environment variable awsSecretsManagerSecretArn is populated
@@ -91,37 +112,117 @@ public class SummarizeAlfrescoWithBedrock implements RequestHandler<Map<String,
 	protected static boolean httpProtocol = ("https".compareToIgnoreCase(System.getenv("alfrescoHostProtocol")) == 0) ? true : false;
 	protected static Random obfuscateNodeNameRandomizer = ("false".compareToIgnoreCase(System.getenv("obfuscateNodeNameInS3"))==0) ? null:new Random(System.currentTimeMillis());
 	protected static int ExtractedTextThreshold = Integer.parseInt(System.getenv("ExtractedTextThreshold"));
-	protected static S3Client s3Client = S3Client.create();
-	protected static S3Presigner s3Presigner = S3Presigner.create();
-	//protected static BedrockRuntimeClient bedrockClient = BedrockRuntimeClient.create();
-	protected static BedrockRuntimeClient bedrockClient = BedrockRuntimeClient.builder()
-                                                          .region(bedrockRegion)
-			                                              .credentialsProvider(DefaultCredentialsProvider.create())
-			                                              .overrideConfiguration(b -> b.apiCallTimeout(Duration.ofSeconds(900)) //https://docs.aws.amazon.com/sdk-for-java/latest/developer-guide/best-practices.html
-			                                              .apiCallAttemptTimeout(Duration.ofSeconds(300)))
-			                                              .build();
-	protected static BedrockRuntimeAsyncClient bedrockAsyncClient = BedrockRuntimeAsyncClient.builder()
-            .region(new DefaultAwsRegionProviderChain().getRegion())
-            .credentialsProvider(DefaultCredentialsProvider.create())
-            .overrideConfiguration(b -> b.apiCallTimeout(Duration.ofSeconds(900)) //https://docs.aws.amazon.com/sdk-for-java/latest/developer-guide/best-practices.html
-            .apiCallAttemptTimeout(Duration.ofSeconds(300)))
-            .build(); 	
+	protected static int searchPageSize = (System.getenv("searchPageSize")==null) ? 100 : Integer.parseInt(System.getenv("searchPageSize")); // Alfresco maxItems per search page
+	protected static int pipelineFetchWorkers = (System.getenv("pipelineFetchWorkers")==null) ? 4 : Integer.parseInt(System.getenv("pipelineFetchWorkers"));
+	protected static int pipelineExtractWorkers = (System.getenv("pipelineExtractWorkers")==null) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(System.getenv("pipelineExtractWorkers"));
+	protected static int bedrockMaxInFlight = (System.getenv("bedrockMaxInFlight")==null) ? 8 : Integer.parseInt(System.getenv("bedrockMaxInFlight")); // Bedrock requests awaiting a response at the same time
+	protected static double bedrockInitialRate = (System.getenv("bedrockInitialRate")==null) ? 2 : Double.parseDouble(System.getenv("bedrockInitialRate")); // requests per second, adjusted to what Bedrock sustains
+	protected static double bedrockMaxRate = (System.getenv("bedrockMaxRate")==null) ? 50 : Double.parseDouble(System.getenv("bedrockMaxRate"));
+	protected static int bedrockMaxAttempts = (System.getenv("bedrockMaxAttempts")==null) ? 6 : Integer.parseInt(System.getenv("bedrockMaxAttempts"));
+	protected static long bedrockBackoffBaseMillis = (System.getenv("bedrockBackoffBaseMillis")==null) ? 1000 : Long.parseLong(System.getenv("bedrockBackoffBaseMillis"));
+	protected static long bedrockBackoffMaxMillis = (System.getenv("bedrockBackoffMaxMillis")==null) ? 60000 : Long.parseLong(System.getenv("bedrockBackoffMaxMillis"));
+	protected static AdaptiveRateLimiter bedrockRateLimiter = new AdaptiveRateLimiter(bedrockInitialRate, 0.05, bedrockMaxRate, 1, 0.5, bedrockBackoffBaseMillis, bedrockBackoffMaxMillis); // shared, so the learnt rate carries over to warm invocations
+	protected static int pipelineUpdateWorkers = (System.getenv("pipelineUpdateWorkers")==null) ? 2 : Integer.parseInt(System.getenv("pipelineUpdateWorkers")); // node updates sent at once, see AlfrescoNodeUpdater
+	protected static long lambdaTimeReserveMillis = (System.getenv("lambdaTimeReserveMillis")==null) ? 30000 : Long.parseLong(System.getenv("lambdaTimeReserveMillis")); // no node is admitted that would end within this of the timeout
+	protected static long lambdaTimeSafetyMillis = (System.getenv("lambdaTimeSafetyMillis")==null) ? 3000 : Long.parseLong(System.getenv("lambdaTimeSafetyMillis")); // Alfresco and Bedrock calls end this long before the timeout
+	protected static int checkpointMaxDeferred = (System.getenv("checkpointMaxDeferred")==null) ? 1000 : Integer.parseInt(System.getenv("checkpointMaxDeferred")); // deferred node ids saved for the next run
+	protected static TimeBudgetScheduler lastTimeBudget = null; // its learnt costs seed the next warm invocation's
+	protected static int alfrescoUpdateMaxAttempts = (System.getenv("alfrescoUpdateMaxAttempts")==null) ? 5 : Integer.parseInt(System.getenv("alfrescoUpdateMaxAttempts"));
+	protected static long alfrescoUpdateFlushTimeoutMillis = (System.getenv("alfrescoUpdateFlushTimeoutMillis")==null) ? 60000 : Long.parseLong(System.getenv("alfrescoUpdateFlushTimeoutMillis")); // longest wait for queued node updates before returning
+	protected static int pipelineQueueCapacity = (System.getenv("pipelineQueueCapacity")==null) ? 4 : Integer.parseInt(System.getenv("pipelineQueueCapacity")); // items waiting in front of each stage
+	protected static int alfrescoMaxConnectionsPerRoute = (System.getenv("alfrescoMaxConnectionsPerRoute")==null) ? 32 : Integer.parseInt(System.getenv("alfrescoMaxConnectionsPerRoute"));
+	protected static long alfrescoTicketTtlMillis = ((System.getenv("alfrescoTicketTtlSeconds")==null) ? 1800 : Long.parseLong(System.getenv("alfrescoTicketTtlSeconds"))) * 1000; // Alfresco expires idle tickets after an hour by default
+	protected static long secretCacheTtlMillis = ((System.getenv("secretCacheTtlSeconds")==null) ? 300 : Long.parseLong(System.getenv("secretCacheTtlSeconds"))) * 1000;
+	protected static int s3PartSizeBytes = (System.getenv("s3PartSizeBytes")==null) ? 8 * 1024 * 1024 : Integer.parseInt(System.getenv("s3PartSizeBytes")); // multipart upload part size, at least 5MB
+	protected static int s3UploadParallelism = (System.getenv("s3UploadParallelism")==null) ? 4 : Integer.parseInt(System.getenv("s3UploadParallelism")); // parts uploaded at once per object
+	// AWS clients are built on first use, see getS3Client() and the others, so that a cold start only pays for the ones the run needs. The sync clients use the URL connection HTTP client, which starts faster than the Apache one.
+	protected static S3Client s3Client = null;
+	protected static S3Presigner s3Presigner = null;
+	protected static BedrockRuntimeAsyncClient bedrockAsyncClient = null;
+	protected static BedrockClient bedrockControlClient = null; // batch inference jobs
+	protected static String batchRoleArn = System.getenv("batchRoleArn"); // service role for batch inference jobs, none are submitted without it
+	protected static int batchMinRecordsPerJob = (System.getenv("batchMinRecordsPerJob")==null) ? 100 : Integer.parseInt(System.getenv("batchMinRecordsPerJob")); // Bedrock's minimum, records wait in S3 across runs until there are this many
+	protected static int batchMaxRecordsPerJob = (System.getenv("batchMaxRecordsPerJob")==null) ? 50000 : Integer.parseInt(System.getenv("batchMaxRecordsPerJob"));
+	protected static long batchMaxJobBytes = (System.getenv("batchMaxJobBytes")==null) ? 1024L * 1024 * 1024 : Long.parseLong(System.getenv("batchMaxJobBytes"));
+	protected static long batchMaxFileBytes = (System.getenv("batchMaxFileBytes")==null) ? 200L * 1024 * 1024 : Long.parseLong(System.getenv("batchMaxFileBytes")); // built in /tmp before upload
+	protected static String batchOutputDirectory = System.getenv("batchOutputDirectory"); // local copy of the bucket to ingest batch output from, instead of S3
+	protected static ScheduledExecutorService bedrockRetryScheduler = Executors.newSingleThreadScheduledExecutor(r ->
+	{
+		Thread t = new Thread(r, "bedrock-retry");
+		t.setDaemon(true);
+		return t;
+	});
 	protected static SimpleDateFormat alfrescoDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-	protected static String EphemeralPathForRetrievedAlfrescoContent = "/tmp/output.bin";
-	private String ticket;
-	protected String encodedTicket;
-	protected CloseableHttpClient httpClient = null;
-	protected HttpPost searchHttpPost = null;
+	protected static String EphemeralPathForRetrievedAlfrescoContent = "/tmp/"; // content above contentSpillThresholdBytes is spilled to a unique file in this folder
+	protected static int pdfPagesPerRange = (System.getenv("pdfPagesPerRange")==null) ? 16 : Integer.parseInt(System.getenv("pdfPagesPerRange"));
+	protected static int pdfExtractParallelism = (System.getenv("pdfExtractParallelism")==null) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(System.getenv("pdfExtractParallelism"));
+	protected static ExecutorService pdfExtractionPool = Executors.newFixedThreadPool(Math.max(1, pdfExtractParallelism - 1), r ->
+	{ // helpers only, the thread asking for the extraction does a share of the work itself
+		Thread t = new Thread(r, "pdf-extract");
+		t.setDaemon(true);
+		return t;
+	});
+	protected static PdfTextExtractor pdfTextExtractor = new PdfTextExtractor(pdfExtractionPool, pdfPagesPerRange, pdfExtractParallelism);
+	protected static long contentSpillThresholdBytes = (System.getenv("contentSpillThresholdBytes")==null) ? 16 * 1024 * 1024 : Long.parseLong(System.getenv("contentSpillThresholdBytes"));
+	// Memory governed PDF mode for small Lambda memory sizes. Off unless pdfMemoryGoverned is true.
+	protected static long pdfHeapBudgetBytes = (System.getenv("pdfHeapBudgetBytes")==null) ? Runtime.getRuntime().maxMemory() / 3 : Long.parseLong(System.getenv("pdfHeapBudgetBytes")); // heap all open PDFs may share
+	protected static int pdfHeapCostFactor = (System.getenv("pdfHeapCostFactor")==null) ? 4 : Integer.parseInt(System.getenv("pdfHeapCostFactor")); // heap used by an open PDF as a multiple of its size
+	protected static long pdfMaxMainMemoryBytes = (System.getenv("pdfMaxMainMemoryBytes")==null) ? 8 * 1024 * 1024 : Long.parseLong(System.getenv("pdfMaxMainMemoryBytes")); // per PDF, beyond this PDFBox scratch goes to /tmp
+	protected static PdfMemoryGovernor pdfMemoryGovernor = ("true".equalsIgnoreCase(System.getenv("pdfMemoryGoverned"))) ? new PdfMemoryGovernor(pdfHeapBudgetBytes, pdfHeapCostFactor, pdfMaxMainMemoryBytes, new File(EphemeralPathForRetrievedAlfrescoContent)) : null;
+	protected static String workOrder = (System.getenv("workOrder")==null) ? "shortest_first" : System.getenv("workOrder"); // search, shortest_first or priority, see WorkPlanner.Order
+	protected static String workPriorityProperty = System.getenv("workPriorityProperty"); // numeric node property for the priority order, eg. crestBedrock:priority
+	protected static int workPlanWindow = (System.getenv("workPlanWindow")==null) ? searchPageSize : Integer.parseInt(System.getenv("workPlanWindow")); // search hits ordered together
+	protected static long workBatchThresholdBytes = (System.getenv("workBatchThresholdBytes")==null) ? ((System.getenv("batchRoleArn")==null) ? 0 : 50L * 1024 * 1024) : Long.parseLong(System.getenv("workBatchThresholdBytes")); // content this large goes straight to batch, 0 never
+	protected static WorkPlanner workPlanner = new WorkPlanner(WorkPlanner.orderOf(workOrder), Set.of(Content.MIME_PDFDoc, Content.MIME_TEXTDoc), workBatchThresholdBytes);
+	protected static SearchResultsDecoder searchResultsDecoder = new SearchResultsDecoder(false, workPriorityProperty);
+	protected static long summaryCacheMaxChars = (System.getenv("summaryCacheMaxChars")==null) ? 4 * 1024 * 1024 : Long.parseLong(System.getenv("summaryCacheMaxChars")); // 0 disables the summary cache
+	protected static String summaryCacheStore = (System.getenv("summaryCacheStore")==null) ? "s3" : System.getenv("summaryCacheStore"); // s3 for the staging bucket, none for memory only, otherwise a local folder
+	protected static SummaryCache summaryCache = null; // kept across warm invocations, see getSummaryCache()
+	protected static double nearDuplicateThreshold = (System.getenv("nearDuplicateThreshold")==null) ? 0.9 : Double.parseDouble(System.getenv("nearDuplicateThreshold")); // similarity from which a summary is reused, 0 disables the index
+	protected static int nearDuplicateMaxNodes = (System.getenv("nearDuplicateMaxNodes")==null) ? 200000 : Integer.parseInt(System.getenv("nearDuplicateMaxNodes"));
+	protected static String nearDuplicateStore = (System.getenv("nearDuplicateStore")==null) ? "s3" : System.getenv("nearDuplicateStore"); // s3 for the staging bucket, none for memory only, otherwise a local snapshot file
+	protected static NearDuplicateIndex nearDuplicateIndex = null; // kept across warm invocations, see loadNearDuplicateIndex()
+	protected static NearDuplicateIndex.SnapshotStore nearDuplicateSnapshot = null;
+	protected static AlfrescoSession alfrescoSession = null; // kept across warm invocations, see getAlfrescoSession()
+	private static CloseableHttpClient secretsHttpClient = null;
+	private static long secretFetchedAt = 0;
 	protected HttpPut nodeUpdateHttpPut = null;
 	protected S3Utils s3Utils;
+	protected BedrockInvoker bedrockInvoker;
+	protected BatchJobManager batchJobManager;
+	protected BatchPacker batchPacker; // records of the current run, see getBatchPacker()
+	protected BatchOutputIngester batchOutputIngester;
+	protected AlfrescoNodeUpdater nodeUpdater;
+	protected final AtomicInteger nodesReleased = new AtomicInteger(); // updates queued with crestBedrock:generateSummary false, see AlfrescoSearchCursor
+	protected TimeBudgetScheduler timeBudget = new TimeBudgetScheduler(0, 0, 0, 1); // replaced per invocation, see handleRequest()
+	protected RunMetrics metrics = new RunMetrics(); // replaced per invocation, see handleRequest()
 	private LambdaLogger logger;
 	private boolean localDebug = false;
+	protected final static String anthropicClaudeModelId = "anthropic.claude-v2:1";
+	protected final static int BatchRecordIdLength = 12; // random part of a batch recordId, the node id follows it
 	public static int anthropicClaudeMaxTokensToSample = 180000; //https://docs.aws.amazon.com/bedrock/latest/userguide/model-parameters-claude.html
-	private String truncatedHeader= null;
 	protected final static int BedrockBatchItemMaxLength = 1048576;  // Observed value. Reevaluate whenever
 	protected final static int BedrockBatchClaudePromptMaxLength = 600000 -300; // Observed value to account for timeout issue (https://docs.aws.amazon.com/bedrock/latest/userguide/model-parameters-claude.html). 
 	                                                                            //Reevaluate whenever. Buffer (as -ve value) for the user provided prompt
-	protected static int ArbitarySynchronousBedrockInvocationLength = 250000;
+	// Routing is by estimated tokens, see TokenEstimator, so that CJK text, tables and code are not split or batched by their character count
+	protected static TokenEstimator tokenEstimator = new TokenEstimator(); // kept across warm invocations, calibrated with Bedrock's token counts
+	protected static int claudeSyncMaxInputTokens = (System.getenv("claudeSyncMaxInputTokens")==null) ? 60000 : Integer.parseInt(System.getenv("claudeSyncMaxInputTokens")); // longer text is batched, unless map-reduce takes it
+	protected static int claudeMaxInputTokens = (System.getenv("claudeMaxInputTokens")==null) ? 150000 : Integer.parseInt(System.getenv("claudeMaxInputTokens")); // longest text sent in one call, with room in the context window for the prompt and response
+	// Map-reduce summarization of text longer than claudeMaxInputTokens, instead of truncating it
+	protected static boolean mapReduceEnabled = !"false".equalsIgnoreCase(System.getenv("mapReduceEnabled"));
+	protected static int mapReduceChunkTokens = (System.getenv("mapReduceChunkTokens")==null) ? 25000 : Integer.parseInt(System.getenv("mapReduceChunkTokens")); // estimated tokens per call
+	protected static int mapReduceParallelism = (System.getenv("mapReduceParallelism")==null) ? 4 : Integer.parseInt(System.getenv("mapReduceParallelism")); // calls in flight per document
+	protected static int mapReduceChunkResponseLength = (System.getenv("mapReduceChunkResponseLength")==null) ? 1000 : Integer.parseInt(System.getenv("mapReduceChunkResponseLength")); // tokens per partial summary
+	protected static int mapReduceMaxTextLength = (System.getenv("mapReduceMaxTextLength")==null) ? 4000000 : Integer.parseInt(System.getenv("mapReduceMaxTextLength")); // text beyond this is still truncated
+	protected static int ExtractedTextMaxLength = (System.getenv("ExtractedTextMaxLength")==null) ? (mapReduceEnabled ? mapReduceMaxTextLength : BedrockBatchClaudePromptMaxLength) : Integer.parseInt(System.getenv("ExtractedTextMaxLength")); // PDF extraction stops once this much text is collected
+	// Pre-compression of extracted text on the CPU before inference, see TextCompressor
+	protected static TextCompressor.Mode preCompression = (System.getenv("preCompression")==null) ? TextCompressor.Mode.CLEAN : TextCompressor.modeOf(System.getenv("preCompression")); // none, clean or extractive
+	protected static int preCompressionTargetTokens = (System.getenv("preCompressionTargetTokens")==null) ? claudeSyncMaxInputTokens : Integer.parseInt(System.getenv("preCompressionTargetTokens")); // extractive keeps the top sentences up to this
+	protected static TextCompressor textCompressor = new TextCompressor(tokenEstimator);
+	protected static String metricsNamespace = (System.getenv("metricsNamespace")==null) ? "AlfrescoBedrockSummarization" : System.getenv("metricsNamespace"); // CloudWatch namespace of the run's EMF metrics, none to log none
+	// Flight recording of slow runs, see SummarizationEvents. Off unless jfrRecordingThresholdMillis is set.
+	protected static long jfrRecordingThresholdMillis = (System.getenv("jfrRecordingThresholdMillis")==null) ? 0 : Long.parseLong(System.getenv("jfrRecordingThresholdMillis")); // runs at least this long upload their recording to S3, 0 records nothing
+	protected static long jfrMaxBytes = (System.getenv("jfrMaxBytes")==null) ? 64L * 1024 * 1024 : Long.parseLong(System.getenv("jfrMaxBytes")); // older recorded events are dropped beyond this, it is kept in /tmp
 	protected static int claudeTopK = 250;
 	protected static float claudeTopP = (float) 0.5;
 	
@@ -149,36 +250,417 @@ public class SummarizeAlfrescoWithBedrock implements RequestHandler<Map<String,
 	public SummarizeAlfrescoWithBedrock() throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException, IOException, InterruptedException
 	{
 		this.s3Utils = new S3Utils(s3BucketNamePath);
+		this.s3Utils.setMultipartUpload(s3PartSizeBytes, s3UploadParallelism);
+		this.bedrockInvoker = new BedrockInvoker(SummarizeAlfrescoWithBedrock::getBedrockAsyncClient, anthropicClaudeModelId, bedrockMaxInFlight, bedrockRateLimiter, bedrockMaxAttempts, bedrockRetryScheduler, this::logOrPrint);
+		this.bedrockInvoker.setTokenEstimator(tokenEstimator);
+		this.batchJobManager = new BatchJobManager(SummarizeAlfrescoWithBedrock::getBedrockControlClient, SummarizeAlfrescoWithBedrock::getS3Client, s3Utils, s3Utils.getKeyPath() + "batch/", anthropicClaudeModelId, batchRoleArn, batchMinRecordsPerJob, batchMaxRecordsPerJob, batchMaxJobBytes, this::logOrPrint);
+		BatchOutputIngester.OutputSource batchOutput = (batchOutputDirectory == null) ? new BatchOutputIngester.S3OutputSource(SummarizeAlfrescoWithBedrock::getS3Client, s3Utils) : new BatchOutputIngester.DirectoryOutputSource(new File(batchOutputDirectory));
+		this.batchOutputIngester = new BatchOutputIngester(batchOutput, pipelineUpdateWorkers, pipelineQueueCapacity, this::logOrPrint);
+		this.nodeUpdater = new AlfrescoNodeUpdater(this::putAlfrescoNodeProperties, pipelineUpdateWorkers, alfrescoUpdateMaxAttempts, 500, 10000, this::logOrPrint);
+		Core.getGlobalContext().register(this); // see beforeCheckpoint()
+	}
+
+	/**
+	 * Returns the packer collecting this run's batch records, starting one if needed.
+	 */
+	protected synchronized BatchPacker getBatchPacker()
+	{
+		if (batchPacker == null)
+		{
+			String runId = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + "-" + Utils.seededRandomString(new Random(), 4);
+			batchPacker = new BatchPacker(getS3Client(), s3Utils, batchJobManager.getPendingPrefix(), new File(EphemeralPathForRetrievedAlfrescoContent), runId, BedrockBatchItemMaxLength, batchMaxFileBytes, batchMaxRecordsPerJob);
+		}
+		return batchPacker;
+	}
+
+	/**
+	 * Uploads the run's last batch file, and any left unsent by a failed upload, submits jobs for pending records and refreshes the status of running jobs.
+	 */
+	protected void finishBatch()
+	{
+		BatchPacker packer;
+		synchronized (this)
+		{
+			if (batchPacker == null && BatchPacker.hasUnsent(new File(EphemeralPathForRetrievedAlfrescoContent)))
+				getBatchPacker(); // only to upload the files an earlier run kept
+			packer = batchPacker;
+			batchPacker = null;
+		}
+		if (packer != null)
+		{
+			try
+			{
+				packer.close();
+			} catch (IOException e)
+			{
+				logOrPrint(e.getMessage());
+			}
+			logOrPrint("Batch packer: " + packer.getRecords() + " records, " + packer.getFilesUploaded() + " files uploaded, " + packer.getFilesKept() + " kept after a failed upload, " + packer.getRejected() + " too large for batch.");
+		}
+		try
+		{
+			batchJobManager.submitPending();
+		} catch (Exception e)
+		{
+			logOrPrint("Batch submission failed. Uploaded records stay pending for the next run. " + e);
+		}
+		try
+		{
+			for (JSONObject job : batchJobManager.trackJobs())
+			{
+				String status = job.optString("status");
+				if ((status.equalsIgnoreCase("Completed") || status.equalsIgnoreCase("PartiallyCompleted")) && timeBudget.getTimeLeftMillis() > -lambdaTimeReserveMillis / 2)
+				{ // ingestion may take a while, it waits for the next run once half the reserve is used up
+					logOrPrint("Ingesting output of batch job " + job.getString("jobName"));
+					if (!awaitNodeUpdates()) // the job's own updates must be told apart from those of the pipeline
+					{
+						logOrPrint("Node updates still outstanding, batch job " + job.getString("jobName") + " is ingested on the next run.");
+						break;
+					}
+					int failedBefore = nodeUpdater.getFailed();
+					ingestBatchOutput(job.getString("outputPrefix"));
+					if (awaitNodeUpdates() && nodeUpdater.getFailed() == failedBefore)
+						batchJobManager.writeManifest(job.put("status", BatchJobManager.STATUS_INGESTED).put("ingestedAt", System.currentTimeMillis()));
+					else // left Completed, nodes already written no longer carry the placeholder and are skipped next time
+						logOrPrint("Not every update of batch job " + job.getString("jobName") + " was written, it is ingested again on the next run.");
+				}
+			}
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		} catch (Exception e)
+		{
+			logOrPrint("Batch ingestion failed, it is retried on the next run. " + e);
+		}
+	}
+
+	/**
+	 * Writes the results of a batch job back to the nodes they belong to. Results are only written over the job's own "batch|" placeholder, so a summary produced since the job was submitted is left alone.
+	 * 
+	 * @param outputPrefix
+	 *            Key prefix of the job's output, or path under batchOutputDirectory.
+	 * @return Number of nodes updated.
+	 */
+	public int ingestBatchOutput(String outputPrefix) throws IOException, InterruptedException
+	{
+		return batchOutputIngester.ingest(outputPrefix, this::applyBatchResult);
+	}
+
+	private boolean applyBatchResult(BatchOutputIngester.Result result) throws IOException
+	{
+		String recordId = result.getRecordId();
+		if (result.getCompletion() == null || recordId.length() <= BatchRecordIdLength)
+			return false;
+		String nodeId = recordId.substring(BatchRecordIdLength); // see BedrockInvokeClaudeAsync
+		String marker = "batch|" + recordId + "|";
+		String summary = getAlfrescoNodeSummary(nodeId);
+		if (summary == null || !summary.startsWith(marker))
+		{
+			logOrPrint(nodeId + " no longer waits for batch record " + recordId + ", result ignored.");
+			return false;
+		}
+		String truncatedHeader = summary.substring(marker.length());
+		String aiResponse = removeFirstLine(result.getCompletion(), true);
+		if (!truncatedHeader.isEmpty() && !truncatedHeader.equals("null"))
+			aiResponse = truncatedHeader.concat(aiResponse);
+		Properties nodeProps = new Properties();
+		nodeProps.setCrestBedrock_generateSummary(false);
+		nodeProps.setCrestBedrock_summary(aiResponse);
+		nodeProps.setCrestBedrock_summaryTime(new Date());
+		updateAlfrescoNode(nodeProps, nodeId);
+		logOrPrint(nodeId + ". Completed. Batch summarization");
+		return true;
+	}
+
+	/**
+	 * @return The node's crestBedrock:summary, or null if it has none.
+	 */
+	protected String getAlfrescoNodeSummary(String nodeId) throws IOException
+	{
+		HttpGet httpGet = new HttpGet(alfrescoSession.endpoint("/alfresco/api/-default-/public/alfresco/versions/1/nodes/" + nodeId + "?fields=id,properties"));
+		httpGet.setHeader("Accept", "application/json");
+		try (CloseableHttpResponse response = alfrescoSession.execute(httpGet))
+		{
+			String body = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+			if (response.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK)
+				throw new HttpResponseException(response.getStatusLine().getStatusCode(), "Alfresco returned " + response.getStatusLine().getStatusCode() + " for node " + nodeId);
+			JsonObject properties = new Gson().fromJson(body, JsonObject.class).getAsJsonObject("entry").getAsJsonObject("properties");
+			return (properties == null || !properties.has("crestBedrock:summary")) ? null : properties.get("crestBedrock:summary").getAsString();
+		}
+	}
+
+	/**
+	 * Returns the summary cache shared by all invocations of this Lambda execution environment, creating it on first use. Its persistent tier is chosen by summaryCacheStore.
+	 * 
+	 * @return Shared cache, or null if summaryCacheMaxChars is 0.
+	 */
+	protected static synchronized SummaryCache getSummaryCache(S3Utils s3Utils)
+	{
+		if (summaryCache == null && summaryCacheMaxChars > 0)
+		{
+			SummaryCache.Store store;
+			if ("none".equalsIgnoreCase(summaryCacheStore))
+				store = null;
+			else if ("s3".equalsIgnoreCase(summaryCacheStore))
+				store = new SummaryCache.S3Store(SummarizeAlfrescoWithBedrock::getS3Client, s3Utils, s3Utils.getKeyPath() + "summary-cache/");
+			else
+				store = new SummaryCache.DirectoryStore(new File(summaryCacheStore));
+			summaryCache = new SummaryCache(summaryCacheMaxChars, store);
+		}
+		return summaryCache;
+	}
+
+	/**
+	 * Creates the near-duplicate index shared by all invocations of this Lambda execution environment on first use, from the snapshot nearDuplicateStore names if there is one.
+	 */
+	protected void loadNearDuplicateIndex()
+	{
+		synchronized (SummarizeAlfrescoWithBedrock.class)
+		{
+			if (nearDuplicateIndex != null || nearDuplicateThreshold <= 0)
+				return;
+			nearDuplicateIndex = new NearDuplicateIndex(nearDuplicateThreshold, nearDuplicateMaxNodes);
+			if ("none".equalsIgnoreCase(nearDuplicateStore))
+				return;
+			else if ("s3".equalsIgnoreCase(nearDuplicateStore))
+				nearDuplicateSnapshot = new NearDuplicateIndex.S3SnapshotStore(SummarizeAlfrescoWithBedrock::getS3Client, s3Utils, s3Utils.getKeyPath() + "near-duplicates.bin");
+			else
+				nearDuplicateSnapshot = new NearDuplicateIndex.FileSnapshotStore(new File(nearDuplicateStore));
+			try
+			{
+				logOrPrint("Near-duplicate index loaded with " + nearDuplicateIndex.load(nearDuplicateSnapshot) + " nodes.");
+			} catch (Exception e)
+			{
+				logOrPrint("Near-duplicate index snapshot could not be read, starting empty. " + e);
+			}
+		}
+	}
+
+	/**
+	 * Saves the near-duplicate index's snapshot if nodes were added to it.
+	 */
+	protected void saveNearDuplicateIndex()
+	{
+		if (nearDuplicateIndex == null || nearDuplicateSnapshot == null)
+			return;
+		try
+		{
+			nearDuplicateIndex.save(nearDuplicateSnapshot);
+		} catch (Exception e)
+		{
+			logOrPrint("Near-duplicate index snapshot could not be saved. " + e);
+		}
+	}
+
+	/**
+	 * @return The node's summary if it can stand for a near-duplicate's, otherwise null, eg. if it is still waiting for batch inference.
+	 */
+	protected String getReusableSummary(String nodeId)
+	{
+		try
+		{
+			String summary = getAlfrescoNodeSummary(nodeId);
+			return (summary == null || summary.isBlank() || summary.startsWith("batch|")) ? null : summary;
+		} catch (IOException e)
+		{
+			logOrPrint("Summary of " + nodeId + " could not be read for reuse. " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the Alfresco session shared by all invocations of this Lambda execution environment, creating it on first use. The session caches the Alfresco ticket and reauthenticates only when the ticket has expired or is rejected.
+	 * 
+	 * @return Shared session
+	 * @throws KeyManagementException
+	 * @throws NoSuchAlgorithmException
+	 * @throws KeyStoreException
+	 */
+	protected static synchronized AlfrescoSession getAlfrescoSession() throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException
+	{
+		if (alfrescoSession == null)
+		{
+			// Every fetch, lookup and update worker plus the search prefetch should be able to hold a connection at the same time.
+			int maxConnections = Math.max(alfrescoMaxConnectionsPerRoute, 2 * pipelineFetchWorkers + pipelineUpdateWorkers + 2);
+			alfrescoSession = new AlfrescoSession(url, httpProtocol, maxConnections, alfrescoTicketTtlMillis, SummarizeAlfrescoWithBedrock::getAlfrescoCredentials);
+		}
+		return alfrescoSession;
+	}
+
+	/**
+	 * @return Region the function runs in, read from AWS_REGION without going through the whole region provider chain when it is set.
+	 */
+	protected static Region getAwsRegion()
+	{
+		return (System.getenv("AWS_REGION") == null) ? new DefaultAwsRegionProviderChain().getRegion() : Region.of(System.getenv("AWS_REGION"));
+	}
+
+	/**
+	 * @return The S3 client shared by all invocations of this Lambda execution environment, built on first use.
+	 */
+	protected static synchronized S3Client getS3Client()
+	{
+		if (s3Client == null)
+			s3Client = S3Client.builder().region(getAwsRegion()).credentialsProvider(DefaultCredentialsProvider.create()).httpClientBuilder(UrlConnectionHttpClient.builder()).build();
+		return s3Client;
+	}
+
+	/**
+	 * @return Presigner of staged content URLs, built on first use. Only putAlfrescoContentOnS3() needs it.
+	 */
+	protected static synchronized S3Presigner getS3Presigner()
+	{
+		if (s3Presigner == null)
+			s3Presigner = S3Presigner.builder().region(getAwsRegion()).credentialsProvider(DefaultCredentialsProvider.create()).build();
+		return s3Presigner;
+	}
+
+	/**
+	 * @return The Bedrock runtime client summaries are requested with, built on first use.
+	 */
+	protected static synchronized BedrockRuntimeAsyncClient getBedrockAsyncClient()
+	{
+		if (bedrockAsyncClient == null)
+			bedrockAsyncClient = BedrockRuntimeAsyncClient.builder()
+			        .region(bedrockRegion)
+			        .credentialsProvider(DefaultCredentialsProvider.create())
+			        .overrideConfiguration(b -> b.apiCallTimeout(Duration.ofSeconds(900)) //https://docs.aws.amazon.com/sdk-for-java/latest/developer-guide/best-practices.html
+			        .apiCallAttemptTimeout(Duration.ofSeconds(300)))
+			        .build();
+		return bedrockAsyncClient;
+	}
+
+	/**
+	 * @return The Bedrock control plane client of batch inference jobs, built the first time a job is submitted or tracked.
+	 */
+	protected static synchronized BedrockClient getBedrockControlClient()
+	{
+		if (bedrockControlClient == null)
+			bedrockControlClient = BedrockClient.builder().region(bedrockRegion).credentialsProvider(DefaultCredentialsProvider.create()).httpClientBuilder(UrlConnectionHttpClient.builder()).build();
+		return bedrockControlClient;
+	}
+
+	/**
+	 * CRaC hook Lambda SnapStart calls before it snapshots the initialized execution environment. Runs prime(), so that what the first run would otherwise pay for is in the snapshot.
+	 */
+	@Override
+	public void beforeCheckpoint(org.crac.Context<? extends Resource> context)
+	{
+		prime();
+	}
+
+	/**
+	 * CRaC hook called in each execution environment restored from the snapshot. Renews what must differ between environments or may have gone stale while the snapshot was kept.
+	 */
+	@Override
+	public void afterRestore(org.crac.Context<? extends Resource> context)
+	{
+		if (obfuscateNodeNameRandomizer != null)
+			obfuscateNodeNameRandomizer = new Random(); // otherwise every restored environment draws the same batch record ids
+		synchronized (SummarizeAlfrescoWithBedrock.class)
+		{
+			secretFetchedAt = 0; // the secret may have been rotated since
+			if (secretsHttpClient != null)
+			{
+				try
+				{
+					secretsHttpClient.close(); // its connections to the secrets extension do not survive a snapshot
+				} catch (IOException e)
+				{
+					logOrPrint("Closing the secrets client failed. " + e);
+				}
+				secretsHttpClient = null;
+			}
+		}
+		if (alfrescoSession != null)
+			alfrescoSession.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS); // connections do not survive a snapshot
 	}
 
-	private void getAwsSecretAndAlfrescoTicket() throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException, IOException, InterruptedException
+	/**
+	 * Runs once through what every run needs, without calling Alfresco or AWS: the search decoder's readers, PDFBox's font cache and text extraction, prompt JSON, token estimation, pre-compression, MinHash, the TLS context and the AWS clients. A
+	 * failure only means a slower first run, so it is logged and ignored.
+	 */
+	protected void prime()
 	{
-		if ((this.awsSecretsManagerSecretArn != null))
+		long start = System.currentTimeMillis();
+		try
+		{
+			String page = "{\"list\":{\"pagination\":{\"count\":1,\"hasMoreItems\":false,\"totalItems\":1,\"skipCount\":0,\"maxItems\":1},\"entries\":[{\"entry\":{\"id\":\"00000000-0000-4000-8000-000000000000\","
+			        + "\"name\":\"prime.pdf\",\"nodeType\":\"cm:content\",\"modifiedAt\":\"2024-01-01T00:00:00.000+0000\",\"content\":{\"mimeType\":\"application/pdf\",\"sizeInBytes\":1024,\"encoding\":\"UTF-8\"},"
+			        + "\"properties\":{\"crestBedrock:generateSummary\":true,\"crestBedrock:prompt\":\"Summarize\",\"crestBedrock:fm\":\"anthropic.claude-v2:1\",\"crestBedrock:responseLength\":100,\"crestBedrock:temperature\":0.5}}}]}}";
+			searchResultsDecoder.decode(new StringReader(page));
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 40; i++)
+				sb.append("Sentence ").append(i).append(" of the text used to warm up extraction, compression and the token estimate before the snapshot. ");
+			String text = sb.toString();
+			FontMappers.instance().getFontBoxFont("Helvetica", null); // builds PDFBox's system font cache
+			ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+			try (PDDocument document = new PDDocument())
+			{
+				PDPage pdfPage = new PDPage();
+				document.addPage(pdfPage);
+				try (PDPageContentStream stream = new PDPageContentStream(document, pdfPage))
+				{
+					stream.beginText();
+					stream.setFont(new PDType1Font(Standard14Fonts.FontName.HELVETICA), 10);
+					stream.newLineAtOffset(50, 740);
+					stream.showText(text.substring(0, 90));
+					stream.endText();
+				}
+				document.save(pdf);
+			}
+			try (PDDocument document = Loader.loadPDF(pdf.toByteArray()))
+			{
+				new PDFTextStripper().getText(document);
+			}
+			new TextCompressor(tokenEstimator).compress(text, TextCompressor.Mode.EXTRACTIVE, tokenEstimator.estimate(text) / 2); // a throwaway compressor keeps the shared statistics clean
+			NearDuplicateIndex.signatureOf(text);
+			claudeModelBody("Summarize", 100, 0.5f, text).toString();
+			SSLContext.getDefault().createSSLEngine(); // TLS provider, cipher suites and trust store
+			getAlfrescoSession();
+			getS3Client();
+			getBedrockAsyncClient();
+			logOrPrint("Primed in " + (System.currentTimeMillis() - start) + "ms.");
+		} catch (Exception e)
 		{
-			getSecretValueFromLambdaLayer(this.awsSecretsManagerSecretArn.toString()); // this function populates userId and password
+			logOrPrint("Priming incomplete. " + e);
 		}
-		// else this.userId and this.password would be populated statically when the this class is created before lambda handler is called.
+	}
 
-		this.ticket = this.getAlfrescoTicket();
-		this.encodedTicket = Base64.getEncoder().encodeToString(this.ticket.getBytes());
+	/**
+	 * Credentials for the Alfresco service account. If awsSecretsManagerSecretArn is populated, the secret is read through the Lambda extension and cached for secretCacheTtlSeconds. Otherwise userId and password would be populated statically when this
+	 * class is loaded.
+	 */
+	private static String[] getAlfrescoCredentials(boolean refresh)
+	{
+		if (awsSecretsManagerSecretArn != null)
+		{
+			synchronized (SummarizeAlfrescoWithBedrock.class)
+			{
+				if (refresh || password == null || System.currentTimeMillis() - secretFetchedAt >= secretCacheTtlMillis)
+					getSecretValueFromLambdaLayer(awsSecretsManagerSecretArn.toString()); // this function populates userId and password
+			}
+		}
+		return new String[] {userId, password};
 	}
 
 	public static String getSecretValueFromLambdaLayer(String secretToGet)
 	{
 		// System.out.println("Token length is " + System.getenv("AWS_SESSION_TOKEN").length() + " Port is " + System.getenv("PARAMETERS_SECRETS_EXTENSION_HTTP_PORT"));
-		HttpClient httpClient = HttpClients.createDefault();
+		synchronized (SummarizeAlfrescoWithBedrock.class)
+		{
+			if (secretsHttpClient == null)
+				secretsHttpClient = HttpClients.createDefault(); // reused for every lookup in this execution environment
+		}
 
 		// Create an HTTP GET request with the specified endpoint and request header
 		HttpGet httpGet = new HttpGet("http://localhost:" + awsSecretsExtensionHTTPPort + "/secretsmanager/get?secretId=" + secretToGet);
-		httpGet.setHeader("X-Aws-Parameters-Secrets-Token", awsSessionToken);
-		// System.out.println("Endpoint is " + httpGet.toString()+" X-Aws-Parameters-Secrets-Token is " + awsSessionToken);
+		httpGet.setHeader("X-Aws-Parameters-Secrets-Token", System.getenv("AWS_SESSION_TOKEN")); // read on each lookup, an environment restored from a SnapStart snapshot has a new token
+		// System.out.println("Endpoint is " + httpGet.toString()+" X-Aws-Parameters-Secrets-Token is " + System.getenv("AWS_SESSION_TOKEN"));
 
-		// Send the HTTP GET request
-		HttpResponse response = null;
-		// Process the response (e.g., parse the JSON response)
-		try
+		// Send the HTTP GET request and process the response (e.g., parse the JSON response)
+		try (CloseableHttpResponse response = secretsHttpClient.execute(httpGet))
 		{
-			response = httpClient.execute(httpGet);
 			String responseBody = EntityUtils.toString(response.getEntity());
 			if (responseBody.startsWith("{"))
 			{
@@ -191,28 +673,29 @@ public class SummarizeAlfrescoWithBedrock implements RequestHandler<Map<String,
 					password = secretStringJson.get(key).getAsString();
 					userId = key;
 				}
+				secretFetchedAt = System.currentTimeMillis();
 			}
 			else
 				System.out.println("No JSON, response Body: " + responseBody);
 		} catch (Exception e)
 		{
 			System.out.println("Error processing response: " + e.getMessage());
-		} finally
-		{
-			httpClient = null;
 		}
 		return password;
 	}
 
 	protected void logOrPrint(String str)
 	{
-		if (localDebug)
+		if (localDebug || this.logger == null) // no logger until the first invocation, eg. while the handler is created
 			System.out.println(str);
 		else
 			this.logger.log(str+"\n");
 	}
 
-	public Integer handleRequest(Map<String, Object> event, Context context)
+	/**
+	 * @return Summary of the run: nodes summarized, nodes deferred to the next run and the run's metrics, see RunMetrics.toSummary().
+	 */
+	public Map<String, Object> handleRequest(Map<String, Object> event, Context context)
 	{
 		if (!localDebug)
 			this.logger = context.getLogger();
@@ -223,60 +706,188 @@ public class SummarizeAlfrescoWithBedrock implements RequestHandler<Map<String,
 			logStr = logStr + " awsSecretsArn=" + this.awsSecretsManagerSecretArn.toString();
 
 		logOrPrint(logStr);
+		metrics = new RunMetrics();
+		Recording recording = startFlightRecording();
+		long inputTokens = bedrockInvoker.getInputTokens();
+		long outputTokens = bedrockInvoker.getOutputTokens();
 		int summarizationsDone = 0;
 		try
 		{
-			getAwsSecretAndAlfrescoTicket();
-			logOrPrint("Starting Alfresco query with Alfresco userId " + this.userId);
-			searchAlfresco(queryJson);
-		} catch (KeyManagementException | NoSuchAlgorithmException | KeyStoreException | IOException | InterruptedException e)
+			AlfrescoSession session = getAlfrescoSession();
+			session.setAuthTimer(millis -> metrics.record("AuthTime", RunMetrics.Unit.Milliseconds, millis));
+			session.getEncodedTicket();
+			getSummaryCache(s3Utils);
+			loadNearDuplicateIndex(); // here rather than in the constructor, so that a SnapStart snapshot holds no index to be restored over newer entries
+			startTimeBudget((context == null) ? 0 : context.getRemainingTimeInMillis());
+			logOrPrint("Starting Alfresco query with Alfresco userId " + this.userId + ". Tickets issued to this execution environment so far: " + session.getTicketsIssued());
+			summarizationsDone = searchAlfresco(queryJson);
+		} catch (KeyManagementException | NoSuchAlgorithmException | KeyStoreException | IOException e)
 		{
+			metrics.add("Errors", 1);
 			e.printStackTrace();
 		}
-		return summarizationsDone;
+		metrics.add("Summarizations", summarizationsDone);
+		metrics.add("BedrockInputTokens", bedrockInvoker.getInputTokens() - inputTokens);
+		metrics.add("BedrockOutputTokens", bedrockInvoker.getOutputTokens() - outputTokens);
+		finishFlightRecording(recording, metrics.getElapsedMillis());
+		return runSummary((context == null) ? "local" : context.getFunctionName(), summarizationsDone);
+	}
+
+	/**
+	 * Logs the run's metrics in CloudWatch Embedded Metric Format, unless metricsNamespace is none, and returns the run's summary.
+	 */
+	protected Map<String, Object> runSummary(String functionName, int summarizationsDone)
+	{
+		if (!"none".equalsIgnoreCase(metricsNamespace))
+		{
+			Map<String, String> dimensions = new HashMap<String, String>();
+			dimensions.put("FunctionName", functionName);
+			for (String emf : metrics.toEmf(metricsNamespace, dimensions))
+				logOrPrint(emf);
+		}
+		Map<String, Object> summary = new LinkedHashMap<String, Object>();
+		summary.put("summarizations", summarizationsDone);
+		summary.put("deferred", timeBudget.getDeferred());
+		summary.put("metrics", metrics.toSummary());
+		return summary;
+	}
+
+	/**
+	 * Starts a bounded flight recording of this invocation with the JDK's profile settings, if jfrRecordingThresholdMillis is set.
+	 * 
+	 * @return The recording, null if none was started.
+	 */
+	protected Recording startFlightRecording()
+	{
+		if (jfrRecordingThresholdMillis <= 0)
+			return null;
+		try
+		{
+			Recording recording = new Recording(Configuration.getConfiguration("profile"));
+			recording.setName("summarization");
+			recording.setToDisk(true);
+			recording.setMaxSize(jfrMaxBytes);
+			recording.start();
+			return recording;
+		} catch (Exception e)
+		{ // eg. IOException or ParseException of the settings, or a JVM started with flight recording disabled
+			logOrPrint("Flight recording not started. " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Stops the run's flight recording and, if the run took at least jfrRecordingThresholdMillis, uploads it to the staging bucket under jfr/ for JDK Mission Control.
+	 * 
+	 * @param recording
+	 *            From startFlightRecording(), may be null.
+	 * @param elapsedMillis
+	 *            How long the run took.
+	 */
+	protected void finishFlightRecording(Recording recording, long elapsedMillis)
+	{
+		if (recording == null)
+			return;
+		File dump = null;
+		try
+		{
+			recording.stop();
+			if (elapsedMillis < jfrRecordingThresholdMillis)
+				return;
+			String name = "run-" + System.currentTimeMillis() + ".jfr";
+			dump = new File(EphemeralPathForRetrievedAlfrescoContent + name);
+			recording.dump(Path.of(dump.getPath()));
+			String key = s3Utils.getKeyPath() + "jfr/" + name;
+			s3Utils.putFileIntoS3(getS3Client(), key, dump, "application/octet-stream");
+			logOrPrint("Run took " + elapsedMillis + "ms, its flight recording is at " + s3Utils.toS3Uri(key));
+		} catch (IOException | RuntimeException e)
+		{
+			logOrPrint("Flight recording not uploaded. " + e);
+		} finally
+		{
+			recording.close();
+			if (dump != null)
+				dump.delete();
+		}
 	}
 
-	/****
-	 * This method trusts all certificates in order to accommodate websites that use self-signed certificates
+	/**
+	 * Starts this invocation's TimeBudgetScheduler and bounds Alfresco and Bedrock calls by its call deadline.
 	 * 
-	 * @return Alfresco ticket
-	 * @throws KeyStoreException,
-	 *             NoSuchAlgorithmException, KeyManagementException, IOException
+	 * @param remainingMillis
+	 *            Context.getRemainingTimeInMillis(), 0 for no limit.
 	 */
-	protected String getAlfrescoTicket() throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException, IOException
+	protected void startTimeBudget(long remainingMillis)
 	{
-		String idVal = null;
-		SSLContext sslContext = new SSLContextBuilder().loadTrustMaterial(null, (chain, authType) -> true).build(); // SSL context that trusts all certificates
+		timeBudget = new TimeBudgetScheduler(remainingMillis, lambdaTimeReserveMillis, lambdaTimeSafetyMillis, Math.max(pipelineFetchWorkers, bedrockMaxInFlight))
+				         .seed(Content.MIME_PDFDoc, 10000, 3000).seed(Content.MIME_TEXTDoc, 6000, 1000).learntFrom(lastTimeBudget);
+		lastTimeBudget = timeBudget;
+		alfrescoSession.setDeadline(timeBudget.getCallDeadline());
+		bedrockInvoker.setDeadline(timeBudget.getCallDeadline());
+	}
+
+	/**
+	 * @return Ids of nodes the last run deferred for lack of time, empty if there is no checkpoint.
+	 */
+	protected Set<String> loadCheckpoint()
+	{
+		Set<String> deferred = new LinkedHashSet<String>();
+		try
+		{
+			String json = s3Utils.getStringFromS3(getS3Client(), s3Utils.getKeyPath() + "checkpoint.json");
+			if (json != null)
+			{
+				JSONArray ids = new JSONObject(json).optJSONArray("deferred");
+				for (int i = 0; ids != null && i < ids.length(); i++)
+					deferred.add(ids.getString(i));
+			}
+		} catch (Exception e)
+		{
+			logOrPrint("Checkpoint could not be read, starting from the search alone. " + e);
+		}
+		return deferred;
+	}
 
-		// Use the above SSL context to create a HTTP client that accepts self-signed certificates.
-		this.httpClient = HttpClients.custom().setDefaultRequestConfig(RequestConfig.custom().setCookieSpec(CookieSpecs.STANDARD).build()).setSSLContext(sslContext).setSSLHostnameVerifier((hostname, session) -> true).build();
+	/**
+	 * Saves the ids of nodes this run deferred, so that the next run starts with them. An empty list clears the checkpoint.
+	 */
+	protected void saveCheckpoint(Set<String> deferred)
+	{
+		try
+		{
+			JSONObject checkpoint = new JSONObject().put("savedAt", System.currentTimeMillis()).put("deferred", new JSONArray(deferred));
+			s3Utils.putJsonIntoS3(getS3Client(), s3Utils.getKeyPath() + "checkpoint.json", checkpoint, false);
+		} catch (Exception e)
+		{
+			logOrPrint("Checkpoint could not be saved. " + e);
+		}
+	}
 
-		String httpTicketUrl = "://" + this.url + "/alfresco/api/-default-/public/authentication/versions/1/tickets";
-		httpTicketUrl = this.httpProtocol ? "https" + httpTicketUrl : "http" + httpTicketUrl;
-		HttpPost request = new HttpPost(httpTicketUrl);
-		String json = "{\"userId\":\"" + this.userId + "\",\"password\":\"" + this.password + "\"}";
-		StringEntity entity = new StringEntity(json, StandardCharsets.UTF_8);
-		entity.setContentType("application/json");
-		request.setEntity(entity);
-		CloseableHttpResponse httpResponse = this.httpClient.execute(request);
-		HttpEntity httpEntity = httpResponse.getEntity();
-		JSONObject jsonResponse = new JSONObject(EntityUtils.toString(httpEntity));
-		idVal = jsonResponse.getJSONObject("entry").getString("id");
-		httpResponse.close();
-		return idVal;
+	/**
+	 * @return queryJson narrowed to the given nodes, or null if there are none.
+	 */
+	protected static String queryForNodes(String queryJson, Collection<String> nodeIds)
+	{
+		if (nodeIds.isEmpty())
+			return null;
+		JSONObject query = new JSONObject(queryJson);
+		StringBuilder ids = new StringBuilder();
+		for (String nodeId : nodeIds)
+			ids.append((ids.length() == 0) ? "" : " OR ").append("ID:'workspace://SpacesStore/").append(nodeId).append("'");
+		JSONObject afts = query.getJSONObject("query");
+		afts.put("query", "(" + afts.getString("query") + ") AND (" + ids + ")");
+		return query.toString();
 	}
 
 	protected CloseableHttpResponse getAlfrescoHttpGetResponseNodeContent(String nodeId) throws ClientProtocolException, IOException
 	{
 		// https://<host:[port]>/alfresco/api/-default-/public/alfresco/versions/1/nodes/<nodeId>/content?attachment=false
-		String getContentUrl = "://" + this.url + "/alfresco/api/-default-/public/alfresco/versions/1/nodes/" + nodeId + "/content?attachment=false";
-		getContentUrl = this.httpProtocol ? "https" + getContentUrl : "http" + getContentUrl;
+		String getContentUrl = alfrescoSession.endpoint("/alfresco/api/-default-/public/alfresco/versions/1/nodes/" + nodeId + "/content?attachment=false");
 		// Create GET request with JSON payload
 		HttpGet httpGet = new HttpGet(getContentUrl);
 		httpGet.setHeader("Content-Type", "application/json");
 		httpGet.setHeader("Accept", "application/json");
-		httpGet.setHeader("Authorization", "Basic " + this.encodedTicket);
-		return httpClient.execute(httpGet);
+		return alfrescoSession.execute(httpGet);
 	}
 
 	/**
@@ -292,32 +903,105 @@ public class SummarizeAlfrescoWithBedrock implements RequestHandler<Map<String,
 	 */
 	protected String getAlfrescoContent(String nodeId, String mimeType) throws ClientProtocolException, IOException
 	{
-		String content = null;
-		// Send the request and receive the response
-		CloseableHttpResponse response = getAlfrescoHttpGetResponseNodeContent(nodeId);
-		FileOutputStream fileOutputStream = new FileOutputStream(EphemeralPathForRetrievedAlfrescoContent);
-		response.getEntity().writeTo(fileOutputStream);
-		fileOutputStream.close();
-		response.close();
-		File file = new File(EphemeralPathForRetrievedAlfrescoContent);
+		return getAlfrescoContent(nodeId, mimeType, null);
+	}
 
-		if (Content.MIME_PDFDoc.equalsIgnoreCase(mimeType))
-		{
-			content = getPDFText(file);
-		}
-		else
+	/**
+	 * Retrieves Alfresco content as text string. Nothing is written to disk unless a PDF is larger than contentSpillThresholdBytes.
+	 * 
+	 * @param nodeId
+	 *            Alfresco provided Id of node to get content of.
+	 * @param mimeType
+	 *            PDF extraction will be attempted for Content.MIME_PDFDoc type.
+	 * @param encoding
+	 *            Charset of text content as reported by Content.getEncoding(). May be null.
+	 * @return String representation of content.
+	 * @throws ClientProtocolException
+	 * @throws IOException
+	 */
+	protected String getAlfrescoContent(String nodeId, String mimeType, String encoding) throws ClientProtocolException, IOException
+	{
+		if (!Content.MIME_PDFDoc.equalsIgnoreCase(mimeType))
+			return getAlfrescoText(nodeId, encoding);
+		try (FetchedContent content = fetchAlfrescoContent(nodeId))
 		{
-			FileInputStream fis = new FileInputStream(file);
-			byte[] bytes = new byte[(int) file.length()];
-			fis.read(bytes);
-			fis.close();
-			content = new String(bytes);
+			return getPDFText(content);
 		}
-		file.delete();
-		return content;
 	}
 
-	protected String getPDFText(File file) throws IOException
+	/**
+	 * Streams text content straight through a decoder.
+	 * 
+	 * @param nodeId
+	 *            Alfresco provided Id of node to get content of.
+	 * @param encoding
+	 *            Charset reported by Content.getEncoding(). If missing or unknown, the charset of the response is used, then UTF-8.
+	 * @return Decoded content.
+	 * @throws ClientProtocolException
+	 * @throws IOException
+	 */
+	protected String getAlfrescoText(String nodeId, String encoding) throws ClientProtocolException, IOException
+	{
+		return getAlfrescoText(nodeId, encoding, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxChars
+	 *            Reading stops once this much text is read, the rest is not downloaded.
+	 */
+	protected String getAlfrescoText(String nodeId, String encoding, int maxChars) throws ClientProtocolException, IOException
+	{
+		try (CloseableHttpResponse response = getAlfrescoHttpGetResponseNodeContent(nodeId))
+		{
+			HttpEntity entity = checkContentResponse(response, nodeId);
+			ContentType contentType = ContentType.get(entity);
+			Charset charset = FetchedContent.charsetFor(encoding, (contentType == null) ? null : contentType.getCharset());
+			try (InputStream in = entity.getContent())
+			{
+				return FetchedContent.readText(in, charset, maxChars);
+			}
+		}
+	}
+
+	/**
+	 * Downloads Alfresco content into memory, or into a temp file of its own if it is larger than contentSpillThresholdBytes.
+	 * 
+	 * @param nodeId
+	 *            Alfresco provided Id of node to get content of.
+	 * @return The content. The caller must close it.
+	 * @throws ClientProtocolException
+	 * @throws IOException
+	 */
+	protected FetchedContent fetchAlfrescoContent(String nodeId) throws ClientProtocolException, IOException
+	{
+		return fetchAlfrescoContent(nodeId, contentSpillThresholdBytes);
+	}
+
+	/**
+	 * @param spillThreshold
+	 *            Content larger than this is written to a temp file instead of being held in memory.
+	 */
+	protected FetchedContent fetchAlfrescoContent(String nodeId, long spillThreshold) throws ClientProtocolException, IOException
+	{
+		try (CloseableHttpResponse response = getAlfrescoHttpGetResponseNodeContent(nodeId))
+		{
+			HttpEntity entity = checkContentResponse(response, nodeId);
+			try (InputStream in = entity.getContent())
+			{
+				return FetchedContent.read(in, entity.getContentLength(), spillThreshold, new File(EphemeralPathForRetrievedAlfrescoContent));
+			}
+		}
+	}
+
+	private HttpEntity checkContentResponse(CloseableHttpResponse response, String nodeId) throws IOException
+	{
+		int status = response.getStatusLine().getStatusCode();
+		if (status != HttpURLConnection.HTTP_OK)
+			throw new HttpResponseException(status, "Alfresco returned " + status + " for the content of " + nodeId + ": " + EntityUtils.toString(response.getEntity()));
+		return response.getEntity();
+	}
+
+	protected String getPDFText(File file) throws IOException
 	{
 		long startTime = System.currentTimeMillis();
 		PDDocument pdoc = Loader.loadPDF(file);
@@ -328,6 +1012,52 @@ public class SummarizeAlfrescoWithBedrock implements RequestHandler<Map<String,
 		return text;
 	}
 
+	protected String getPDFText(FetchedContent content) throws IOException
+	{
+		return extractPDFText(content).getText();
+	}
+
+	/**
+	 * Extracts PDF text in page ranges across pdfExtractParallelism threads, stopping once ExtractedTextMaxLength characters have been collected. With the memory governor on, PDFBox scratch buffers are capped at pdfMaxMainMemoryBytes and large
+	 * documents are parsed by one thread only.
+	 * 
+	 * @param content
+	 *            Downloaded PDF.
+	 * @return Extracted text and how much of the document it covers.
+	 * @throws IOException
+	 */
+	protected PdfTextExtractor.Result extractPDFText(FetchedContent content) throws IOException
+	{
+		return extractPDFText(content, ExtractedTextMaxLength);
+	}
+
+	/**
+	 * @param maxChars
+	 *            Extraction stops once this much text is collected.
+	 */
+	protected PdfTextExtractor.Result extractPDFText(FetchedContent content, int maxChars) throws IOException
+	{
+		return extractPDFText(content, maxChars, null);
+	}
+
+	/**
+	 * @param maxChars
+	 *            Extraction stops once this much text is collected.
+	 * @param permit
+	 *            The document's share of the memory governor's budget. Each thread parsing the document opens a copy of its own, so no more threads than the permit's copies are used. null if the document holds no permit.
+	 */
+	protected PdfTextExtractor.Result extractPDFText(FetchedContent content, int maxChars, PdfMemoryGovernor.Permit permit) throws IOException
+	{
+		PdfTextExtractor.Result result;
+		if (pdfMemoryGovernor == null)
+			result = pdfTextExtractor.extract(content::loadPDF, maxChars);
+		else
+			result = pdfTextExtractor.extract(() -> content.loadPDF(pdfMemoryGovernor.getStreamCache()), maxChars, 
+					                          (permit != null) ? permit.getCopies() : pdfMemoryGovernor.isLarge(content.size()) ? 1 : pdfExtractParallelism);
+		logOrPrint("PDF extraction of " + content.size() + " bytes, " + result.getPagesRead() + "/" + result.getPageCount() + " pages took " + result.getElapsedMillis() + "ms");
+		return result;
+	}
+
 	/**
 	 * Stages Alfresco content into S3, provides presigned URL to the staged content for 10mins.
 	 * 
@@ -339,112 +1069,512 @@ public class SummarizeAlfrescoWithBedrock implements RequestHandler<Map<String,
 	 */
 	protected URL putAlfrescoContentOnS3(String nodeId, String nodeName) throws ClientProtocolException, IOException
 	{
-		// Send the request and receive the response
-		CloseableHttpResponse response = getAlfrescoHttpGetResponseNodeContent(nodeId);
-
-		HttpEntity entity = response.getEntity();
-		// Get the response body as a string
-		InputStream contentStream = entity.getContent();
-		URL retUrl = s3Utils.putInputStreamIntoS3(this.s3Client, this.s3Presigner, nodeId + nodeName, contentStream);
-		response.close();
-		return retUrl;
+		// Send the request and stream the response body to S3 as it arrives
+		try (CloseableHttpResponse response = getAlfrescoHttpGetResponseNodeContent(nodeId))
+		{
+			HttpEntity entity = response.getEntity();
+			try (InputStream contentStream = entity.getContent())
+			{
+				return s3Utils.putInputStreamIntoS3(getS3Client(), getS3Presigner(), nodeId + nodeName, contentStream, entity.getContentLength());
+			}
+		}
 	}
 	
 
 	/**
-	 * Queries Alfresco for documents and invokes Amazon Bedrock to summarize each of them.
+	 * Retrieves one page of search results.
 	 * 
 	 * @param queryJson
-	 *            Base query- {"query":{"language":"afts","query":"TYPE:'cm:content' AND ASPECT:'crestBedrock:GenAI' AND crestBedrock:generateSummary:'true' AND name:*"},"include":["properties"]} Adapt as required. This is passed in as the Lambda environment variable LLLLLLL
+	 *            Base query. Any paging element in it is replaced. Unless the query names its own fields, only SearchResultsDecoder.PIPELINE_FIELDS are requested.
+	 * @param skipCount
+	 *            Number of results to skip.
+	 * @param maxItems
+	 *            Page size.
+	 * @return The list element of the search response.
+	 * @throws IOException
 	 */
-	protected int searchAlfresco(String queryJson)
+	protected SearchResultsList searchAlfrescoPage(String queryJson, int skipCount, int maxItems) throws IOException
 	{
-		int summarizationsDone = 0;
-		if (searchHttpPost == null)
-		{
-			// Create POST request with JSON payload
-			String searchUrl = "://" + this.url + "/alfresco/api/-default-/public/search/versions/1/search";
-			searchUrl = this.httpProtocol ? "https" + searchUrl : "http" + searchUrl;
-			HttpPost httpPost = new HttpPost(searchUrl);
-			httpPost.setHeader("Content-Type", "application/json");
-			httpPost.setHeader("Accept", "application/json");
-			httpPost.setHeader("Authorization", "Basic " + this.encodedTicket);
-			this.searchHttpPost = httpPost;
-		}
-		// Create JSON payload
+		// Create POST request with JSON payload. A new request per page as pages are prefetched on another thread.
+		HttpPost httpPost = new HttpPost(alfrescoSession.endpoint("/alfresco/api/-default-/public/search/versions/1/search"));
+		httpPost.setHeader("Content-Type", "application/json");
+		httpPost.setHeader("Accept", "application/json");
+		JSONObject pagedQuery = new JSONObject(queryJson).put("paging", new JSONObject().put("maxItems", maxItems).put("skipCount", skipCount));
+		if (!pagedQuery.has("fields"))
+			pagedQuery.put("fields", new JSONArray(SearchResultsDecoder.PIPELINE_FIELDS));
+		httpPost.setEntity(new StringEntity(pagedQuery.toString(), StandardCharsets.UTF_8));
+
+		CloseableHttpResponse response = alfrescoSession.execute(httpPost);
 		try
 		{
-			this.searchHttpPost.setEntity(new StringEntity(queryJson));
-			CloseableHttpResponse response = this.httpClient.execute(this.searchHttpPost); // Error is java.lang.IllegalStateException:Connection pool shut down
 			HttpEntity entity = response.getEntity();
-			String responseString = EntityUtils.toString(entity);
-			Gson gson = new Gson();
-			SearchResults sr = gson.fromJson(responseString, SearchResults.class);
-			List<Entries> entries = sr.getList().getEntries();
+			if (response.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK)
+				throw new HttpResponseException(response.getStatusLine().getStatusCode(), "Alfresco search failed at skipCount " + skipCount + ": " + EntityUtils.toString(entity));
+			ContentType contentType = ContentType.get(entity);
+			SearchResults sr = searchResultsDecoder.decode(entity.getContent(), (contentType == null) ? null : contentType.getCharset());
+			SearchResultsList list = sr.getList();
+			logOrPrint("Alfresco search page at skipCount " + skipCount + " returned " + ((list.getEntries() == null) ? 0 : list.getEntries().size()) + " of " + list.getPagination().getTotalItems() + " nodes marked for summarization.");
+			return list;
+		} finally
+		{
 			response.close();
-			logOrPrint("Alfresco query returned " + entries.size() + " nodes marked for summarization.");
-			for (int e = 0; e < entries.size(); e++)
+		}
+	}
+
+	/**
+	 * Queries Alfresco for documents and invokes Amazon Bedrock to summarize each of them. Results are read page by page (see searchPageSize) through an AlfrescoSearchCursor and handed to a StagedPipeline with separate workers for download, text
+	 * extraction, pre-compression, summary lookup, inference and node update, so that a slow Bedrock call does not hold up the documents behind it.
+	 * 
+	 * Nodes deferred by the last run for lack of time (see loadCheckpoint()) are queued first. Only nodes timeBudget admits are queued, the others are saved in a new checkpoint for the next run.
+	 * 
+	 * @param queryJson
+	 *            Base query- {"query":{"language":"afts","query":"TYPE:'cm:content' AND ASPECT:'crestBedrock:GenAI' AND crestBedrock:generateSummary:'true' AND name:*"},"include":["properties"]} Adapt as required. This is passed in as the Lambda environment variable LLLLLLL
+	 */
+	protected int searchAlfresco(String queryJson)
+	{
+		AtomicInteger summarizationsDone = new AtomicInteger();
+		StagedPipeline<NodeWorkItem> pipeline = new StagedPipeline<NodeWorkItem>("summarize", (stageName, item, ex) ->
+		{
+			logOrPrint("Stage " + stageName + " failed for " + item.getNodeId() + ". " + ex);
+			metrics.add("Failed", 1);
+			endDocument(item, "failed in " + stageName + ". " + ex);
+			item.discardContent();
+			if (item.ticket != null)
+				item.ticket.done(false);
+		});
+		pipeline.addStage("fetch", pipelineFetchWorkers, pipelineQueueCapacity, recorded("fetch", this::fetchStage))
+		        .addStage("extract", pipelineExtractWorkers, pipelineQueueCapacity, recorded("extract", this::extractStage))
+		        .addStage("compress", pipelineExtractWorkers, pipelineQueueCapacity, recorded("compress", this::compressStage))
+		        .addStage("lookup", pipelineFetchWorkers, pipelineQueueCapacity, recorded("lookup", this::lookupStage)) // blocking reads, kept off the infer stage's dispatcher
+		        .addAsyncStage("infer", bedrockMaxInFlight, pipelineQueueCapacity, recordedAsync("infer", this::inferStage))
+		        .addStage("update", 1, pipelineQueueCapacity, recorded("update", item -> updateStage(item, summarizationsDone))); // caches the summary and queues the update, nodeUpdater sends it
+		pipeline.start();
+		Set<String> queued = new HashSet<String>();
+		Set<String> deferred = new LinkedHashSet<String>();
+		int sequence = 0;
+		List<String> resumed = new ArrayList<String>(loadCheckpoint());
+		if (!resumed.isEmpty())
+			logOrPrint("Resuming " + resumed.size() + " nodes deferred by the last run.");
+		for (int r = 0; r < resumed.size(); r += searchPageSize) // keeps each query short
+			sequence = queueSearchResults(pipeline, queryForNodes(queryJson, resumed.subList(r, Math.min(resumed.size(), r + searchPageSize))), sequence, queued, deferred, summarizationsDone);
+		queueSearchResults(pipeline, queryJson, sequence, queued, deferred, summarizationsDone);
+
+		try
+		{
+			long deadline = timeBudget.getCallDeadline(); // calls of admitted documents end by then, a stage that has not is stuck
+			if (!pipeline.finish((deadline == Long.MAX_VALUE) ? Long.MAX_VALUE : Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+			{
+				logOrPrint("Pipeline did not drain by the call deadline. The documents still in it are dropped and left for the next run.");
+				pipeline.abort();
+			}
+		} catch (InterruptedException e)
+		{
+			pipeline.abort();
+			Thread.currentThread().interrupt();
+		}
+		logOrPrint(pipeline.getStatistics());
+		long batchStart = System.nanoTime();
+		finishBatch();
+		metrics.recordMillisSince("BatchFinishTime", batchStart);
+		flushNodeUpdates();
+		saveCheckpoint(deferred);
+		logOrPrint(timeBudget.getStatistics());
+		logOrPrint(workPlanner.getStatistics());
+		logOrPrint(bedrockInvoker.getStatistics());
+		logOrPrint(tokenEstimator.getStatistics());
+		if (preCompression != TextCompressor.Mode.NONE)
+			logOrPrint(textCompressor.getStatistics());
+		if (summaryCache != null)
+			logOrPrint(summaryCache.getStatistics());
+		if (nearDuplicateIndex != null)
+		{
+			saveNearDuplicateIndex();
+			logOrPrint(nearDuplicateIndex.getStatistics());
+		}
+		if (pdfMemoryGovernor != null)
+			logOrPrint("PDF memory governor: budget " + pdfMemoryGovernor.getBudgetBytes() + " bytes, peak in use " + pdfMemoryGovernor.getPeakInUse() + " bytes, " + pdfMemoryGovernor.getWaits() + " documents waited for budget.");
+		return summarizationsDone.get();
+	}
+
+	/**
+	 * Reads a search through in windows of workPlanWindow hits, and queues each window's nodes in the order workPlanner gives them. Reading stops once the admission deadline has passed.
+	 * 
+	 * @param sequence
+	 *            Sequence number of the first node read, for logging.
+	 * @param queued
+	 *            Ids of nodes queued so far. A node is only queued once.
+	 * @param deferred
+	 *            Receives the ids of nodes that did not fit in the time left, up to checkpointMaxDeferred.
+	 * @return Sequence number of the node after the last one read.
+	 */
+	protected int queueSearchResults(StagedPipeline<NodeWorkItem> pipeline, String queryJson, int sequence, Set<String> queued, Set<String> deferred, AtomicInteger summarizationsDone)
+	{
+		int e = sequence;
+		int releasedBefore = nodesReleased.get();
+		try (AlfrescoSearchCursor cursor = new AlfrescoSearchCursor((skipCount, maxItems) -> 
+		{
+			long start = System.nanoTime();
+			try
+			{
+				return searchAlfrescoPage(queryJson, skipCount, maxItems);
+			} finally
+			{
+				metrics.recordMillisSince("SearchPageTime", start);
+			}
+		}, searchPageSize, () -> nodesReleased.get() - releasedBefore))
+		{
+			List<Entry> window = new ArrayList<Entry>();
+			while (cursor.hasNext())
 			{//Process each Alfresco node retrieved from the search
-				Entry entry = entries.get(e).getEntry();
-				Properties nodeProps = entry.getProperties();
-				if (nodeProps.getCrestBedrock_fm().startsWith("anthropic"))
+				if (timeBudget.getTimeLeftMillis() <= 0)
 				{
-					String nodeMimeType = entry.getContent().getMimeType();
-					String aiResponse = null;
-					Date timeWhenBedrockInferred = new Date();
-					logOrPrint("Processing #" + e + " " + entry.getName() + ":" + entry.getId());
-					this.httpClient.close();
-					this.ticket = getAlfrescoTicket(); // Since each HttpClient only provides 2 routes, a new one will have to be created.
-					if (nodeMimeType.equalsIgnoreCase(Content.MIME_TEXTDoc) || nodeMimeType.equalsIgnoreCase(Content.MIME_PDFDoc))
-					{
-						// get content and send to Bedrock
-						String alfrescoNodeContent = getAlfrescoContent(entry.getId(), nodeMimeType);
-						JSONObject bedrockReply = BedrockInvokeClaude(nodeProps.getCrestBedrock_prompt(), nodeProps.getCrestBedrock_responseLength(), 
-								                                      nodeProps.getCrestBedrock_temperature(), alfrescoNodeContent, entry.getId());
-						aiResponse = bedrockReply.get("completion").toString();
-						if (aiResponse.startsWith("batch|"))
-							logOrPrint(entry.getId()+" is too long for direct invocation. It has been batched as "+bedrockReply.get("s3Path").toString());
-					}
-
-					String log=null;
-					if (aiResponse == null)
-						aiResponse = "";
-					else
-					{
-						log = entry.getId() + ". ";
-						if (aiResponse.startsWith("batch|"))
-						{
-							//write it into node's metadata as a marker to indicate an async batch job is running
-							log = log+ "Batched. Staging to S3";
-						}
-						else
-						{ // Claude usually titles its responses, let's remove the first line.
-							aiResponse = removeFirstLine(aiResponse, true);
-							if (this.truncatedHeader!=null)
-							{
-								aiResponse=this.truncatedHeader.concat(aiResponse);
-								this.truncatedHeader = null;
-							}
-							log = log + "Completed. Summarization";
-						}
-					}
-					nodeProps.setCrestBedrock_generateSummary(false);
-					nodeProps.setCrestBedrock_summary(aiResponse);
-					nodeProps.setCrestBedrock_summaryTime(timeWhenBedrockInferred);
-					updateAlfrescoNode(nodeProps, entry.getId());
-					
-					logOrPrint(log +" took " +((new Date()).getTime() - timeWhenBedrockInferred.getTime()) / 1000 + " seconds.");
-					summarizationsDone++;
+					logOrPrint("No time left to start another node, the rest of the search is left for the next run.");
+					break;
+				}
+				Entry entry = cursor.next();
+				if (queued.add(entry.getId())) // otherwise queued from the checkpoint or an earlier page already
+					window.add(entry);
+				if (window.size() >= workPlanWindow || !cursor.hasNext())
+				{
+					e = queueWindow(pipeline, window, e, deferred, summarizationsDone);
+					window.clear();
 				}
-				else
-					logOrPrint("Non Anthropic FMs currently not supported");
 			}
+			logOrPrint("Alfresco search cursor read " + cursor.getEntriesReturned() + " nodes in " + cursor.getPagesFetched() + " pages.");
+			if (cursor.isStalled())
+				logOrPrint("Alfresco search index did not catch up with the summarized nodes, the remaining matches are left for the next run.");
+		} catch (Exception ex)
+		{
+			ex.printStackTrace();
+		}
+		return e;
+	}
 
-		} catch (Exception e)
+	/**
+	 * Queues the nodes of one window that timeBudget admits. Nodes of an unsupported type are marked as done straight away, without a download, and oversized nodes are queued for the batch route.
+	 * 
+	 * @return Sequence number of the node after the window.
+	 */
+	private int queueWindow(StagedPipeline<NodeWorkItem> pipeline, List<Entry> window, int sequence, Set<String> deferred, AtomicInteger summarizationsDone) throws InterruptedException
+	{
+		int e = sequence;
+		for (Entry entry : workPlanner.plan(window))
 		{
-			e.printStackTrace();
+			if (!entry.getProperties().getCrestBedrock_fm().startsWith("anthropic"))
+			{
+				logOrPrint("Non Anthropic FMs currently not supported");
+				e++;
+				continue;
+			}
+			WorkPlanner.Route route = workPlanner.route(entry);
+			workPlanner.count(route);
+			if (route == WorkPlanner.Route.SKIP)
+			{ // nothing to extract text from, the node gets an empty summary as before
+				logOrPrint("Skipping #" + e + " " + entry.getName() + ":" + entry.getId() + ", " + ((entry.getContent() == null) ? "it has no content." : entry.getContent().getMimeType() + " is not supported."));
+				Properties nodeProps = entry.getProperties();
+				nodeProps.setCrestBedrock_generateSummary(false);
+				nodeProps.setCrestBedrock_summary("");
+				nodeProps.setCrestBedrock_summaryTime(new Date());
+				updateAlfrescoNode(nodeProps, entry.getId());
+				summarizationsDone.incrementAndGet();
+				metrics.add("Skipped", 1);
+				e++;
+				continue;
+			}
+			long size = entry.getContent().getSizeInBytes();
+			TimeBudgetScheduler.Ticket ticket = timeBudget.admit(entry.getContent().getMimeType(), (route == WorkPlanner.Route.BATCH) ? Math.min(size, workBatchThresholdBytes) : size); // only the start of a batched node is read
+			if (ticket == null)
+			{
+				logOrPrint("Deferring #" + e + " " + entry.getName() + ":" + entry.getId() + " to the next run, it does not fit in the time left.");
+				if (deferred.size() < checkpointMaxDeferred)
+					deferred.add(entry.getId());
+			}
+			else
+			{
+				logOrPrint("Queueing #" + e + " " + entry.getName() + ":" + entry.getId() + ((route == WorkPlanner.Route.BATCH) ? " for batch, " + size + " bytes" : ""));
+				NodeWorkItem item = new NodeWorkItem(entry, e);
+				item.route = route;
+				item.ticket = ticket;
+				pipeline.submit(item);
+			}
+			e++;
 		}
-		return summarizationsDone;
+		return e;
+	}
+
+	private boolean fetchStage(NodeWorkItem item) throws IOException, InterruptedException
+	{
+		if (item.ticket != null)
+			item.ticket.start();
+		long start = System.nanoTime();
+		String nodeMimeType = item.getMimeType();
+		logOrPrint("Processing #" + item.sequence + " " + item.getEntry().getName() + ":" + item.getNodeId());
+		if (nodeMimeType.equalsIgnoreCase(Content.MIME_TEXTDoc))
+		{ // decoded as it arrives, there is nothing left to extract
+			if (item.route == WorkPlanner.Route.BATCH)
+			{
+				item.text = getAlfrescoText(item.getNodeId(), item.getEntry().getContent().getEncoding(), BedrockBatchClaudePromptMaxLength);
+				item.fullTextLength = item.getEntry().getContent().getSizeInBytes(); // about one character a byte
+			}
+			else
+				item.text = getAlfrescoText(item.getNodeId(), item.getEntry().getContent().getEncoding());
+		}
+		else if (nodeMimeType.equalsIgnoreCase(Content.MIME_PDFDoc))
+		{
+			if (pdfMemoryGovernor == null)
+				item.content = fetchAlfrescoContent(item.getNodeId());
+			else
+			{ // wait for heap budget before the download, it is held until the PDF is closed. One copy of the document per thread that parses it, large ones are parsed by one thread only.
+				long size = item.getEntry().getContent().getSizeInBytes();
+				item.memoryPermit = pdfMemoryGovernor.acquire(size, pdfMemoryGovernor.isLarge(size) ? 1 : pdfExtractParallelism);
+				item.content = fetchAlfrescoContent(item.getNodeId(), Math.min(contentSpillThresholdBytes, pdfMemoryGovernor.getMaxMainMemoryBytes()));
+			}
+		}
+		if (item.text != null || item.content != null)
+		{
+			metrics.recordMillisSince("DownloadTime", start);
+			metrics.record("DownloadBytes", RunMetrics.Unit.Bytes, (item.content != null) ? item.content.size() : item.getEntry().getContent().getSizeInBytes());
+		}
+		return true; // unsupported types pass through with no text, and get an empty summary
+	}
+
+	private boolean extractStage(NodeWorkItem item) throws IOException
+	{
+		if (item.content != null)
+		{
+			long start = System.nanoTime();
+			try
+			{
+				PdfTextExtractor.Result extracted = extractPDFText(item.content, (item.route == WorkPlanner.Route.BATCH) ? BedrockBatchClaudePromptMaxLength : ExtractedTextMaxLength, item.memoryPermit);
+				item.text = extracted.getText();
+				item.fullTextLength = extracted.getEstimatedFullLength();
+				metrics.recordMillisSince("ExtractTime", start);
+			} finally
+			{
+				item.discardContent();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Shrinks the extracted text as preCompression says. Only nodes on the DIRECT route are ranked down to preCompressionTargetTokens, so that they can be summarized by a synchronous call. Batch inference is not in a hurry, and gets its text whole.
+	 */
+	private boolean compressStage(NodeWorkItem item)
+	{
+		if (item.text == null || preCompression == TextCompressor.Mode.NONE)
+			return true;
+		long start = System.nanoTime();
+		int length = item.text.length();
+		metrics.record("ExtractedChars", RunMetrics.Unit.Count, length);
+		TextCompressor.Mode mode = (item.route == WorkPlanner.Route.DIRECT) ? preCompression : TextCompressor.Mode.CLEAN;
+		item.text = textCompressor.compress(item.text, mode, preCompressionTargetTokens);
+		if (length > 0 && item.fullTextLength > length)
+			item.fullTextLength = item.fullTextLength * item.text.length() / length; // the part not extracted would have shrunk as much
+		metrics.recordMillisSince("CompressTime", start);
+		metrics.record("CompressedChars", RunMetrics.Unit.Count, item.text.length());
+		return true;
+	}
+
+	/**
+	 * Looks for a summary that can be reused for the node: one cached for the same text and settings (see summaryCache), or that of a near-duplicate node (see nearDuplicateIndex). Both may read from S3 or Alfresco, so this runs on workers of its own
+	 * rather than on the infer stage's dispatcher, where it would hold up every other model call. On a hit item.text is cleared and the infer stage passes the node on.
+	 */
+	private boolean lookupStage(NodeWorkItem item)
+	{
+		if (item.text == null)
+			return true;
+		Properties nodeProps = item.getEntry().getProperties();
+		if (summaryCache != null)
+		{ // same text and settings as an earlier summary, write that back rather than pay for another
+			item.cacheKey = SummaryCache.keyOf(item.text, Math.max(item.fullTextLength, item.text.length()), nodeProps.getCrestBedrock_prompt(), nodeProps.getCrestBedrock_temperature(), 
+					                           nodeProps.getCrestBedrock_responseLength(), nodeProps.getCrestBedrock_fm());
+			String cached = summaryCache.get(item.cacheKey);
+			if (cached != null)
+			{
+				item.text = null;
+				item.aiResponse = cached;
+				item.log = item.getNodeId() + ". Cached. Summarization";
+				metrics.add("CacheHits", 1);
+				return true;
+			}
+		}
+		if (nearDuplicateIndex != null)
+		{ // nearly the same text as a node already summarized, eg. a copy or a new version, reuse its summary
+			item.signature = NearDuplicateIndex.signatureOf(item.text);
+			long settings = NearDuplicateIndex.settingsOf(nodeProps.getCrestBedrock_prompt(), nodeProps.getCrestBedrock_temperature(), nodeProps.getCrestBedrock_responseLength(), nodeProps.getCrestBedrock_fm());
+			NearDuplicateIndex.Match match = nearDuplicateIndex.find(item.signature, settings);
+			String reused = (match == null) ? null : getReusableSummary(match.getNodeId());
+			if (reused != null)
+			{
+				nearDuplicateIndex.put(item.getNodeId(), item.signature, settings);
+				if (item.cacheKey != null)
+					summaryCache.put(item.cacheKey, reused);
+				item.text = null;
+				item.aiResponse = reused;
+				metrics.add("NearDuplicates", 1);
+				item.log = item.getNodeId() + ". Near-duplicate of " + match.getNodeId() + String.format(" (similarity %.2f). Summarization", match.getSimilarity());
+				return true;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Starts the model call for one node and returns without waiting for it. The reply is turned into the node's summary on completion. Nodes whose summary the lookup stage found are passed on as they are.
+	 */
+	private CompletableFuture<Boolean> inferStage(NodeWorkItem item)
+	{
+		if (item.text == null)
+			return CompletableFuture.completedFuture(true);
+		Properties nodeProps = item.getEntry().getProperties();
+		long start = System.nanoTime();
+		metrics.record("InputTokens", RunMetrics.Unit.Count, tokenEstimator.estimate(item.text)); // estimated, Bedrock's count is only known per call
+		CompletableFuture<JSONObject> reply = BedrockInvokeClaudeAsync(nodeProps.getCrestBedrock_prompt(), nodeProps.getCrestBedrock_responseLength(), 
+				                                      nodeProps.getCrestBedrock_temperature(), item.text, item.getNodeId(), Math.max(item.fullTextLength, item.text.length()), item.route == WorkPlanner.Route.BATCH);
+		item.text = null; // no longer needed, let it be collected while the model call is pending
+		return reply.thenApply(bedrockReply -> 
+		{
+			if (bedrockReply != null && !bedrockReply.optString("completion").startsWith("batch|"))
+				metrics.recordMillisSince("InferenceTime", start);
+			return inferred(item, bedrockReply);
+		});
+	}
+
+	/**
+	 * Turns the model's reply into the node's summary. Runs on the thread that completed the call, often the SDK's, so nothing here may block: the summary cache is written in the update stage.
+	 */
+	private boolean inferred(NodeWorkItem item, JSONObject bedrockReply)
+	{
+		if (bedrockReply == null)
+		{
+			endDocument(item, "no reply");
+			if (item.ticket != null)
+				item.ticket.done(false);
+			return false;
+		}
+		String aiResponse = bedrockReply.get("completion").toString();
+		String log = item.getNodeId() + ". ";
+		if (aiResponse.startsWith("batch|"))
+		{
+			//write it into node's metadata as a marker to indicate an async batch job is running
+			logOrPrint(item.getNodeId()+" is too long for direct invocation. It has been batched as "+bedrockReply.get("s3Path").toString());
+			log = log+ "Batched. Staging to S3";
+		}
+		else
+		{ // Claude usually titles its responses, let's remove the first line.
+			aiResponse = removeFirstLine(aiResponse, true);
+			if (bedrockReply.has("truncatedHeader"))
+				aiResponse = bedrockReply.getString("truncatedHeader").concat(aiResponse);
+			log = log + "Completed. Summarization";
+			item.cacheResponse = (item.cacheKey != null);
+		}
+		if (nearDuplicateIndex != null && item.signature != null)
+		{ // a batch placeholder is indexed too, its summary is reused once the job's result replaces it
+			Properties nodeProps = item.getEntry().getProperties();
+			nearDuplicateIndex.put(item.getNodeId(), item.signature, NearDuplicateIndex.settingsOf(nodeProps.getCrestBedrock_prompt(), nodeProps.getCrestBedrock_temperature(), nodeProps.getCrestBedrock_responseLength(), nodeProps.getCrestBedrock_fm()));
+		}
+		item.aiResponse = aiResponse;
+		item.log = log;
+		return true;
+	}
+
+	private boolean updateStage(NodeWorkItem item, AtomicInteger summarizationsDone)
+	{
+		if (item.cacheResponse)
+			summaryCache.put(item.cacheKey, item.aiResponse); // may be an S3 PUT, kept off the thread the model call completed on
+		Properties nodeProps = item.getEntry().getProperties();
+		nodeProps.setCrestBedrock_generateSummary(false);
+		nodeProps.setCrestBedrock_summary((item.aiResponse == null) ? "" : item.aiResponse);
+		nodeProps.setCrestBedrock_summaryTime(item.startTime);
+		updateAlfrescoNode(nodeProps, item.getNodeId());
+
+		long elapsed = (new Date()).getTime() - item.startTime.getTime();
+		metrics.record("DocumentTime", RunMetrics.Unit.Milliseconds, elapsed);
+		logOrPrint(item.log +" took " + elapsed / 1000 + " seconds.");
+		endDocument(item, (item.aiResponse != null && item.aiResponse.startsWith("batch|")) ? "batched" : "summarized");
+		if (item.ticket != null)
+			item.ticket.done(true);
+		summarizationsDone.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Wraps a stage's task so that each item's pass through it is recorded as a SummarizationEvents.Stage.
+	 */
+	private StagedPipeline.StageTask<NodeWorkItem> recorded(String stageName, StagedPipeline.StageTask<NodeWorkItem> task)
+	{
+		return item ->
+		{
+			SummarizationEvents.Stage event = new SummarizationEvents.Stage();
+			event.begin();
+			Boolean forwarded = null;
+			Exception failure = null;
+			try
+			{
+				forwarded = task.process(item);
+				return forwarded;
+			} catch (Exception e)
+			{
+				failure = e;
+				throw e;
+			} finally
+			{
+				endStage(event, stageName, item, forwarded, failure);
+			}
+		};
+	}
+
+	/**
+	 * Wraps an asynchronous stage's task so that each item's pass through it, until its work completes, is recorded as a SummarizationEvents.Stage.
+	 */
+	private StagedPipeline.AsyncStageTask<NodeWorkItem> recordedAsync(String stageName, StagedPipeline.AsyncStageTask<NodeWorkItem> task)
+	{
+		return item ->
+		{
+			SummarizationEvents.Stage event = new SummarizationEvents.Stage();
+			event.begin();
+			CompletionStage<Boolean> result;
+			try
+			{
+				result = task.process(item);
+			} catch (Exception e)
+			{
+				endStage(event, stageName, item, null, e);
+				throw e;
+			}
+			return result.whenComplete((forwarded, e) -> endStage(event, stageName, item, forwarded, (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e));
+		};
+	}
+
+	private static void endStage(SummarizationEvents.Stage event, String stageName, NodeWorkItem item, Boolean forwarded, Throwable failure)
+	{
+		if (!event.shouldCommit())
+			return;
+		event.stage = stageName;
+		event.nodeId = item.getNodeId();
+		event.mimeType = item.getMimeType();
+		event.sizeBytes = item.getEntry().getContent().getSizeInBytes();
+		event.textChars = (item.text == null) ? 0 : item.text.length();
+		event.outcome = SummarizationEvents.outcomeOf(forwarded, failure);
+		event.commit();
+	}
+
+	/**
+	 * Ends the node's SummarizationEvents.Document, once it has left the pipeline.
+	 */
+	private static void endDocument(NodeWorkItem item, String outcome)
+	{
+		SummarizationEvents.Document event = item.event;
+		if (!event.shouldCommit())
+			return;
+		event.nodeId = item.getNodeId();
+		event.mimeType = item.getMimeType();
+		event.route = item.route.toString();
+		event.sizeBytes = item.getEntry().getContent().getSizeInBytes();
+		event.textChars = item.fullTextLength;
+		event.outcome = outcome;
+		event.commit();
 	}
 
 	public static String removeFirstLine(String input, boolean emptyLinesAfterFirstLine)
@@ -457,138 +1587,273 @@ public class SummarizeAlfrescoWithBedrock implements RequestHandler<Map<String,
 		return removedTopLine;
 	}
 
-	protected String performPutRestApiCall(String endpoint, JsonObject jsonObject) throws HttpResponseException, IOException, JsonSyntaxException
+	/**
+	 * Waits for queued node updates to be written, as the execution environment is frozen once the handler returns.
+	 */
+	protected void flushNodeUpdates()
+	{
+		try
+		{
+			if (!awaitNodeUpdates())
+				logOrPrint(nodeUpdater.getOutstanding() + " node updates were still outstanding when the wait ended.");
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		logOrPrint(nodeUpdater.getStatistics());
+	}
+
+	/**
+	 * Waits up to alfrescoUpdateFlushTimeoutMillis, and no longer than the Lambda call has left, for queued node updates to be sent or to fail.
+	 * 
+	 * @return false if updates were still outstanding when the wait ended.
+	 */
+	private boolean awaitNodeUpdates() throws InterruptedException
+	{
+		long timeout = Math.max(0, Math.min(alfrescoUpdateFlushTimeoutMillis, timeBudget.getCallDeadline() - System.currentTimeMillis()));
+		return nodeUpdater.flush(timeout);
+	}
+
+	/**
+	 * @return HTTP status code of the PUT.
+	 */
+	protected int executePutRestApiCall(String endpoint, JsonObject jsonObject) throws IOException
 	{
 		HttpPut httpPut = new HttpPut(endpoint);
 
 		httpPut.setHeader("Accept", "application/json");
 		httpPut.setHeader("Content-Type", "application/json");
-		httpPut.setHeader("Authorization", "Basic " + this.encodedTicket);
-		httpPut.setEntity(new StringEntity(jsonObject.toString()));
+		httpPut.setEntity(new StringEntity(jsonObject.toString(), StandardCharsets.UTF_8));
 
-		HttpResponse response = this.httpClient.execute(httpPut);
-		String returnMsg = null; // if null, update is successful
-		if (response.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK)
+		try (CloseableHttpResponse response = alfrescoSession.execute(httpPut))
 		{
-			switch (response.getStatusLine().getStatusCode())
-			{
-				case HttpURLConnection.HTTP_BAD_REQUEST :
-					returnMsg = "The update request is invalid or nodeId is not a valid format or nodeBodyUpdate is invalid.";
-					break;
-				case HttpURLConnection.HTTP_UNAUTHORIZED :
-					returnMsg = "Authentication failed.";
-					break;
-				case HttpURLConnection.HTTP_FORBIDDEN :
-					returnMsg = "Current user does not have permission to update nodeId.";
-					break;
-				case HttpURLConnection.HTTP_NOT_FOUND :
-					returnMsg = "nodeId does not exist.";
-					break;
-				default :
-					returnMsg = "Unexpected error.";
-			}
+			EntityUtils.consume(response.getEntity()); // release the connection back to the client's pool
+			return response.getStatusLine().getStatusCode();
+		}
+	}
 
+	/**
+	 * Sends one node update, see AlfrescoNodeUpdater.
+	 */
+	private int putAlfrescoNodeProperties(String nodeId, JsonObject properties) throws IOException
+	{
+		long start = System.nanoTime();
+		JsonObject jsonBody = new JsonObject();
+		jsonBody.add("properties", properties);
+		try
+		{
+			return executePutRestApiCall(alfrescoSession.endpoint("/alfresco/api/-default-/public/alfresco/versions/1/nodes/" + nodeId), jsonBody);
+		} finally
+		{
+			metrics.recordMillisSince("NodeUpdateTime", start);
 		}
-		return returnMsg;
 	}
 
-	protected void updateAlfrescoNode(Properties prop, String nodeId) throws HttpResponseException, IOException
+	protected String performPutRestApiCall(String endpoint, JsonObject jsonObject) throws HttpResponseException, IOException, JsonSyntaxException
 	{
-		String alfrescoNodeUpdateRestEndpoint = "://" + this.url + "/alfresco/api/-default-/public/alfresco/versions/1/nodes/" + nodeId;
-		alfrescoNodeUpdateRestEndpoint = this.httpProtocol ? "https" + alfrescoNodeUpdateRestEndpoint : "http" + alfrescoNodeUpdateRestEndpoint;
+		int status = executePutRestApiCall(endpoint, jsonObject);
+		return (status == HttpURLConnection.HTTP_OK) ? null : describePutStatus(status); // if null, update is successful
+	}
+
+	protected static String describePutStatus(int status)
+	{
+		switch (status)
+		{
+			case HttpURLConnection.HTTP_BAD_REQUEST :
+				return "The update request is invalid or nodeId is not a valid format or nodeBodyUpdate is invalid.";
+			case HttpURLConnection.HTTP_UNAUTHORIZED :
+				return "Authentication failed.";
+			case HttpURLConnection.HTTP_FORBIDDEN :
+				return "Current user does not have permission to update nodeId.";
+			case HttpURLConnection.HTTP_NOT_FOUND :
+				return "nodeId does not exist.";
+			default :
+				return "Unexpected error.";
+		}
+	}
 
+	/**
+	 * Queues the node's summary properties for nodeUpdater and returns without waiting for the repository. Repeated updates of a node before it is written are merged.
+	 */
+	protected void updateAlfrescoNode(Properties prop, String nodeId)
+	{
 		JsonObject propBody = new JsonObject();
 		propBody.addProperty("crestBedrock:summary", prop.getCrestBedrock_summary());
 		propBody.addProperty("crestBedrock:generateSummary", prop.getCrestBedrock_generateSummary());
-		propBody.addProperty("crestBedrock:summaryTime", alfrescoDateFormat.format(prop.getCrestBedrock_summaryTime()));
-		JsonObject jsonBody = new JsonObject();
-		jsonBody.add("properties", propBody);
-
-		String returnMsg = performPutRestApiCall(alfrescoNodeUpdateRestEndpoint, jsonBody);
-		if (!(returnMsg == null))
+		synchronized (alfrescoDateFormat) // SimpleDateFormat is not thread safe
 		{
-			logOrPrint(returnMsg + " returned by Alfresco repository when attempting to update node " + nodeId);
+			propBody.addProperty("crestBedrock:summaryTime", alfrescoDateFormat.format(prop.getCrestBedrock_summaryTime()));
 		}
-
+		nodeUpdater.submit(nodeId, propBody);
+		if (!prop.getCrestBedrock_generateSummary())
+			nodesReleased.incrementAndGet();
 	}
 
+	/**
+	 * Invokes the model and waits for its reply. Throttled and timed out requests are retried up to bedrockMaxAttempts times, see BedrockInvoker.
+	 */
 	protected JSONObject BedrockInvokeClaude(JSONObject jsonBody)
 	{
-		SdkBytes body = SdkBytes.fromUtf8String(jsonBody.toString());
-		InvokeModelRequest request = InvokeModelRequest.builder().modelId("anthropic.claude-v2:1").body(body).build();
-		InvokeModelResponse response =null;
-		while (response ==null)
+		try
 		{
-			try
-			{
-				response = this.bedrockClient.invokeModel(request);
-			}
-			catch (software.amazon.awssdk.services.bedrockruntime.model.ThrottlingException tE )
-			{	String logMsg = "Retrying in 10secs-"+ tE.getMessage();
-				logOrPrint(logMsg);
-				try
-				{
-					Thread.sleep(10000);
-				} catch (InterruptedException e)
-				{
-					e.printStackTrace();
-				}
-			}
-			catch (software.amazon.awssdk.core.exception.SdkClientException sE)
-			{
-				logOrPrint("Read Timeout. So skip");
-				//Temporary timeout issue (https://docs.aws.amazon.com/bedrock/latest/userguide/model-parameters-claude.html). 
-			}
+			return bedrockInvoker.invoke(jsonBody).join();
+		} catch (CompletionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
 		}
-		JSONObject jsonObject = new JSONObject(response.body().asString(StandardCharsets.UTF_8));
-		return jsonObject;
 	}
 	
 	
 	protected JSONObject BedrockInvokeClaude(String prompt, int responseLength, float temperature, String textToInfer, String alfNodeId)
 	{
-		JSONObject jsonBody = null;
+		return BedrockInvokeClaude(prompt, responseLength, temperature, textToInfer, alfNodeId, textToInfer.length());
+	}
+
+	/**
+	 * @param fullTextLength
+	 *            Length of the document's whole text. Larger than textToInfer if extraction stopped early, and used to report how much was truncated.
+	 */
+	protected JSONObject BedrockInvokeClaude(String prompt, int responseLength, float temperature, String textToInfer, String alfNodeId, long fullTextLength)
+	{
+		return BedrockInvokeClaudeAsync(prompt, responseLength, temperature, textToInfer, alfNodeId, fullTextLength).join();
+	}
+
+	/**
+	 * Same as BedrockInvokeClaude but returns as soon as the request has been handed to bedrockInvoker. Text too long for direct invocation is staged to S3 for batch inference before this returns.
+	 * 
+	 * @return Completes with the reply, or with null if Bedrock rejected the request as invalid.
+	 */
+	protected CompletableFuture<JSONObject> BedrockInvokeClaudeAsync(String prompt, int responseLength, float temperature, String textToInfer, String alfNodeId, long fullTextLength)
+	{
+		return BedrockInvokeClaudeAsync(prompt, responseLength, temperature, textToInfer, alfNodeId, fullTextLength, false);
+	}
+
+	/**
+	 * @param batch
+	 *            true to send the text to batch inference whatever its length, eg. for a node WorkPlanner routed to batch.
+	 */
+	protected CompletableFuture<JSONObject> BedrockInvokeClaudeAsync(String prompt, int responseLength, float temperature, String textToInfer, String alfNodeId, long fullTextLength, boolean batch)
+	{
 		JSONObject jsonModelBody = null;
 
-		JSONObject claudeResponse = null;
+		CompletableFuture<JSONObject> claudeResponse = null;
 		textToInfer = textToInfer.trim();
 		String batchRecordId = null;
+		String truncatedHeader = null;
 
-		if (textToInfer.length() > ArbitarySynchronousBedrockInvocationLength)
+		int tokens = tokenEstimator.estimate(textToInfer);
+		if (!batch && mapReduceEnabled && tokens > claudeMaxInputTokens)
+			return BedrockMapReduceClaude(prompt, responseLength, temperature, textToInfer, alfNodeId, fullTextLength);
+		if (batch || tokens > claudeSyncMaxInputTokens)
 		{
-			batchRecordId = Utils.seededRandomString(obfuscateNodeNameRandomizer, 12);
-			if (textToInfer.length() > BedrockBatchClaudePromptMaxLength)
+			batchRecordId = Utils.seededRandomString((obfuscateNodeNameRandomizer == null) ? new Random() : obfuscateNodeNameRandomizer, BatchRecordIdLength);
+			if (tokens > claudeMaxInputTokens)
 			{
-				int pReduction = (int) ((float) ((textToInfer.length() - BedrockBatchClaudePromptMaxLength) / (float) textToInfer.length()) * 100);
-				this.truncatedHeader = ("*** The text used has been truncated by " + pReduction + "% to generate the following inference ***.\n\r");
-				logOrPrint("Text for inference truncted to " + textToInfer.length());
-				textToInfer = textToInfer.substring(0, BedrockBatchClaudePromptMaxLength);
+				int end = tokenEstimator.endFor(textToInfer, 0, claudeMaxInputTokens);
+				truncatedHeader = truncatedHeader(Math.max(fullTextLength, textToInfer.length()), end);
+				textToInfer = textToInfer.substring(0, end);
+				logOrPrint("Text for inference truncted to " + textToInfer.length() + " characters, about " + claudeMaxInputTokens + " tokens");
 			}
+			else if (fullTextLength > textToInfer.length())
+				truncatedHeader = truncatedHeader(fullTextLength, textToInfer.length()); // extraction stopped early
 		}
 		//else there's no need to truncate
 
-		jsonModelBody = new JSONObject().put("prompt", "Human:" + textToInfer + "\\n" + prompt + "\\n\\nAssistant:")
-				                        .put("temperature", temperature).put("max_tokens_to_sample", responseLength)
-				                        .put("top_k", claudeTopK).put("top_p", claudeTopP);
+		jsonModelBody = claudeModelBody(prompt, responseLength, temperature, textToInfer);
 		try
 		{
-			if (batchRecordId == null)
+			if (batchRecordId != null)
 			{
-				claudeResponse = BedrockInvokeClaude(jsonModelBody);
+				String recordId = batchRecordId + alfNodeId; // the node is found from the record when the job's output is read
+				BatchPacker packer = getBatchPacker();
+				long start = System.nanoTime();
+				boolean packed = packer.add(recordId, jsonModelBody);
+				metrics.recordMillisSince("BatchStagingTime", start);
+				if (packed)
+					claudeResponse = CompletableFuture.completedFuture(new JSONObject().put("completion", "batch|" + recordId + "|" + truncatedHeader).put("s3Path", s3Utils.getBucketName() + "/" + packer.getPendingLocation())); //fake a completion section so that caller can get the batch placeholder Id.
+				else
+					logOrPrint(alfNodeId + " is larger than a batch record may be, invoking directly.");
 			}
-			else
+			if (claudeResponse == null)
 			{
-				jsonBody = new JSONObject().put("recordId", batchRecordId).put("modelInput", jsonModelBody); //package the into JSONL for batch processing https://docs.aws.amazon.com/bedrock/latest/userguide/batch-inference-data.html
-				String keyPath = s3Utils.getKeyPath() + "batch/input/" + batchRecordId + alfNodeId + ".jsonl";
-				s3Utils.putJsonIntoS3(s3Client, keyPath, jsonBody, true);
-				claudeResponse = new JSONObject().put("completion", "batch|" + batchRecordId+"|"+this.truncatedHeader).put("s3Path", s3Utils.getBucketName() + "/" + keyPath); //fake a completion section so that caller can get the batch placeholder Id.
+				String header = truncatedHeader;
+				claudeResponse = bedrockInvoker.invoke(jsonModelBody).thenApply(reply -> (header == null) ? reply : reply.put("truncatedHeader", header))
+						                       .exceptionally(e -> 
+						                       {
+							                       Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+							                       if (!(cause instanceof ValidationException))
+								                       throw (e instanceof CompletionException) ? (CompletionException) e : new CompletionException(e);
+							                       logOrPrint(cause.getMessage());
+							                       return null;
+						                       });
 			}
+		} catch (IOException e)
+		{
+			logOrPrint("Could not stage " + alfNodeId + " for batch. " + e.getMessage());
+			claudeResponse = CompletableFuture.completedFuture(null);
 		} catch (ValidationException e)
 		{
 			logOrPrint(e.getMessage());
+			claudeResponse = CompletableFuture.completedFuture(null);
 		}
 		return claudeResponse;
 	}
+
+	/**
+	 * Summarizes text longer than claudeMaxInputTokens in chunks of about mapReduceChunkTokens, with mapReduceParallelism calls in flight, then summarizes the partial summaries with the node's own prompt. Only text beyond
+	 * mapReduceMaxTextLength is truncated.
+	 * 
+	 * @return Completes with the reply, or with null if Bedrock rejected a request as invalid.
+	 */
+	protected CompletableFuture<JSONObject> BedrockMapReduceClaude(String prompt, int responseLength, float temperature, String textToInfer, String alfNodeId, long fullTextLength)
+	{
+		long fullLength = Math.max(fullTextLength, textToInfer.length());
+		if (textToInfer.length() > mapReduceMaxTextLength)
+		{
+			logOrPrint("Text for inference truncted to " + mapReduceMaxTextLength);
+			textToInfer = textToInfer.substring(0, mapReduceMaxTextLength);
+		}
+		String truncatedHeader = (fullLength > textToInfer.length()) ? truncatedHeader(fullLength, textToInfer.length()) : null;
+		MapReduceSummarizer summarizer = new MapReduceSummarizer((text, instruction, maxTokens) -> 
+		{
+			CompletableFuture<JSONObject> call = bedrockInvoker.invoke(claudeModelBody(instruction, maxTokens, temperature, text));
+			CompletableFuture<String> completion = call.thenApply(reply -> reply.get("completion").toString());
+			completion.whenComplete((reply, e) ->
+			{
+				if (completion.isCancelled())
+					call.cancel(true); // withdraws the request from bedrockInvoker, see MapReduceSummarizer.mapAll
+			});
+			return completion;
+		}, tokenEstimator, mapReduceChunkTokens, mapReduceParallelism, mapReduceChunkResponseLength);
+		return summarizer.summarize(textToInfer, prompt, responseLength).thenApply(result -> 
+		{
+			logOrPrint(alfNodeId + " summarized in " + result.getChunks() + " chunks with " + result.getCalls() + " calls.");
+			JSONObject reply = new JSONObject().put("completion", result.getSummary()).put("mapReduceChunks", result.getChunks());
+			return (truncatedHeader == null) ? reply : reply.put("truncatedHeader", truncatedHeader);
+		}).exceptionally(e -> 
+		{
+			Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+			if (!(cause instanceof ValidationException))
+				throw (e instanceof CompletionException) ? (CompletionException) e : new CompletionException(e);
+			logOrPrint(cause.getMessage());
+			return null;
+		});
+	}
+
+	protected static JSONObject claudeModelBody(String prompt, int responseLength, float temperature, String textToInfer)
+	{
+		return new JSONObject().put("prompt", "Human:" + textToInfer + "\\n" + prompt + "\\n\\nAssistant:")
+                               .put("temperature", temperature).put("max_tokens_to_sample", responseLength)
+                               .put("top_k", claudeTopK).put("top_p", claudeTopP);
+	}
+
+	protected static String truncatedHeader(long fullLength, long usedLength)
+	{
+		int pReduction = (int) ((float) ((fullLength - usedLength) / (float) fullLength) * 100);
+		return ("*** The text used has been truncated by " + pReduction + "% to generate the following inference ***.\n\r");
+	}
 	
 
 
@@ -607,7 +1872,7 @@ public class SummarizeAlfrescoWithBedrock implements RequestHandler<Map<String,
 
 		SummarizeAlfrescoWithBedrock sab = new SummarizeAlfrescoWithBedrock();
 		sab.localDebug = true;
-		sab.handleRequest(null, null);
+		System.out.println("Run summary: " + sab.handleRequest(null, null));
 		System.out.println("Main run took " + (System.currentTimeMillis() - mainStart) / 1000 + " seconds.");
 	}
 
@@ -0,0 +1,238 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import chongwm.demo.aws.community.examples.S3Utils;
+import software.amazon.awssdk.services.s3.S3Client;
+
+/**
+ * Summaries already produced, keyed by a hash of the text that was summarized and the settings that shape the summary. Nodes whose summary is requested again with unchanged content are answered from here instead of Amazon Bedrock.
+ *
+ * Recently used summaries are held in memory, up to a total number of characters. Every summary is also written to a persistent store, if there is one, so that later Lambda execution environments find it too.
+ */
+public class SummaryCache
+{
+	/**
+	 * Persistent tier of the cache.
+	 */
+	public interface Store
+	{
+		/**
+		 * @return The summary stored under key, or null if there is none.
+		 */
+		String get(String key) throws IOException;
+
+		void put(String key, String summary) throws IOException;
+	}
+
+	/**
+	 * Keeps one file per summary in a local folder.
+	 */
+	public static class DirectoryStore implements Store
+	{
+		private final File directory;
+
+		public DirectoryStore(File directory)
+		{
+			this.directory = directory;
+			directory.mkdirs();
+		}
+
+		@Override
+		public String get(String key) throws IOException
+		{
+			File file = new File(directory, key + ".txt");
+			return file.isFile() ? Files.readString(file.toPath(), StandardCharsets.UTF_8) : null;
+		}
+
+		@Override
+		public void put(String key, String summary) throws IOException
+		{ // write then rename, so that a concurrent reader never sees half a summary
+			File tmp = File.createTempFile(key, ".tmp", directory);
+			Files.writeString(tmp.toPath(), summary, StandardCharsets.UTF_8);
+			Files.move(tmp.toPath(), new File(directory, key + ".txt").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * Keeps one object per summary under a prefix of the staging bucket.
+	 */
+	public static class S3Store implements Store
+	{
+		private final Supplier<S3Client> s3Client; // built on the first lookup that misses the memory tier
+		private final S3Utils s3Utils;
+		private final String prefix;
+
+		/**
+		 * @param prefix
+		 *            Key prefix, relative to the bucket, ending with a slash.
+		 */
+		public S3Store(Supplier<S3Client> s3Client, S3Utils s3Utils, String prefix)
+		{
+			this.s3Client = s3Client;
+			this.s3Utils = s3Utils;
+			this.prefix = prefix;
+		}
+
+		@Override
+		public String get(String key)
+		{
+			return s3Utils.getStringFromS3(s3Client.get(), prefix + key + ".txt");
+		}
+
+		@Override
+		public void put(String key, String summary)
+		{
+			s3Utils.putStringIntoS3(s3Client.get(), prefix + key + ".txt", summary);
+		}
+	}
+
+	private final long maxChars;
+	private final Store store;
+	private final LinkedHashMap<String, String> recent = new LinkedHashMap<String, String>(64, 0.75f, true); // access order, eldest is least recently used
+	private long charsHeld = 0;
+	private final AtomicInteger memoryHits = new AtomicInteger();
+	private final AtomicInteger storeHits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+	private final AtomicInteger storeErrors = new AtomicInteger();
+
+	/**
+	 * @param maxChars
+	 *            Total length of the summaries held in memory.
+	 * @param store
+	 *            Persistent tier, or null for memory only.
+	 */
+	public SummaryCache(long maxChars, Store store)
+	{
+		this.maxChars = maxChars;
+		this.store = store;
+	}
+
+	/**
+	 * Builds the cache key. Any change to the text or to a setting that changes the summary gives a different key.
+	 *
+	 * @param text
+	 *            Text sent for summarization.
+	 * @param fullTextLength
+	 *            Length of the whole document's text. It differs from the text's length if the text was cut short, and is reported in the summary.
+	 * @param prompt
+	 *            Properties.getCrestBedrock_prompt()
+	 * @param temperature
+	 *            Properties.getCrestBedrock_temperature()
+	 * @param responseLength
+	 *            Properties.getCrestBedrock_responseLength()
+	 * @param fm
+	 *            Properties.getCrestBedrock_fm()
+	 * @return Hex SHA-256 digest.
+	 */
+	public static String keyOf(String text, long fullTextLength, String prompt, float temperature, int responseLength, String fm)
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e); // every JVM is required to have SHA-256
+		}
+		// Each part is length prefixed, so that no two different sets of parts hash the same bytes.
+		for (String part : new String[] {fm, prompt, Float.toString(temperature), Integer.toString(responseLength), Long.toString(fullTextLength), text})
+		{
+			byte[] bytes = (part == null ? "" : part).getBytes(StandardCharsets.UTF_8);
+			digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.US_ASCII));
+			digest.update((byte) ':');
+			digest.update(bytes);
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	/**
+	 * @return The cached summary, or null on a miss. A failing store counts as a miss.
+	 */
+	public String get(String key)
+	{
+		synchronized (this)
+		{
+			String summary = recent.get(key);
+			if (summary != null)
+			{
+				memoryHits.incrementAndGet();
+				return summary;
+			}
+		}
+		if (store != null)
+		{
+			try
+			{
+				String summary = store.get(key);
+				if (summary != null)
+				{
+					storeHits.incrementAndGet();
+					remember(key, summary);
+					return summary;
+				}
+			} catch (Exception e)
+			{
+				storeErrors.incrementAndGet();
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Caches a summary in memory and in the store. A failing store is counted, not thrown, since the summary itself is good.
+	 */
+	public void put(String key, String summary)
+	{
+		remember(key, summary);
+		if (store != null)
+		{
+			try
+			{
+				store.put(key, summary);
+			} catch (Exception e)
+			{
+				storeErrors.incrementAndGet();
+			}
+		}
+	}
+
+	private synchronized void remember(String key, String summary)
+	{
+		if (summary.length() > maxChars)
+			return;
+		String previous = recent.put(key, summary);
+		if (previous != null)
+			charsHeld -= previous.length();
+		charsHeld += summary.length();
+		Iterator<Map.Entry<String, String>> eldest = recent.entrySet().iterator();
+		while (charsHeld > maxChars && eldest.hasNext())
+		{
+			charsHeld -= eldest.next().getValue().length();
+			eldest.remove();
+		}
+	}
+
+	public String getStatistics()
+	{
+		int entries;
+		synchronized (this)
+		{
+			entries = recent.size();
+		}
+		return "Summary cache: " + memoryHits.get() + " memory hits, " + storeHits.get() + " store hits, " + misses.get() + " misses, " + storeErrors.get() + " store errors, " + entries + " summaries in memory.";
+	}
+}
@@ -0,0 +1,513 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Shrinks extracted text before it is sent for inference, on the CPU only. Bedrock's latency and price grow with the input, and much of a PDF's extracted text carries nothing a summary needs.
+ *
+ * clean() removes what repeats on every page and runs of whitespace:
+ * <ul>
+ * <li>Lines within EDGE_LINES of the top or bottom of a page that recur, digits aside, at the same edge of at least half the pages, ie. running headers and footers.</li>
+ * <li>Page numbers, eg. "12", "- 12 -", "Page 12 of 40", at the top or bottom of a page.</li>
+ * <li>Spaces and tabs collapsed to one space, blank lines to one, and words hyphenated across a line break joined.</li>
+ * </ul>
+ * Page breaks (PdfTextExtractor.PAGE_BREAK) are kept, so that MapReduceSummarizer can still split on them.
+ *
+ * rank() goes further and keeps only the most central sentences, as ranked by TextRank (Mihalcea and Tarau, 2004), until the text fits a number of tokens. Sentences are ranked in blocks of BLOCK_SENTENCES, each keeping its share of the tokens, so the
+ * cost grows linearly with the text and every part of a long document is represented.
+ */
+public class TextCompressor
+{
+	/**
+	 * How far text is compressed.
+	 */
+	public enum Mode
+	{
+		/** Text is sent as extracted. */
+		NONE,
+		/** Headers, footers, page numbers and whitespace are removed. */
+		CLEAN,
+		/** Cleaned, then only the top ranked sentences are kept if it is longer than the target. */
+		EXTRACTIVE
+	}
+
+	private static final int EDGE_LINES = 3; // lines at the top and at the bottom of a page looked at for headers and footers
+	private static final int MIN_PAGES = 3; // fewer pages do not tell a header from a heading
+	private static final double REPEATED_SHARE = 0.5; // share of pages an edge line must recur on
+	private static final int BLOCK_SENTENCES = 400;
+	private static final int MAX_SENTENCE_CHARS = 1000; // tables and lists have no full stops, they are cut here instead
+	private static final double DAMPING = 0.85;
+	private static final int MAX_ITERATIONS = 30;
+	private static final Pattern PAGE_NUMBER = Pattern.compile("(?i)^[-\u2013\u2014\\s]*(page\\s*)?\\d{1,5}(\\s*(of|/)\\s*\\d{1,5})?[-\u2013\u2014\\s]*$");
+	private static final Set<String> STOP_WORDS = new HashSet<String>(Arrays.asList("the", "and", "for", "are", "but", "not", "you", "all", "any", "can", "had", "her", "was", "one", "our", "out", "has", "his", "its", "may", "who", "did", "this",
+	        "that", "with", "from", "they", "will", "have", "been", "were", "which", "their", "there", "than", "then", "them", "these", "those", "such", "into", "also", "other", "shall", "would", "could", "should", "about", "when", "where", "what"));
+
+	private final TokenEstimator tokens;
+	private long documents = 0;
+	private long ranked = 0;
+	private long charsIn = 0;
+	private long charsOut = 0;
+	private long linesRemoved = 0;
+
+	/**
+	 * @param tokens
+	 *            Measures text against the target of rank().
+	 */
+	public TextCompressor(TokenEstimator tokens)
+	{
+		this.tokens = tokens;
+	}
+
+	/**
+	 * @return Mode named by a configuration value, eg. "clean". NONE if the value is null or unknown.
+	 */
+	public static Mode modeOf(String name)
+	{
+		for (Mode mode : Mode.values())
+			if (mode.name().equalsIgnoreCase((name == null) ? "" : name.trim()))
+				return mode;
+		return Mode.NONE;
+	}
+
+	/**
+	 * @param maxTokens
+	 *            Target of EXTRACTIVE compression.
+	 * @return text compressed as mode says.
+	 */
+	public String compress(String text, Mode mode, int maxTokens)
+	{
+		if (text == null || mode == Mode.NONE)
+			return text;
+		String compressed = clean(text);
+		if (mode == Mode.EXTRACTIVE)
+			compressed = rank(compressed, maxTokens);
+		synchronized (this)
+		{
+			documents++;
+			charsIn += text.length();
+			charsOut += compressed.length();
+		}
+		return compressed;
+	}
+
+	/**
+	 * Removes running headers and footers, page numbers and runs of whitespace.
+	 */
+	public String clean(String text)
+	{
+		String[] pages = text.split(PdfTextExtractor.PAGE_BREAK, -1);
+		List<String[]> pageLines = new ArrayList<String[]>(pages.length);
+		for (String page : pages)
+			pageLines.add(page.split("\r?\n|\r", -1));
+		Set<String> repeated = (pages.length >= MIN_PAGES) ? repeatedEdgeLines(pageLines) : new HashSet<String>();
+		StringBuilder sb = new StringBuilder(text.length());
+		int removed = 0;
+		for (int p = 0; p < pageLines.size(); p++)
+		{
+			if (p > 0)
+				sb.append(PdfTextExtractor.PAGE_BREAK);
+			String[] lines = pageLines.get(p);
+			boolean[] edge = edgeOf(lines);
+			boolean first = true;
+			boolean blank = false;
+			for (int l = 0; l < lines.length; l++)
+			{
+				String line = collapseWhitespace(lines[l]);
+				if (line.isEmpty())
+				{
+					blank = !first; // no blank line at the top of a page
+					continue;
+				}
+				if (edge[l] && (repeated.contains(keyOf(line)) || PAGE_NUMBER.matcher(line).matches()))
+				{
+					removed++;
+					continue;
+				}
+				if (!first)
+				{
+					int last = sb.length() - 1;
+					if (!blank && last > 0 && sb.charAt(last) == '-' && Character.isLowerCase(sb.charAt(last - 1)) && Character.isLowerCase(line.charAt(0)))
+						sb.setLength(last); // word hyphenated across the line break
+					else
+						sb.append(blank ? "\n\n" : "\n");
+				}
+				sb.append(line);
+				first = false;
+				blank = false;
+			}
+			if (!first)
+				sb.append('\n');
+		}
+		synchronized (this)
+		{
+			linesRemoved += removed;
+		}
+		return sb.toString().trim();
+	}
+
+	/**
+	 * @return Keys of the lines that recur at the edges of at least REPEATED_SHARE of the pages.
+	 */
+	private static Set<String> repeatedEdgeLines(List<String[]> pageLines)
+	{
+		Map<String, Integer> pagesWith = new HashMap<String, Integer>();
+		for (String[] lines : pageLines)
+		{
+			boolean[] edge = edgeOf(lines);
+			Set<String> keys = new HashSet<String>(); // counted once per page
+			for (int l = 0; l < lines.length; l++)
+				if (edge[l])
+					keys.add(keyOf(collapseWhitespace(lines[l])));
+			for (String key : keys)
+				pagesWith.merge(key, 1, Integer::sum);
+		}
+		int minPages = Math.max(MIN_PAGES, (int) Math.ceil(pageLines.size() * REPEATED_SHARE));
+		Set<String> repeated = new HashSet<String>();
+		for (Map.Entry<String, Integer> key : pagesWith.entrySet())
+			if (key.getValue() >= minPages && !key.getKey().isEmpty())
+				repeated.add(key.getKey());
+		return repeated;
+	}
+
+	/**
+	 * @return For each line, whether it is one of the first or last EDGE_LINES non blank lines of its page.
+	 */
+	private static boolean[] edgeOf(String[] lines)
+	{
+		boolean[] edge = new boolean[lines.length];
+		for (int l = 0, seen = 0; l < lines.length && seen < EDGE_LINES; l++)
+			if (!lines[l].isBlank())
+			{
+				edge[l] = true;
+				seen++;
+			}
+		for (int l = lines.length - 1, seen = 0; l >= 0 && seen < EDGE_LINES; l--)
+			if (!lines[l].isBlank())
+			{
+				edge[l] = true;
+				seen++;
+			}
+		return edge;
+	}
+
+	/**
+	 * @return line with its digits masked, so that "Report 2023, page 3" and "Report 2023, page 4" are the same footer.
+	 */
+	private static String keyOf(String line)
+	{
+		StringBuilder key = new StringBuilder(line.length());
+		for (int i = 0; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+			if (!Character.isDigit(c))
+				key.append(Character.toLowerCase(c));
+			else if (key.length() == 0 || key.charAt(key.length() - 1) != '#')
+				key.append('#');
+		}
+		return key.toString();
+	}
+
+	private static String collapseWhitespace(String line)
+	{
+		StringBuilder sb = new StringBuilder(line.length());
+		boolean space = false;
+		for (int i = 0; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+			if (isSpace(c))
+				space = sb.length() > 0;
+			else
+			{
+				if (space)
+					sb.append(' ');
+				sb.append(c);
+				space = false;
+			}
+		}
+		return sb.toString();
+	}
+
+	private static boolean isSpace(char c)
+	{
+		return c == ' ' || c == '\t' || c == '\u00A0' || c == '\r';
+	}
+
+	/**
+	 * One sentence of the text being ranked.
+	 */
+	private static class Sentence
+	{
+		final int start;
+		final int end;
+		final boolean paragraphStart;
+		int[] terms; // distinct, sorted
+		int tokens;
+		double score = 1;
+
+		Sentence(int start, int end, boolean paragraphStart)
+		{
+			this.start = start;
+			this.end = end;
+			this.paragraphStart = paragraphStart;
+		}
+	}
+
+	/**
+	 * Keeps the highest ranked sentences of text, in their original order, up to maxTokens.
+	 *
+	 * @return text itself if it already fits.
+	 */
+	public String rank(String text, int maxTokens)
+	{
+		int total = tokens.estimate(text);
+		if (maxTokens <= 0 || total <= maxTokens)
+			return text;
+		List<Sentence> sentences = sentencesOf(text);
+		Map<String, Integer> termIds = new HashMap<String, Integer>();
+		for (Sentence sentence : sentences)
+		{
+			sentence.terms = termsOf(text, sentence, termIds);
+			sentence.tokens = tokens.estimate(text, sentence.start, sentence.end) + 1; // and the space or line break that joins it to the one before
+		}
+		long sentenceTokens = 0;
+		for (Sentence sentence : sentences)
+			sentenceTokens += sentence.tokens;
+		boolean[] kept = new boolean[sentences.size()];
+		double[] weights = new double[BLOCK_SENTENCES * BLOCK_SENTENCES];
+		double budget = 0;
+		for (int from = 0; from < sentences.size(); from += BLOCK_SENTENCES)
+		{
+			List<Sentence> block = sentences.subList(from, Math.min(sentences.size(), from + BLOCK_SENTENCES));
+			long blockTokens = 0;
+			for (Sentence sentence : block)
+				blockTokens += sentence.tokens;
+			budget += (double) maxTokens * blockTokens / sentenceTokens; // what a block leaves unused passes to the next
+			textRank(block, weights);
+			Integer[] order = new Integer[block.size()];
+			for (int i = 0; i < order.length; i++)
+				order[i] = i;
+			Arrays.sort(order, (a, b) -> Double.compare(block.get(b).score, block.get(a).score));
+			for (int i : order)
+			{
+				if (block.get(i).tokens <= budget)
+				{
+					kept[from + i] = true;
+					budget -= block.get(i).tokens;
+				}
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		int previous = -2;
+		for (int s = 0; s < sentences.size(); s++)
+		{
+			if (!kept[s])
+				continue;
+			Sentence sentence = sentences.get(s);
+			if (sb.length() > 0)
+				sb.append((previous == s - 1 && !sentence.paragraphStart) ? " " : "\n");
+			sb.append(text, sentence.start, sentence.end);
+			previous = s;
+		}
+		synchronized (this)
+		{
+			ranked++;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Splits text after ., ! or ? followed by white space, at blank lines and page breaks, and within sentences longer than MAX_SENTENCE_CHARS.
+	 */
+	private static List<Sentence> sentencesOf(String text)
+	{
+		List<Sentence> sentences = new ArrayList<Sentence>();
+		int start = 0;
+		boolean paragraphStart = true;
+		int length = text.length();
+		for (int i = 0; i <= length; i++)
+		{
+			boolean end = (i == length);
+			boolean paragraphEnd = end;
+			if (!end)
+			{
+				char c = text.charAt(i);
+				if (c == PdfTextExtractor.PAGE_BREAK.charAt(0) || (c == '\n' && i + 1 < length && text.charAt(i + 1) == '\n'))
+					end = paragraphEnd = true;
+				else if ((c == '.' || c == '!' || c == '?' || c == '\u3002') && (i + 1 == length || Character.isWhitespace(text.charAt(i + 1)) || c == '\u3002'))
+				{
+					i++; // the stop belongs to the sentence
+					end = true;
+				} else if (i - start >= MAX_SENTENCE_CHARS && Character.isWhitespace(c))
+					end = true;
+			}
+			if (end)
+			{
+				int s = start;
+				int e = Math.min(i, length);
+				while (s < e && Character.isWhitespace(text.charAt(s)))
+					s++;
+				while (e > s && Character.isWhitespace(text.charAt(e - 1)))
+					e--;
+				if (s < e)
+				{
+					sentences.add(new Sentence(s, e, paragraphStart || isLineStart(text, s, start)));
+					paragraphStart = false;
+				}
+				if (paragraphEnd)
+					paragraphStart = true;
+				start = Math.min(i, length);
+			}
+		}
+		return sentences;
+	}
+
+	/**
+	 * @return true if only white space, including a line break, separates position from the end of the previous sentence at from.
+	 */
+	private static boolean isLineStart(String text, int position, int from)
+	{
+		for (int i = position - 1; i >= from; i--)
+		{
+			char c = text.charAt(i);
+			if (c == '\n')
+				return true;
+			if (!Character.isWhitespace(c))
+				return false;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Ids of the distinct terms of a sentence: lower cased words of 3 or more letters or digits that are not stop words, and single CJK characters.
+	 */
+	private static int[] termsOf(String text, Sentence sentence, Map<String, Integer> termIds)
+	{
+		Set<Integer> ids = new HashSet<Integer>();
+		int i = sentence.start;
+		while (i < sentence.end)
+		{
+			char c = text.charAt(i);
+			if (c >= '\u3040' && c <= '\u9FFF')
+			{
+				ids.add(termIds.computeIfAbsent(String.valueOf(c), k -> termIds.size()));
+				i++;
+			} else if (Character.isLetterOrDigit(c))
+			{
+				int j = i + 1;
+				while (j < sentence.end && Character.isLetterOrDigit(text.charAt(j)) && !(text.charAt(j) >= '\u3040' && text.charAt(j) <= '\u9FFF'))
+					j++;
+				if (j - i >= 3)
+				{
+					String word = text.substring(i, j).toLowerCase();
+					if (!STOP_WORDS.contains(word))
+						ids.add(termIds.computeIfAbsent(word, k -> termIds.size()));
+				}
+				i = j;
+			} else
+				i++;
+		}
+		int[] terms = new int[ids.size()];
+		int t = 0;
+		for (int id : ids)
+			terms[t++] = id;
+		Arrays.sort(terms);
+		return terms;
+	}
+
+	/**
+	 * Scores the sentences of a block by PageRank over their similarity, the number of terms two sentences share over the logs of their lengths. Sentences that share no term are not linked, so each iteration only visits the links.
+	 *
+	 * @param weights
+	 *            Scratch space for the block's similarity matrix, at least block.size() squared. Reused from block to block.
+	 */
+	private static void textRank(List<Sentence> block, double[] weights)
+	{
+		int n = block.size();
+		int[] degree = new int[n];
+		double[] outWeight = new double[n];
+		Arrays.fill(weights, 0, n * n, 0);
+		int postings = 0;
+		for (Sentence sentence : block)
+			postings += sentence.terms.length;
+		long[] termSentence = new long[postings]; // sorted, the sentences of each term follow one another
+		int p = 0;
+		for (int a = 0; a < n; a++)
+			for (int term : block.get(a).terms)
+				termSentence[p++] = ((long) term << 32) | a;
+		Arrays.sort(termSentence);
+		for (int first = 0; first < postings;)
+		{
+			int last = first + 1;
+			while (last < postings && (termSentence[last] >>> 32) == (termSentence[first] >>> 32))
+				last++;
+			for (int i = first; i < last; i++) // weights[] counts shared terms for now
+				for (int j = i + 1; j < last; j++)
+					weights[(int) termSentence[i] * n + (int) termSentence[j]]++;
+			first = last;
+		}
+		for (int a = 0; a < n; a++)
+		{
+			int la = block.get(a).terms.length;
+			for (int b = a + 1; b < n; b++)
+			{
+				double shared = weights[a * n + b];
+				int lb = block.get(b).terms.length;
+				if (shared == 0 || la < 2 || lb < 2)
+				{
+					weights[a * n + b] = 0;
+					continue;
+				}
+				double w = shared / (Math.log(la) + Math.log(lb));
+				weights[a * n + b] = w;
+				weights[b * n + a] = w;
+				outWeight[a] += w;
+				outWeight[b] += w;
+				degree[a]++;
+				degree[b]++;
+			}
+		}
+		int[][] links = new int[n][];
+		for (int a = 0; a < n; a++)
+		{
+			links[a] = new int[degree[a]];
+			for (int b = 0, l = 0; l < degree[a]; b++)
+				if (weights[a * n + b] > 0)
+					links[a][l++] = b;
+		}
+		double[] scores = new double[n];
+		double[] next = new double[n];
+		Arrays.fill(scores, 1);
+		for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++)
+		{
+			double change = 0;
+			for (int a = 0; a < n; a++)
+			{
+				double sum = 0;
+				for (int b : links[a]) // similarity is symmetric, links in are links out
+					sum += weights[b * n + a] / outWeight[b] * scores[b];
+				next[a] = (1 - DAMPING) + DAMPING * sum;
+				change += Math.abs(next[a] - scores[a]);
+			}
+			double[] swap = scores;
+			scores = next;
+			next = swap;
+			if (change < 1e-4 * n)
+				break;
+		}
+		for (int a = 0; a < n; a++)
+			block.get(a).score = scores[a];
+	}
+
+	public synchronized String getStatistics()
+	{
+		return String.format("Text compressor: %d documents, %d ranked down to their target, %d header, footer and page number lines removed, %d characters in, %d out (%.1f%%).", documents, ranked, linesRemoved, charsIn, charsOut,
+		        (charsIn == 0) ? 100.0 : charsOut * 100.0 / charsIn);
+	}
+}
@@ -0,0 +1,222 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides which documents still fit in a Lambda invocation's remaining time. Each document's cost is estimated from its MIME type and size as baseMillis + millisPerMB * size, and both terms are learnt per MIME type from the documents completed so far,
+ * so the estimate follows the latencies Alfresco and Bedrock are giving right now.
+ *
+ * The pipeline works on several documents at once, so a document is admitted if the work already admitted plus its own cost, shared over parallelism, ends before the admission deadline, and if it could finish on its own before then. The admission
+ * deadline leaves reserveMillis at the end of the invocation for flushing node updates and submitting batch jobs. Calls made for admitted documents are bounded by a later call deadline, see getCallDeadline().
+ */
+public class TimeBudgetScheduler
+{
+	private static final double LEARNING_RATE = 0.3;
+	private static final double BYTES_PER_MB = 1024 * 1024;
+
+	/**
+	 * Cost model of one MIME type.
+	 */
+	private static class Cost
+	{
+		double baseMillis;
+		double millisPerMB;
+		int observations = 0;
+
+		Cost(double baseMillis, double millisPerMB)
+		{
+			this.baseMillis = baseMillis;
+			this.millisPerMB = millisPerMB;
+		}
+
+		double estimate(long sizeBytes)
+		{
+			return baseMillis + millisPerMB * sizeBytes / BYTES_PER_MB;
+		}
+
+		/**
+		 * Moves both terms towards the observation, each by its share of the estimate.
+		 */
+		void learn(long sizeBytes, long elapsedMillis)
+		{
+			double sizeTerm = millisPerMB * sizeBytes / BYTES_PER_MB;
+			double estimate = baseMillis + sizeTerm;
+			double error = elapsedMillis - estimate;
+			double sizeShare = (estimate > 0) ? sizeTerm / estimate : 0.5;
+			baseMillis = Math.max(0, baseMillis + LEARNING_RATE * error * (1 - sizeShare));
+			if (sizeBytes > 0)
+				millisPerMB = Math.max(0, millisPerMB + LEARNING_RATE * error * sizeShare * BYTES_PER_MB / sizeBytes);
+			observations++;
+		}
+	}
+
+	/**
+	 * An admitted document. Call done() once it leaves the pipeline, whichever way.
+	 */
+	public class Ticket
+	{
+		private final String mimeType;
+		private final long sizeBytes;
+		private final double estimateMillis;
+		private long startedAt = 0;
+		private boolean done = false;
+
+		private Ticket(String mimeType, long sizeBytes, double estimateMillis)
+		{
+			this.mimeType = mimeType;
+			this.sizeBytes = sizeBytes;
+			this.estimateMillis = estimateMillis;
+		}
+
+		/**
+		 * Marks the start of work on the document, which is what its cost is measured from.
+		 */
+		public void start()
+		{
+			startedAt = System.currentTimeMillis();
+		}
+
+		/**
+		 * Releases the document's share of the budget.
+		 *
+		 * @param completed
+		 *            true if the document went all the way through, so that its time is a fair sample of its cost.
+		 */
+		public void done(boolean completed)
+		{
+			synchronized (TimeBudgetScheduler.this)
+			{
+				if (done)
+					return;
+				done = true;
+				outstandingMillis -= estimateMillis;
+				if (completed && startedAt > 0)
+					costOf(mimeType).learn(sizeBytes, System.currentTimeMillis() - startedAt);
+			}
+		}
+	}
+
+	private final long admissionDeadline;
+	private final long callDeadline;
+	private final int parallelism;
+	private final Map<String, Cost> costs = new HashMap<String, Cost>();
+	private double outstandingMillis = 0;
+	private int admitted = 0;
+	private int deferred = 0;
+
+	/**
+	 * @param remainingMillis
+	 *            Time left in the invocation, eg. Context.getRemainingTimeInMillis(). 0 or less for no limit.
+	 * @param reserveMillis
+	 *            Time kept back at the end for work after the pipeline.
+	 * @param safetyMillis
+	 *            Time kept back at the very end, so that calls time out before the invocation does.
+	 * @param parallelism
+	 *            Documents worked on at the same time.
+	 */
+	public TimeBudgetScheduler(long remainingMillis, long reserveMillis, long safetyMillis, int parallelism)
+	{
+		long now = System.currentTimeMillis();
+		this.callDeadline = (remainingMillis <= 0) ? Long.MAX_VALUE : now + remainingMillis - safetyMillis;
+		this.admissionDeadline = (remainingMillis <= 0) ? Long.MAX_VALUE : now + remainingMillis - Math.max(reserveMillis, safetyMillis);
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Starts from the costs another scheduler has learnt, eg. the one of the previous warm invocation.
+	 */
+	public TimeBudgetScheduler learntFrom(TimeBudgetScheduler previous)
+	{
+		if (previous == null)
+			return this;
+		synchronized (previous)
+		{
+			synchronized (this)
+			{
+				for (Map.Entry<String, Cost> cost : previous.costs.entrySet())
+				{
+					Cost copy = new Cost(cost.getValue().baseMillis, cost.getValue().millisPerMB);
+					copy.observations = cost.getValue().observations;
+					costs.put(cost.getKey(), copy);
+				}
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the starting estimate for a MIME type, used until documents of that type have been timed.
+	 */
+	public synchronized TimeBudgetScheduler seed(String mimeType, double baseMillis, double millisPerMB)
+	{
+		costs.put(mimeType.toLowerCase(), new Cost(baseMillis, millisPerMB));
+		return this;
+	}
+
+	private Cost costOf(String mimeType)
+	{
+		String key = (mimeType == null) ? "" : mimeType.toLowerCase();
+		Cost cost = costs.get(key);
+		if (cost == null)
+		{
+			cost = new Cost(0, 0); // unsupported types are only written back, their cost is learnt from the first one
+			costs.put(key, cost);
+		}
+		return cost;
+	}
+
+	/**
+	 * @return A ticket if the document fits in the remaining time, otherwise null.
+	 */
+	public synchronized Ticket admit(String mimeType, long sizeBytes)
+	{
+		double estimate = costOf(mimeType).estimate(Math.max(0, sizeBytes));
+		long left = getTimeLeftMillis();
+		if (estimate > left || (outstandingMillis + estimate) / parallelism > left)
+		{
+			deferred++;
+			return null;
+		}
+		outstandingMillis += estimate;
+		admitted++;
+		return new Ticket(mimeType, sizeBytes, estimate);
+	}
+
+	/**
+	 * @return Milliseconds until the admission deadline, negative once it has passed.
+	 */
+	public long getTimeLeftMillis()
+	{
+		return (admissionDeadline == Long.MAX_VALUE) ? Long.MAX_VALUE : admissionDeadline - System.currentTimeMillis();
+	}
+
+	/**
+	 * @return System.currentTimeMillis() by which every HTTP and Bedrock call should have ended, Long.MAX_VALUE if there is no limit.
+	 */
+	public long getCallDeadline()
+	{
+		return callDeadline;
+	}
+
+	public boolean isLimited()
+	{
+		return callDeadline != Long.MAX_VALUE;
+	}
+
+	public synchronized int getDeferred()
+	{
+		return deferred;
+	}
+
+	public synchronized String getStatistics()
+	{
+		StringBuilder sb = new StringBuilder("Time budget: ").append(admitted).append(" documents admitted, ").append(deferred).append(" deferred");
+		if (isLimited())
+			sb.append(", ").append(getTimeLeftMillis()).append(" ms left before the reserve");
+		sb.append(". Cost per type:");
+		for (Map.Entry<String, Cost> cost : costs.entrySet())
+			sb.append(String.format(" %s %.0f ms + %.0f ms/MB (%d timed)", cost.getKey(), cost.getValue().baseMillis, cost.getValue().millisPerMB, cost.getValue().observations));
+		return sb.toString();
+	}
+}
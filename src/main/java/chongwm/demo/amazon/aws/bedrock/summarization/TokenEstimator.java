@@ -0,0 +1,204 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+/**
+ * Estimates how many tokens Claude will count in a text, in one pass over its characters, allocating next to nothing. Characters are sorted into classes that tokenize very differently:
+ * <ul>
+ * <li>WORD: runs of Latin letters, about one token per word plus one per 4 letters beyond the first 4.</li>
+ * <li>DIGIT: runs of digits, about one token per 3 digits.</li>
+ * <li>SYMBOL: punctuation, symbols and line breaks, about one token each. Tables and code are dense in these.</li>
+ * <li>CJK: Chinese, Japanese and Korean characters, about one token each.</li>
+ * <li>OTHER: letters of other scripts, eg. Cyrillic or Greek, about one token per 2 characters.</li>
+ * </ul>
+ * Spaces are free, they are part of the token that follows them.
+ *
+ * The estimate is the sum of each class's count times a weight. The weights start at 1 and are calibrated with the input token counts Bedrock reports (see calibrate()), so the estimate converges on the tokenizer actually used.
+ */
+public class TokenEstimator
+{
+	private static final int WORD = 0;
+	private static final int DIGIT = 1;
+	private static final int SYMBOL = 2;
+	private static final int CJK = 3;
+	private static final int OTHER = 4;
+	private static final int CLASSES = 5;
+	private static final double LEARNING_RATE = 0.2;
+	private static final double MIN_WEIGHT = 0.3;
+	private static final double MAX_WEIGHT = 3;
+
+	private final double[] weights = {1, 1, 1, 1, 1};
+	private long calibrations = 0;
+	private double lastError = 0; // relative error of the estimate before the last calibration
+
+	/**
+	 * @return Estimated tokens in text.
+	 */
+	public int estimate(CharSequence text)
+	{
+		return (text == null) ? 0 : estimate(text, 0, text.length());
+	}
+
+	/**
+	 * @return Estimated tokens in text from start, inclusive, to end, exclusive.
+	 */
+	public int estimate(CharSequence text, int start, int end)
+	{
+		double[] counts = new double[CLASSES];
+		count(text, start, end, counts, Double.MAX_VALUE);
+		return (int) Math.ceil(weighted(counts));
+	}
+
+	/**
+	 * @return Index in text from start at which maxTokens are reached, text.length() if they are not. It does not fall inside a word.
+	 */
+	public int endFor(CharSequence text, int start, int maxTokens)
+	{
+		return count(text, start, text.length(), new double[CLASSES], maxTokens);
+	}
+
+	/**
+	 * Counts each class from start until end, or until the weighted count would pass maxTokens.
+	 *
+	 * @return Index counting stopped at.
+	 */
+	private int count(CharSequence text, int start, int end, double[] counts, double maxTokens)
+	{
+		double[] w;
+		synchronized (this)
+		{
+			w = (maxTokens == Double.MAX_VALUE) ? weights : weights.clone();
+		}
+		double tokens = 0;
+		int i = start;
+		while (i < end)
+		{
+			char c = text.charAt(i);
+			int next = i + 1;
+			int cls;
+			double units;
+			if (c < 128)
+			{
+				if (isLatinLetter(c))
+				{
+					while (next < end && next - i < 64 && isLatinLetter(text.charAt(next)))
+						next++;
+					cls = WORD;
+					units = 1 + Math.max(0, next - i - 4) / 4.0;
+				} else if (c >= '0' && c <= '9')
+				{
+					while (next < end && text.charAt(next) >= '0' && text.charAt(next) <= '9')
+						next++;
+					cls = DIGIT;
+					units = Math.ceil((next - i) / 3.0);
+				} else if (c == ' ' || c == '\t' || c == '\r')
+				{
+					i = next;
+					continue;
+				} else
+				{
+					cls = SYMBOL;
+					units = 1;
+				}
+			} else if (Character.isHighSurrogate(c))
+			{ // emoji and rare ideographs, a few byte tokens each
+				next = Math.min(end, i + 2);
+				cls = SYMBOL;
+				units = 2;
+			} else if (isCjk(c))
+			{
+				cls = CJK;
+				units = 1;
+			} else if (Character.isLetter(c))
+			{
+				if (c <= '\u024F') // accented Latin, part of the word around it
+				{
+					while (next < end && next - i < 64 && (isLatinLetter(text.charAt(next)) || (text.charAt(next) >= '\u00C0' && text.charAt(next) <= '\u024F')))
+						next++;
+					cls = WORD;
+					units = 1 + Math.max(0, next - i - 3) / 3.0;
+				} else
+				{
+					cls = OTHER;
+					units = 0.5;
+				}
+			} else if (Character.isWhitespace(c))
+			{
+				i = next;
+				continue;
+			} else
+			{
+				cls = SYMBOL;
+				units = 1;
+			}
+			if (tokens + units * w[cls] > maxTokens)
+				return i;
+			tokens += units * w[cls];
+			counts[cls] += units;
+			i = next;
+		}
+		return i;
+	}
+
+	private static boolean isLatinLetter(char c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isCjk(char c)
+	{
+		return (c >= '\u3040' && c <= '\u30FF') // Hiragana and Katakana
+		        || (c >= '\u3400' && c <= '\u9FFF') // CJK ideographs
+		        || (c >= '\uAC00' && c <= '\uD7AF') // Hangul syllables
+		        || (c >= '\uF900' && c <= '\uFAFF') || (c >= '\uFF00' && c <= '\uFFEF'); // compatibility ideographs, full width forms
+	}
+
+	private synchronized double weighted(double[] counts)
+	{
+		double tokens = 0;
+		for (int k = 0; k < CLASSES; k++)
+			tokens += counts[k] * weights[k];
+		return tokens;
+	}
+
+	/**
+	 * Adjusts the weights towards a token count Bedrock reported. Each class's weight moves in proportion to its share of the text, so that text in one script does not skew the estimate of another.
+	 *
+	 * @param text
+	 *            Text whose tokens were counted, eg. a request's prompt.
+	 * @param actualTokens
+	 *            Bedrock's count, eg. the X-Amzn-Bedrock-Input-Token-Count response header.
+	 */
+	public void calibrate(CharSequence text, int actualTokens)
+	{
+		if (text == null || actualTokens <= 0)
+			return;
+		double[] counts = new double[CLASSES];
+		count(text, 0, text.length(), counts, Double.MAX_VALUE);
+		synchronized (this)
+		{
+			double estimate = 0;
+			double norm = 0;
+			for (int k = 0; k < CLASSES; k++)
+			{
+				estimate += counts[k] * weights[k];
+				norm += counts[k] * counts[k];
+			}
+			if (norm == 0)
+				return;
+			double error = actualTokens - estimate;
+			for (int k = 0; k < CLASSES; k++) // normalized least mean squares
+				weights[k] = Math.min(MAX_WEIGHT, Math.max(MIN_WEIGHT, weights[k] + LEARNING_RATE * error * counts[k] / norm));
+			lastError = error / actualTokens;
+			calibrations++;
+		}
+	}
+
+	public synchronized long getCalibrations()
+	{
+		return calibrations;
+	}
+
+	public synchronized String getStatistics()
+	{
+		return String.format("Token estimator: %d calibrations, last error %.1f%%, weights word %.2f digit %.2f symbol %.2f cjk %.2f other %.2f.", calibrations, lastError * 100, weights[WORD], weights[DIGIT], weights[SYMBOL], weights[CJK], weights[OTHER]);
+	}
+}
@@ -0,0 +1,124 @@
+package chongwm.demo.amazon.aws.bedrock.summarization;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import chongwm.demo.hyland.alfresco.search.pojo.json2kt.Entry;
+
+/**
+ * Plans the work on search hits from their metadata alone, before anything is downloaded. Each hit is given a route from its MIME type and Content.sizeInBytes, and the hits of a window, eg. a search page, are put in the order they should be worked
+ * on.
+ *
+ * Shortest job first finishes the most summaries when a run is cut short by its time budget, and keeps one large document from holding up the small ones behind it.
+ */
+public class WorkPlanner
+{
+	/**
+	 * What to do with a hit.
+	 */
+	public enum Route
+	{
+		/** MIME type that cannot be summarized. Nothing is downloaded, the node is only marked as done. */
+		SKIP,
+		/** Summarized in this run, by direct or map-reduce invocation as its text length decides. */
+		DIRECT,
+		/** So large that only the start of its text is extracted, and summarized by a batch inference job. */
+		BATCH
+	}
+
+	/**
+	 * Order of the hits in a window.
+	 */
+	public enum Order
+	{
+		/** As the search returned them. */
+		SEARCH,
+		/** Smallest content first. */
+		SHORTEST_FIRST,
+		/** Highest Properties.getPriority() first, smallest content first among equals. */
+		PRIORITY
+	}
+
+	private static final Comparator<Entry> BY_SIZE = Comparator.comparingLong(WorkPlanner::sizeOf);
+	private static final Comparator<Entry> BY_PRIORITY = Comparator.comparingDouble((Entry entry) -> entry.getProperties().getPriority()).reversed().thenComparing(BY_SIZE);
+
+	private final Order order;
+	private final Set<String> supportedMimeTypes = new HashSet<String>();
+	private final long batchThresholdBytes;
+	private int skipped = 0;
+	private int batched = 0;
+
+	/**
+	 * @param order
+	 *            Order of the hits in a window.
+	 * @param supportedMimeTypes
+	 *            MIME types text can be extracted from.
+	 * @param batchThresholdBytes
+	 *            Content size from which a document goes straight to batch, 0 or less to never route by size.
+	 */
+	public WorkPlanner(Order order, Set<String> supportedMimeTypes, long batchThresholdBytes)
+	{
+		this.order = order;
+		for (String mimeType : supportedMimeTypes)
+			this.supportedMimeTypes.add(mimeType.toLowerCase());
+		this.batchThresholdBytes = batchThresholdBytes;
+	}
+
+	/**
+	 * @return Order named by a configuration value, eg. "shortest_first". SEARCH if the value is null or unknown.
+	 */
+	public static Order orderOf(String name)
+	{
+		for (Order order : Order.values())
+			if (order.name().replace("_", "").equalsIgnoreCase((name == null) ? "" : name.replace("_", "").replace("-", "")))
+				return order;
+		return Order.SEARCH;
+	}
+
+	public Route route(Entry entry)
+	{
+		String mimeType = (entry.getContent() == null) ? null : entry.getContent().getMimeType();
+		if (mimeType == null || !supportedMimeTypes.contains(mimeType.toLowerCase()))
+			return Route.SKIP;
+		if (batchThresholdBytes > 0 && sizeOf(entry) >= batchThresholdBytes)
+			return Route.BATCH;
+		return Route.DIRECT;
+	}
+
+	/**
+	 * Records a route taken, for getStatistics().
+	 */
+	public synchronized void count(Route route)
+	{
+		if (route == Route.SKIP)
+			skipped++;
+		else if (route == Route.BATCH)
+			batched++;
+	}
+
+	/**
+	 * @return The window's hits in the order they should be worked on. The window itself is not changed.
+	 */
+	public List<Entry> plan(List<Entry> window)
+	{
+		List<Entry> planned = new ArrayList<Entry>(window);
+		if (order == Order.SHORTEST_FIRST)
+			planned.sort(BY_SIZE); // stable, so hits of the same size keep the search's order
+		else if (order == Order.PRIORITY)
+			planned.sort(BY_PRIORITY);
+		return planned;
+	}
+
+	private static long sizeOf(Entry entry)
+	{
+		return (entry.getContent() == null) ? 0 : entry.getContent().getSizeInBytes();
+	}
+
+	public synchronized String getStatistics()
+	{
+		return "Work planner: " + order + " order, " + skipped + " unsupported nodes skipped without download, " + batched + " nodes of at least " + batchThresholdBytes + " bytes routed to batch.";
+	}
+}
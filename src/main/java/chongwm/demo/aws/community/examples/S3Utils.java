@@ -1,34 +1,73 @@
 package chongwm.demo.aws.community.examples;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.core.exception.SdkClientException;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectResponse;
 import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
 import software.amazon.awssdk.services.s3.presigner.model.PresignedGetObjectRequest;
 
 public class S3Utils
 {
+	public static final int MinPartSize = 5 * 1024 * 1024; // S3's smallest part, except for the last
+	public static final int MaxParts = 10000;
 	String bucketName;
 	String keyPath;
+	int partSize = 8 * 1024 * 1024;
+	int uploadParallelism = 4;
 	
 	public S3Utils(String s3Uri)
 	{
 		this.bucketName = s3Uri.substring(5, s3Uri.indexOf("/", 5));		
 		this.keyPath = s3Uri.substring(s3Uri.indexOf(bucketName)+bucketName.length()+1, s3Uri.length());	
 	}
+
+	/**
+	 * Sets how streams are uploaded. At most uploadParallelism + 1 parts are held in memory at a time.
+	 * 
+	 * @param partSize
+	 *            Bytes per multipart upload part, at least MinPartSize. Streams no longer than this are uploaded in one request.
+	 * @param uploadParallelism
+	 *            Parts uploaded at the same time.
+	 */
+	public void setMultipartUpload(int partSize, int uploadParallelism)
+	{
+		this.partSize = Math.max(MinPartSize, partSize);
+		this.uploadParallelism = Math.max(1, uploadParallelism);
+	}
 	
 	public String getBucketName()
 	{
@@ -91,16 +130,100 @@ public class S3Utils
         PutObjectResponse put= s3Client.putObject(putObjectRequest, RequestBody.fromString(jsonObject.toString()));
 	}
 	
+	public void putStringIntoS3(S3Client s3Client, String key, String content)
+	{
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                .bucket(bucketName)  
+                .key(key) 
+                .contentType("text/plain; charset=utf-8")
+                .build();
+        s3Client.putObject(putObjectRequest, RequestBody.fromString(content));
+	}
+
+	/**
+	 * @return The object's content as a stream, to be closed by the caller.
+	 */
+	public InputStream getInputStreamFromS3(S3Client s3Client, String key)
+	{
+		return s3Client.getObject(GetObjectRequest.builder().bucket(bucketName).key(key).build());
+	}
+
+	/**
+	 * @return The object's content decoded as UTF-8, or null if there is no object at key.
+	 */
+	public String getStringFromS3(S3Client s3Client, String key)
+	{
+		GetObjectRequest getObjectRequest = GetObjectRequest.builder().bucket(bucketName).key(key).build();
+		try
+		{
+			return s3Client.getObjectAsBytes(getObjectRequest).asUtf8String();
+		} catch (NoSuchKeyException e)
+		{
+			return null;
+		}
+	}
+
+	public void putFileIntoS3(S3Client s3Client, String key, File file, String contentType)
+	{
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                .bucket(bucketName)  
+                .key(key) 
+                .contentType(contentType)
+                .build();
+        s3Client.putObject(putObjectRequest, RequestBody.fromFile(file));
+	}
+
+	/**
+	 * @param prefix
+	 *            Key prefix, relative to the bucket.
+	 * @return All objects under prefix, in key order.
+	 */
+	public List<S3Object> listObjects(S3Client s3Client, String prefix)
+	{
+		List<S3Object> objects = new ArrayList<S3Object>();
+		ListObjectsV2Request listRequest = ListObjectsV2Request.builder().bucket(bucketName).prefix(prefix).build();
+		for (S3Object object : s3Client.listObjectsV2Paginator(listRequest).contents())
+			objects.add(object);
+		return objects;
+	}
+
+	/**
+	 * Copies an object within the bucket, then deletes the original.
+	 */
+	public void moveObject(S3Client s3Client, String fromKey, String toKey)
+	{
+		s3Client.copyObject(CopyObjectRequest.builder().sourceBucket(bucketName).sourceKey(fromKey).destinationBucket(bucketName).destinationKey(toKey).build());
+		s3Client.deleteObject(DeleteObjectRequest.builder().bucket(bucketName).key(fromKey).build());
+	}
+
+	/**
+	 * @return s3://bucket/key
+	 */
+	public String toS3Uri(String key)
+	{
+		return "s3://" + bucketName + "/" + key;
+	}
+
 	//application/jsonlines
 	
 
 	public URL putInputStreamIntoS3(S3Client s3Client, S3Presigner s3Presigner, String fileName, InputStream contentStream) throws S3Exception, AwsServiceException, SdkClientException, IOException
+	{
+		return putInputStreamIntoS3(s3Client, s3Presigner, fileName, contentStream, -1);
+	}
+
+	/**
+	 * Uploads a stream to keyPath+fileName and presigns it. The stream is read to its end and uploaded as it is read, see uploadStream.
+	 * 
+	 * @param contentLength
+	 *            Length of the stream if known, otherwise -1. Only used to choose a part size large enough.
+	 * @return Presigned URL, valid for 10 minutes.
+	 */
+	public URL putInputStreamIntoS3(S3Client s3Client, S3Presigner s3Presigner, String fileName, InputStream contentStream, long contentLength) throws S3Exception, AwsServiceException, SdkClientException, IOException
 	{
 		// Upload file to S3
 		String s3KeyName = this.keyPath+fileName;
-		PutObjectRequest putObjectRequest = PutObjectRequest.builder().bucket(this.bucketName).key(s3KeyName).build();		 
-		
-		s3Client.putObject(putObjectRequest, RequestBody.fromInputStream(contentStream, contentStream.available()));
+		uploadStream(s3Client, s3KeyName, contentStream, contentLength);
 
 		// Get a presigned URL to access the object
 		GetObjectPresignRequest objectPresignRequest = GetObjectPresignRequest.builder().signatureDuration(Duration.ofMinutes(10))
@@ -124,6 +247,125 @@ public class S3Utils
 	     return presignedGetObjectRequest.url();
 	}
 
+
+	/**
+	 * Uploads a stream of any length without knowing its length up front. A stream that fits in one part is sent with a single PutObject. A longer one is sent as a multipart upload, with uploadParallelism parts in flight while the next is read;
+	 * part buffers are reused, so no more than uploadParallelism + 1 parts are ever in memory. A failed multipart upload is aborted, so it leaves no parts behind.
+	 * 
+	 * @param key
+	 *            Key relative to the bucket.
+	 * @param contentLength
+	 *            Length of the stream if known, otherwise -1.
+	 * @return Number of bytes uploaded.
+	 */
+	public long uploadStream(S3Client s3Client, String key, InputStream in, long contentLength) throws IOException
+	{
+		int size = partSize;
+		if (contentLength > (long) size * MaxParts)
+			size = (int) Math.min(Integer.MAX_VALUE - 8, (contentLength + MaxParts - 1) / MaxParts);
+		byte[] first = new byte[(contentLength >= 0 && contentLength < size) ? (int) contentLength + 1 : size]; // one spare byte shows a short stream really ended
+		int n = readFully(in, first);
+		if (n < first.length)
+		{
+			s3Client.putObject(PutObjectRequest.builder().bucket(bucketName).key(key).build(), RequestBody.fromInputStream(new ByteArrayInputStream(first, 0, n), n));
+			return n;
+		}
+		if (first.length < size)
+			first = Arrays.copyOf(first, size); // the stated length was wrong, carry on with full parts
+
+		String uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder().bucket(bucketName).key(key).build()).uploadId();
+		ExecutorService uploaders = Executors.newFixedThreadPool(uploadParallelism, r ->
+		{
+			Thread t = new Thread(r, "s3-part-upload");
+			t.setDaemon(true);
+			return t;
+		});
+		BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<byte[]>(uploadParallelism + 1);
+		List<Future<CompletedPart>> parts = new ArrayList<Future<CompletedPart>>();
+		long total = 0;
+		try
+		{
+			byte[] buffer = first;
+			n = readFully(in, buffer, n);
+			while (n > 0)
+			{
+				if (parts.size() >= MaxParts)
+					throw new IOException("Stream for " + key + " needs more than " + MaxParts + " parts of " + size + " bytes");
+				byte[] part = buffer;
+				int partLength = n;
+				int partNumber = parts.size() + 1;
+				parts.add(uploaders.submit(() ->
+				{
+					try
+					{
+						String eTag = s3Client.uploadPart(UploadPartRequest.builder().bucket(bucketName).key(key).uploadId(uploadId).partNumber(partNumber).contentLength((long) partLength).build(),
+						        RequestBody.fromInputStream(new ByteArrayInputStream(part, 0, partLength), partLength)).eTag();
+						return CompletedPart.builder().partNumber(partNumber).eTag(eTag).build();
+					} finally
+					{
+						buffers.offer(part);
+					}
+				}));
+				total += partLength;
+				checkParts(parts);
+				// Reuse a buffer once its part is sent, or allocate another until uploadParallelism + 1 exist
+				buffer = (parts.size() <= uploadParallelism) ? buffers.poll() : buffers.take();
+				if (buffer == null)
+					buffer = new byte[size];
+				n = readFully(in, buffer, 0);
+			}
+			List<CompletedPart> completed = new ArrayList<CompletedPart>();
+			for (Future<CompletedPart> part : parts)
+				completed.add(part.get());
+			s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder().bucket(bucketName).key(key).uploadId(uploadId)
+			        .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build()).build());
+			return total;
+		} catch (Exception e)
+		{
+			for (Future<CompletedPart> part : parts)
+				part.cancel(true);
+			s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder().bucket(bucketName).key(key).uploadId(uploadId).build());
+			if (e instanceof InterruptedException)
+				Thread.currentThread().interrupt();
+			if (e instanceof ExecutionException && e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw (e instanceof IOException) ? (IOException) e : new IOException("Upload of " + key + " failed", e);
+		} finally
+		{
+			uploaders.shutdown();
+		}
+	}
+
+	/**
+	 * Stops reading early if a part has already failed.
+	 */
+	private static void checkParts(List<Future<CompletedPart>> parts) throws InterruptedException, ExecutionException
+	{
+		for (Future<CompletedPart> part : parts)
+			if (part.isDone())
+				part.get();
+	}
+
+	private static int readFully(InputStream in, byte[] buffer) throws IOException
+	{
+		return readFully(in, buffer, 0);
+	}
+
+	/**
+	 * @return Bytes in buffer, from offset 0. Less than buffer.length only at the end of the stream.
+	 */
+	private static int readFully(InputStream in, byte[] buffer, int offset) throws IOException
+	{
+		int count = offset;
+		while (count < buffer.length)
+		{
+			int r = in.read(buffer, count, buffer.length - count);
+			if (r < 0)
+				break;
+			count += r;
+		}
+		return count;
+	}
 	
 	
 	public static void main(String[] args)
@@ -172,4 +414,4 @@ public class S3Utils
  * bucket.
  * 
  * 
- */
\ No newline at end of file
+ */
\ No newline at end of file
@@ -12,7 +12,7 @@ public class Content
 	String mimeTypeName;
 
 	@SerializedName("sizeInBytes")
-	int sizeInBytes;
+	long sizeInBytes; // content over 2 GB does not fit an int
 
 	@SerializedName("encoding")
 	String encoding;
@@ -37,12 +37,12 @@ public class Content
 		return mimeTypeName;
 	}
 
-	public void setSizeInBytes(int sizeInBytes)
+	public void setSizeInBytes(long sizeInBytes)
 	{
 		this.sizeInBytes = sizeInBytes;
 	}
 
-	public int getSizeInBytes()
+	public long getSizeInBytes()
 	{
 		return sizeInBytes;
 	}
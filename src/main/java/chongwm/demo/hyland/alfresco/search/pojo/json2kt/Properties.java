@@ -34,6 +34,8 @@ public class Properties
 	@SerializedName("crestBedrock:temperature")
 	float crestBedrock_temperature;
 
+	transient double priority; // value of the property SearchResultsDecoder was told to read as the node's priority
+
 	public void setCrestBedrock_generateSummary(boolean crestBedrock_generateSummary)
 	{
 		this.crestBedrock_generateSummary = crestBedrock_generateSummary;
@@ -128,6 +130,19 @@ public class Properties
 	{
 		return crestBedrock_temperature;
 	}
+
+	public void setPriority(double priority)
+	{
+		this.priority = priority;
+	}
+
+	/**
+	 * @return Work priority of the node, higher first. 0 if it has none.
+	 */
+	public double getPriority()
+	{
+		return priority;
+	}
 	
 
 }
\ No newline at end of file
@@ -0,0 +1,407 @@
+package chongwm.demo.hyland.alfresco.search.pojo.json2kt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Streaming decoder for Alfresco search responses. The hand written readers below read straight from a JsonReader into the json2kt classes, without reflection, and skip every field the summarization pipeline does not use. In particular an existing
+ * crestBedrock:summary is skipped rather than materialized as a String, unless the decoder is created to keep it.
+ */
+public class SearchResultsDecoder
+{
+	/**
+	 * Entry fields to request with the search "fields" element. Everything else is left out of the response.
+	 */
+	public final static String[] PIPELINE_FIELDS = {"id", "name", "nodeType", "content", "properties", "modifiedAt"};
+
+	private final static DateTimeFormatter alfrescoDateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+	private final boolean readSummary;
+	private final String priorityProperty;
+	private final SearchResultsReader searchResultsReader = new SearchResultsReader();
+	private final SearchResultsListReader searchResultsListReader = new SearchResultsListReader();
+	private final PaginationReader paginationReader = new PaginationReader();
+	private final EntryReader entryReader = new EntryReader();
+	private final ContentReader contentReader = new ContentReader();
+	private final PropertiesReader propertiesReader = new PropertiesReader();
+
+	/**
+	 * @param readSummary
+	 *            true to decode crestBedrock:summary, false to skip it.
+	 * @param priorityProperty
+	 *            Numeric property read into Properties.getPriority(), eg. crestBedrock:priority. null for none.
+	 */
+	public SearchResultsDecoder(boolean readSummary, String priorityProperty)
+	{
+		this.readSummary = readSummary;
+		this.priorityProperty = priorityProperty;
+	}
+
+	/**
+	 * @param readSummary
+	 *            true to decode crestBedrock:summary, false to skip it.
+	 */
+	public SearchResultsDecoder(boolean readSummary)
+	{
+		this(readSummary, null);
+	}
+
+	public SearchResultsDecoder()
+	{
+		this(false);
+	}
+
+	/**
+	 * Decodes a search response as it arrives. The stream is not closed.
+	 *
+	 * @param in
+	 *            Response body.
+	 * @param charset
+	 *            Charset of the response, UTF-8 if null.
+	 */
+	public SearchResults decode(InputStream in, Charset charset) throws IOException
+	{
+		return decode(new InputStreamReader(in, (charset == null) ? StandardCharsets.UTF_8 : charset));
+	}
+
+	public SearchResults decode(Reader reader) throws IOException
+	{
+		JsonReader jsonReader = new JsonReader(reader);
+		return (jsonReader.peek() == JsonToken.NULL) ? null : searchResultsReader.read(jsonReader);
+	}
+
+	private static String nextStringOrNull(JsonReader in) throws IOException
+	{
+		if (in.peek() == JsonToken.NULL)
+		{
+			in.nextNull();
+			return null;
+		}
+		return in.nextString();
+	}
+
+	private static Date nextDateOrNull(JsonReader in) throws IOException
+	{
+		String s = nextStringOrNull(in);
+		if (s == null)
+			return null;
+		try
+		{
+			return Date.from(OffsetDateTime.parse(s, alfrescoDateFormat).toInstant());
+		} catch (DateTimeParseException e)
+		{
+			return Date.from(OffsetDateTime.parse(s).toInstant()); // ISO-8601 with a colon in the offset
+		}
+	}
+
+	private static boolean nextBooleanOrFalse(JsonReader in) throws IOException
+	{
+		JsonToken token = in.peek();
+		if (token == JsonToken.NULL)
+		{
+			in.nextNull();
+			return false;
+		}
+		if (token == JsonToken.STRING)
+			return Boolean.parseBoolean(in.nextString());
+		return in.nextBoolean();
+	}
+
+	private static double nextDoubleOrZero(JsonReader in) throws IOException
+	{
+		if (in.peek() == JsonToken.NULL)
+		{
+			in.nextNull();
+			return 0;
+		}
+		return in.nextDouble(); // also accepts numbers sent as strings
+	}
+
+	/**
+	 * @return The number, 0 if it is null or a string that is not a number.
+	 */
+	private static double nextNumberOrZero(JsonReader in) throws IOException
+	{
+		if (in.peek() == JsonToken.STRING)
+		{
+			try
+			{
+				return Double.parseDouble(in.nextString().trim());
+			} catch (NumberFormatException e)
+			{
+				return 0;
+			}
+		}
+		if (in.peek() != JsonToken.NUMBER)
+		{
+			in.skipValue();
+			return 0;
+		}
+		return in.nextDouble();
+	}
+
+	/**
+	 * Reads one JSON object, or null, into a json2kt object.
+	 */
+	private static abstract class ObjectReader<T>
+	{
+		T read(JsonReader in) throws IOException
+		{
+			if (in.peek() == JsonToken.NULL)
+			{
+				in.nextNull();
+				return null;
+			}
+			T value = create();
+			in.beginObject();
+			while (in.hasNext())
+				readField(in.nextName(), in, value);
+			in.endObject();
+			return value;
+		}
+
+		abstract T create();
+
+		/**
+		 * Reads the value of one field into value, or skips it.
+		 */
+		abstract void readField(String name, JsonReader in, T value) throws IOException;
+	}
+
+	private class SearchResultsReader extends ObjectReader<SearchResults>
+	{
+		SearchResults create()
+		{
+			return new SearchResults();
+		}
+
+		void readField(String name, JsonReader in, SearchResults value) throws IOException
+		{
+			if ("list".equals(name))
+				value.searchResultsList = searchResultsListReader.read(in);
+			else
+				in.skipValue();
+		}
+	}
+
+	private class SearchResultsListReader extends ObjectReader<SearchResultsList>
+	{
+		SearchResultsList create()
+		{
+			return new SearchResultsList();
+		}
+
+		void readField(String name, JsonReader in, SearchResultsList value) throws IOException
+		{
+			switch (name)
+			{
+				case "pagination" :
+					value.pagination = paginationReader.read(in);
+					break;
+				case "entries" :
+					value.entries = readEntries(in);
+					break;
+				default : // context (facets, highlights) is not used
+					in.skipValue();
+			}
+		}
+
+		private List<Entries> readEntries(JsonReader in) throws IOException
+		{
+			if (in.peek() == JsonToken.NULL)
+			{
+				in.nextNull();
+				return null;
+			}
+			List<Entries> entries = new ArrayList<Entries>();
+			in.beginArray();
+			while (in.hasNext())
+			{
+				Entries wrapper = new Entries();
+				in.beginObject();
+				while (in.hasNext())
+				{
+					if ("entry".equals(in.nextName()))
+						wrapper.entry = entryReader.read(in);
+					else
+						in.skipValue();
+				}
+				in.endObject();
+				entries.add(wrapper);
+			}
+			in.endArray();
+			return entries;
+		}
+	}
+
+	private class PaginationReader extends ObjectReader<Pagination>
+	{
+		Pagination create()
+		{
+			return new Pagination();
+		}
+
+		void readField(String name, JsonReader in, Pagination value) throws IOException
+		{
+			switch (name)
+			{
+				case "count" :
+					value.count = in.nextInt();
+					break;
+				case "hasMoreItems" :
+					value.hasMoreItems = nextBooleanOrFalse(in);
+					break;
+				case "totalItems" :
+					value.totalItems = in.nextInt();
+					break;
+				case "skipCount" :
+					value.skipCount = in.nextInt();
+					break;
+				case "maxItems" :
+					value.maxItems = in.nextInt();
+					break;
+				default :
+					in.skipValue();
+			}
+		}
+	}
+
+	private class EntryReader extends ObjectReader<Entry>
+	{
+		Entry create()
+		{
+			return new Entry();
+		}
+
+		void readField(String name, JsonReader in, Entry value) throws IOException
+		{
+			switch (name)
+			{
+				case "id" :
+					value.id = nextStringOrNull(in);
+					break;
+				case "name" :
+					value.name = nextStringOrNull(in);
+					break;
+				case "nodeType" :
+					value.nodeType = nextStringOrNull(in);
+					break;
+				case "parentId" :
+					value.parentId = nextStringOrNull(in);
+					break;
+				case "isFile" :
+					value.isFile = nextBooleanOrFalse(in);
+					break;
+				case "isFolder" :
+					value.isFolder = nextBooleanOrFalse(in);
+					break;
+				case "modifiedAt" :
+					value.modifiedAt = nextDateOrNull(in);
+					break;
+				case "createdAt" :
+					value.createdAt = nextDateOrNull(in);
+					break;
+				case "content" :
+					value.content = contentReader.read(in);
+					break;
+				case "properties" :
+					value.properties = propertiesReader.read(in);
+					break;
+				default : // createdByUser, modifiedByUser, search, location... are not used
+					in.skipValue();
+			}
+		}
+	}
+
+	private class ContentReader extends ObjectReader<Content>
+	{
+		Content create()
+		{
+			return new Content();
+		}
+
+		void readField(String name, JsonReader in, Content value) throws IOException
+		{
+			switch (name)
+			{
+				case "mimeType" :
+					value.mimeType = nextStringOrNull(in);
+					break;
+				case "mimeTypeName" :
+					value.mimeTypeName = nextStringOrNull(in);
+					break;
+				case "sizeInBytes" :
+					value.sizeInBytes = in.nextLong();
+					break;
+				case "encoding" :
+					value.encoding = nextStringOrNull(in);
+					break;
+				default :
+					in.skipValue();
+			}
+		}
+	}
+
+	private class PropertiesReader extends ObjectReader<Properties>
+	{
+		Properties create()
+		{
+			return new Properties();
+		}
+
+		void readField(String name, JsonReader in, Properties value) throws IOException
+		{
+			switch (name)
+			{
+				case "crestBedrock:generateSummary" :
+					value.crestBedrock_generateSummary = nextBooleanOrFalse(in);
+					break;
+				case "crestBedrock:summaryTime" :
+					value.crestBedrock_summaryTime = nextDateOrNull(in);
+					break;
+				case "crestBedrock:prompt" :
+					value.crestBedrock_prompt = nextStringOrNull(in);
+					break;
+				case "cm:versionType" :
+					value.cm_versionType = nextStringOrNull(in);
+					break;
+				case "cm:versionLabel" :
+					value.cm_versionLabel = nextStringOrNull(in);
+					break;
+				case "crestBedrock:fm" :
+					value.crestBedrock_fm = nextStringOrNull(in);
+					break;
+				case "crestBedrock:summary" :
+					if (readSummary)
+						value.crestBedrock_summary = nextStringOrNull(in);
+					else
+						in.skipValue(); // can be megabytes, and the pipeline overwrites it anyway
+					break;
+				case "crestBedrock:responseLength" :
+					value.crestBedrock_responseLength = (int) nextDoubleOrZero(in);
+					break;
+				case "crestBedrock:temperature" :
+					value.crestBedrock_temperature = (float) nextDoubleOrZero(in);
+					break;
+				default : // every other aspect's properties
+					if (name.equals(priorityProperty))
+						value.priority = nextNumberOrZero(in);
+					else
+						in.skipValue();
+			}
+		}
+	}
+}